@@ -0,0 +1,175 @@
+package hudson.plugins.scm;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarOutputStream;
+import org.apache.tools.zip.ZipEntry;
+import org.apache.tools.zip.ZipOutputStream;
+
+/**
+ * Generates the archives the benchmarks work on. The content is
+ * deterministic and compresses about as well as typical build output.
+ */
+final class BenchmarkArchives {
+
+	/**
+	 * The shapes of the generated archives.
+	 */
+	enum Shape {
+
+		/** Many small files in a directory tree. */
+		SMALL_FILES(5000, 2 * 1024),
+
+		/** A few huge files. */
+		LARGE_FILES(4, 32 * 1024 * 1024);
+
+		/** The number of files. */
+		private final int files;
+
+		/** The size of each file. */
+		private final int size;
+
+		/**
+		 * Instantiates a new shape.
+		 * 
+		 * @param files
+		 *            the number of files
+		 * @param size
+		 *            the size of each file
+		 */
+		private Shape(int files, int size) {
+			this.files = files;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Instantiates a new benchmark archives.
+	 */
+	private BenchmarkArchives() {
+	}
+
+	/**
+	 * Creates an archive.
+	 * 
+	 * @param dir
+	 *            the directory to create it in
+	 * @param name
+	 *            the file name, its suffix selects the format
+	 * @param shape
+	 *            the shape
+	 * @return the archive
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	static File create(File dir, String name, Shape shape) throws IOException {
+		File archive = new File(dir, name);
+		ArchiveType type = ArchiveType.of(name);
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(
+				archive));
+		try {
+			if (type == ArchiveType.ZIP) {
+				writeZip(out, shape);
+			} else if (type == ArchiveType.TAR_GZ) {
+				GZIPOutputStream gz = new GZIPOutputStream(out);
+				writeTar(gz, shape);
+				gz.finish();
+			} else if (type == ArchiveType.TAR) {
+				writeTar(out, shape);
+			} else {
+				// a single file of the total size of the shape
+				Random random = new Random(0);
+				for (int i = 0; i < shape.files; i++) {
+					out.write(content(random, shape.size));
+				}
+			}
+		} finally {
+			out.close();
+		}
+		return archive;
+	}
+
+	/**
+	 * Writes a zip archive.
+	 * 
+	 * @param out
+	 *            the stream
+	 * @param shape
+	 *            the shape
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void writeZip(OutputStream out, Shape shape)
+			throws IOException {
+		ZipOutputStream zip = new ZipOutputStream(out);
+		Random random = new Random(0);
+		for (int i = 0; i < shape.files; i++) {
+			zip.putNextEntry(new ZipEntry(path(i)));
+			zip.write(content(random, shape.size));
+			zip.closeEntry();
+		}
+		zip.finish();
+	}
+
+	/**
+	 * Writes a tar archive.
+	 * 
+	 * @param out
+	 *            the stream
+	 * @param shape
+	 *            the shape
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void writeTar(OutputStream out, Shape shape)
+			throws IOException {
+		TarOutputStream tar = new TarOutputStream(out);
+		tar.setLongFileMode(TarOutputStream.LONGFILE_GNU);
+		Random random = new Random(0);
+		for (int i = 0; i < shape.files; i++) {
+			byte[] b = content(random, shape.size);
+			TarEntry e = new TarEntry(path(i));
+			e.setSize(b.length);
+			tar.putNextEntry(e);
+			tar.write(b);
+			tar.closeEntry();
+		}
+		tar.finish();
+	}
+
+	/**
+	 * Gets the path of a file, spread over a hundred directories.
+	 * 
+	 * @param i
+	 *            the index of the file
+	 * @return the path
+	 */
+	private static String path(int i) {
+		return "dir" + (i % 100) + "/file" + i + ".txt";
+	}
+
+	/**
+	 * Generates the content of a file: words picked from a small vocabulary,
+	 * which compresses to roughly a third.
+	 * 
+	 * @param random
+	 *            the random
+	 * @param size
+	 *            the size
+	 * @return the content
+	 */
+	private static byte[] content(Random random, int size) {
+		byte[] b = new byte[size];
+		for (int i = 0; i < size; i++) {
+			b[i] = (byte) (i % 8 == 7 ? ' ' : 'a' + random.nextInt(16));
+		}
+		return b;
+	}
+}
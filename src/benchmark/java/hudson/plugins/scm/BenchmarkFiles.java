@@ -0,0 +1,52 @@
+package hudson.plugins.scm;
+
+import hudson.model.TaskListener;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Helpers shared by the benchmarks.
+ */
+final class BenchmarkFiles {
+
+	/**
+	 * Instantiates a new benchmark files.
+	 */
+	private BenchmarkFiles() {
+	}
+
+	/**
+	 * Creates an empty temporary directory.
+	 * 
+	 * @return the directory
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	static File createTempDir() throws IOException {
+		File dir = File.createTempFile("archive-files-scm-benchmark", "");
+		if (!dir.delete() || !dir.mkdirs()) {
+			throw new IOException("Unable to create " + dir);
+		}
+		return dir;
+	}
+
+	/**
+	 * Creates a fetcher as a build would, without credentials, proxy or cache,
+	 * for a workspace that holds no version of the url yet.
+	 * 
+	 * @param url
+	 *            the url
+	 * @param segments
+	 *            the number of concurrent range requests
+	 * @return the fetcher
+	 */
+	static UrlFetcher fetcher(String url, int segments) {
+		FetchOptions options = new FetchOptions();
+		options.setSegments(segments);
+		return new UrlFetcher(url, ConnectionSettings.create(
+				new ArchiveFilesSCM.URLTuple(url, null, null), null, 30000,
+				60000), EntryFilter.ALL, "", new WorkspaceState.Entry(-1, null),
+				TaskListener.NULL, "", options);
+	}
+}
@@ -0,0 +1,186 @@
+package hudson.plugins.scm;
+
+import hudson.FilePath;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the download of a new version of a tar archive served by a
+ * {@link LocalHttpServer} with its block index, once as a delta download from
+ * the previous version and once as a whole. The new version has a few bytes
+ * inserted, which shifts every later block, and a changed region.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DeltaDownloadBenchmark {
+
+	/** The offset the bytes are inserted at. */
+	private static final long INSERT_AT = 40L * 1024 * 1024;
+
+	/** The number of inserted bytes. */
+	private static final int INSERTED = 100;
+
+	/** The offset of the changed region. */
+	private static final long CHANGE_AT = 90L * 1024 * 1024;
+
+	/** The size of the changed region. */
+	private static final int CHANGED = 1024 * 1024;
+
+	/** The directory holding the archives. */
+	private File dir;
+
+	/** The previous version. */
+	private File previous;
+
+	/** The file the new version is written to. */
+	private File target;
+
+	/** The server. */
+	private LocalHttpServer server;
+
+	/** The url. */
+	private URL url;
+
+	/** The connection settings. */
+	private ConnectionSettings settings;
+
+	/** The revision metadata of the url. */
+	private UrlProbe.Result remote;
+
+	/**
+	 * Creates both versions and the block index of the new one, and starts
+	 * the server.
+	 * 
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Setup
+	public void setUp() throws IOException {
+		dir = BenchmarkFiles.createTempDir();
+		File served = new File(dir, "served");
+		served.mkdirs();
+		previous = BenchmarkArchives.create(dir, "archive.tar",
+				BenchmarkArchives.Shape.LARGE_FILES);
+		File archive = new File(served, "archive.tar");
+		change(previous, archive);
+		Writer w = new OutputStreamWriter(new FileOutputStream(archive
+				.getPath()
+				+ BlockIndex.SUFFIX), "US-ASCII");
+		try {
+			BlockIndex.create(archive, BlockIndex.DEFAULT_BLOCK_SIZE).write(w);
+		} finally {
+			w.close();
+		}
+		server = LocalHttpServer.start(archive);
+		url = new URL(server.getUrl());
+		settings = ConnectionSettings.create(new ArchiveFilesSCM.URLTuple(
+				server.getUrl(), null, null), null, 30000, 60000);
+		remote = UrlProbe.probe(url, settings, 0, null);
+		target = new File(dir, "target.tar");
+	}
+
+	/**
+	 * Writes the new version of the archive.
+	 * 
+	 * @param from
+	 *            the previous version
+	 * @param to
+	 *            the new version
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void change(File from, File to) throws IOException {
+		Random random = new Random(1);
+		InputStream in = new BufferedInputStream(new FileInputStream(from));
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(to));
+		try {
+			long pos = 0;
+			int b;
+			while ((b = in.read()) != -1) {
+				if (pos == INSERT_AT) {
+					for (int i = 0; i < INSERTED; i++) {
+						out.write(random.nextInt(256));
+					}
+				}
+				if (pos >= CHANGE_AT && pos < CHANGE_AT + CHANGED) {
+					b = random.nextInt(256);
+				}
+				out.write(b);
+				pos++;
+			}
+		} finally {
+			in.close();
+			out.close();
+		}
+	}
+
+	/**
+	 * Stops the server and deletes the archives.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@TearDown
+	public void tearDown() throws Exception {
+		server.stop();
+		new FilePath(dir).deleteRecursive();
+	}
+
+	/**
+	 * Downloads the changed blocks and rebuilds the new version.
+	 * 
+	 * @return the number of bytes downloaded
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Benchmark
+	public long delta() throws Exception {
+		DeltaDownloader d = new DeltaDownloader(url, settings, remote,
+				Throttle.NONE);
+		return d.download(d.fetchIndex(), previous, target);
+	}
+
+	/**
+	 * Downloads the whole new version.
+	 * 
+	 * @return the number of bytes downloaded
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Benchmark
+	public long full() throws Exception {
+		if (target.exists() && !target.delete()) {
+			throw new IOException("Unable to delete " + target);
+		}
+		return new ResumableDownloader(url, settings, remote, 1,
+				Throttle.NONE).download(target);
+	}
+}
@@ -0,0 +1,100 @@
+package hudson.plugins.scm;
+
+import hudson.FilePath;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link ArchiveExtractor} on zip, jar, tar and tar.gz archives of
+ * many small files and of a few huge files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExtractionBenchmark {
+
+	/** The file name of the archive, its suffix selects the format. */
+	@Param( { "archive.zip", "archive.jar", "archive.tar", "archive.tar.gz" })
+	public String fileName;
+
+	/** The shape of the archive. */
+	@Param( { "SMALL_FILES", "LARGE_FILES" })
+	public BenchmarkArchives.Shape shape;
+
+	/** Whether unchanged entries are skipped. */
+	@Param( { "false", "true" })
+	public boolean incremental;
+
+	/** The directory holding the archive. */
+	private File dir;
+
+	/** The archive. */
+	private File archive;
+
+	/** The workspace. */
+	private File workspace;
+
+	/**
+	 * Creates the archive.
+	 * 
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Setup
+	public void setUp() throws IOException {
+		dir = BenchmarkFiles.createTempDir();
+		archive = BenchmarkArchives.create(dir, fileName, shape);
+		workspace = new File(dir, "workspace");
+	}
+
+	/**
+	 * Deletes the archive and the workspace.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@TearDown
+	public void tearDown() throws Exception {
+		new FilePath(dir).deleteRecursive();
+	}
+
+	/**
+	 * Extracts the archive into the workspace. In incremental mode every
+	 * invocation after the first one finds all entries unchanged.
+	 * 
+	 * @return the stats
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Benchmark
+	public ArchiveExtractor.Stats extract() throws Exception {
+		InputStream in = new FileInputStream(archive);
+		try {
+			return ArchiveExtractor.extract(ArchiveType.of(fileName),
+					fileName, incremental, EntryFilter.ALL, in, archive,
+					new FilePath(workspace));
+		} finally {
+			in.close();
+		}
+	}
+}
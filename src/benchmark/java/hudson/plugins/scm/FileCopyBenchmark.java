@@ -0,0 +1,85 @@
+package hudson.plugins.scm;
+
+import hudson.FilePath;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the checkout of a <tt>file://</tt> URL, either copied as it is or
+ * extracted from a tar.gz archive.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FileCopyBenchmark {
+
+	/** The file name, its suffix selects whether it is copied or extracted. */
+	@Param( { "file.bin", "archive.tar.gz" })
+	public String fileName;
+
+	/** The directory holding the file. */
+	private File dir;
+
+	/** The workspace. */
+	private File workspace;
+
+	/** The url. */
+	private String url;
+
+	/**
+	 * Creates the file.
+	 * 
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Setup
+	public void setUp() throws IOException {
+		dir = BenchmarkFiles.createTempDir();
+		File file = BenchmarkArchives.create(dir, fileName,
+				BenchmarkArchives.Shape.LARGE_FILES);
+		url = file.toURI().toURL().toExternalForm();
+		workspace = new File(dir, "workspace");
+		workspace.mkdirs();
+	}
+
+	/**
+	 * Deletes the file and the workspace.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@TearDown
+	public void tearDown() throws Exception {
+		new FilePath(dir).deleteRecursive();
+	}
+
+	/**
+	 * Checks the url out into the workspace.
+	 * 
+	 * @return the result
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Benchmark
+	public UrlFetcher.Result fetch() throws Exception {
+		return BenchmarkFiles.fetcher(url, 1).fetch(new FilePath(workspace));
+	}
+}
@@ -0,0 +1,111 @@
+package hudson.plugins.scm;
+
+import hudson.FilePath;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the checkout of an http URL served by a {@link LocalHttpServer},
+ * with a single connection and with concurrent range requests, and the poll
+ * of an unchanged URL.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HttpDownloadBenchmark {
+
+	/** The file name of the archive, its suffix selects the format. */
+	@Param( { "archive.zip", "archive.tar.gz" })
+	public String fileName;
+
+	/** The number of concurrent range requests. */
+	@Param( { "1", "4" })
+	public int segments;
+
+	/** The directory holding the archive. */
+	private File dir;
+
+	/** The workspace. */
+	private File workspace;
+
+	/** The server. */
+	private LocalHttpServer server;
+
+	/** The url. */
+	private String url;
+
+	/**
+	 * Creates the archive and starts the server.
+	 * 
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Setup
+	public void setUp() throws IOException {
+		dir = BenchmarkFiles.createTempDir();
+		File archive = BenchmarkArchives.create(dir, fileName,
+				BenchmarkArchives.Shape.LARGE_FILES);
+		server = LocalHttpServer.start(archive);
+		url = server.getUrl();
+		workspace = new File(dir, "workspace");
+		workspace.mkdirs();
+	}
+
+	/**
+	 * Stops the server and deletes the archive and the workspace.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@TearDown
+	public void tearDown() throws Exception {
+		server.stop();
+		new FilePath(dir).deleteRecursive();
+	}
+
+	/**
+	 * Downloads the url and extracts it into the workspace.
+	 * 
+	 * @return the result
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Benchmark
+	public UrlFetcher.Result download() throws Exception {
+		return BenchmarkFiles.fetcher(url, segments).fetch(
+				new FilePath(workspace));
+	}
+
+	/**
+	 * Probes the url the way polling does.
+	 * 
+	 * @return the result
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public UrlProbe.Result poll() throws Exception {
+		return UrlProbe.probe(new java.net.URL(url), ConnectionSettings
+				.create(new ArchiveFilesSCM.URLTuple(url, null, null), null,
+						30000, 60000), server.getLastModified(), null);
+	}
+}
@@ -0,0 +1,325 @@
+package hudson.plugins.scm;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.INFO;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * A cache of downloaded archives that lives on a node, outside of any
+ * workspace, and is shared by every job and executor of that node.
+ * 
+ * Archives are keyed by URL plus Last-Modified and ETag, so a new version of
+ * an archive gets a new entry and old versions simply age out. The total size
+ * is capped; when an insert exceeds the cap the least recently used archives
+ * are deleted. Concurrent requests for the same archive are collapsed into a
+ * single download.
+ */
+final class ArchiveCache {
+
+	/** The Constant LOGGER. */
+	private static final Logger LOGGER = Logger.getLogger(ArchiveCache.class
+			.getName());
+
+	/** The caches of this JVM by directory. */
+	private static final Map<File, ArchiveCache> CACHES = new HashMap<File, ArchiveCache>();
+
+	/** The directory. */
+	private final File dir;
+
+	/** The downloads in progress by key. */
+	private final ConcurrentMap<String, FutureTask<File>> inflight = new ConcurrentHashMap<String, FutureTask<File>>();
+
+	/**
+	 * Loads an archive into the cache.
+	 */
+	interface Loader {
+
+		/**
+		 * Downloads the archive into the given file.
+		 * 
+		 * @param target
+		 *            the file to write to
+		 * @throws IOException
+		 *             Signals that an I/O exception has occurred.
+		 * @throws InterruptedException
+		 *             the interrupted exception
+		 */
+		void load(File target) throws IOException, InterruptedException;
+	}
+
+	/**
+	 * Instantiates a new archive cache.
+	 * 
+	 * @param dir
+	 *            the directory
+	 */
+	private ArchiveCache(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Gets the cache stored in the given directory.
+	 * 
+	 * @param dir
+	 *            the directory
+	 * @return the cache
+	 */
+	static ArchiveCache get(File dir) {
+		synchronized (CACHES) {
+			ArchiveCache cache = CACHES.get(dir);
+			if (cache == null) {
+				cache = new ArchiveCache(dir);
+				CACHES.put(dir, cache);
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * Computes the cache key of a version of an archive.
+	 * 
+	 * @param url
+	 *            the url
+	 * @param lastModified
+	 *            the last modified time stamp, 0 if unknown
+	 * @param etag
+	 *            the etag, null if unknown
+	 * @return the key, null if the version can not be identified and must not
+	 *         be cached
+	 */
+	static String key(String url, long lastModified, String etag) {
+		if (lastModified <= 0 && etag == null) {
+			return null;
+		}
+		return sha256(url + "\n" + lastModified + "\n"
+				+ (etag == null ? "" : etag));
+	}
+
+	/**
+	 * Computes the hex encoded SHA-256 of a string.
+	 * 
+	 * @param s
+	 *            the string
+	 * @return the digest
+	 */
+	static String sha256(String s) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return new String(Hex.encodeHex(digest.digest(s.getBytes("UTF-8"))));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Checks if the archive with the given key is cached.
+	 * 
+	 * @param key
+	 *            the key
+	 * @return true, if cached
+	 */
+	boolean contains(String key) {
+		return new File(dir, key).isFile();
+	}
+
+	/**
+	 * Removes an archive from the cache, e.g. because it turned out to be
+	 * corrupt.
+	 * 
+	 * @param key
+	 *            the key
+	 */
+	void remove(String key) {
+		File cached = new File(dir, key);
+		if (cached.exists() && !cached.delete()) {
+			LOGGER.log(FINE, "Unable to delete " + cached);
+		}
+	}
+
+	/**
+	 * Gets an archive from the cache, downloading it first if it is not
+	 * cached. When several threads ask for the same missing archive, only one
+	 * of them downloads it and the others wait for that download. If that
+	 * download is interrupted, a waiting thread downloads the archive itself.
+	 * 
+	 * @param key
+	 *            the key
+	 * @param loader
+	 *            the loader used on a cache miss
+	 * @param maxSize
+	 *            the maximum size of the cache in bytes
+	 * @return the cached archive
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	File get(final String key, final Loader loader, final long maxSize)
+			throws IOException, InterruptedException {
+		while (true) {
+			File cached = new File(dir, key);
+			if (cached.isFile()) {
+				touch(cached);
+				return cached;
+			}
+			FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+				public File call() throws Exception {
+					return load(key, loader, maxSize);
+				}
+			});
+			FutureTask<File> running = inflight.putIfAbsent(key, task);
+			if (running == null) {
+				running = task;
+				try {
+					task.run();
+				} finally {
+					inflight.remove(key, task);
+				}
+			}
+			try {
+				return running.get();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof InterruptedException && running != task
+						&& !Thread.currentThread().isInterrupted()) {
+					// the build that was loading the archive was aborted, which
+					// is no reason to abort this one: load it here instead
+					inflight.remove(key, running);
+					LOGGER.log(FINE, "Loading " + key
+							+ " again, the load it waited for was interrupted");
+					continue;
+				}
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+				if (cause instanceof InterruptedException) {
+					throw (InterruptedException) cause;
+				}
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				throw new IOException("Unable to load " + key + " : " + cause);
+			}
+		}
+	}
+
+	/**
+	 * Downloads an archive into the cache and evicts old archives.
+	 * 
+	 * @param key
+	 *            the key
+	 * @param loader
+	 *            the loader
+	 * @param maxSize
+	 *            the maximum size of the cache in bytes
+	 * @return the cached archive
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	private File load(String key, Loader loader, long maxSize)
+			throws IOException, InterruptedException {
+		File cached = new File(dir, key);
+		if (cached.isFile()) {
+			touch(cached);
+			return cached;
+		}
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Unable to create " + dir);
+		}
+		File part = new File(dir, key + ".part");
+		boolean loaded = false;
+		try {
+			loader.load(part);
+			if (!part.renameTo(cached)) {
+				throw new IOException("Unable to rename " + part + " to "
+						+ cached);
+			}
+			loaded = true;
+		} finally {
+			if (!loaded && part.exists() && !part.delete()) {
+				LOGGER.log(FINE, "Unable to delete " + part);
+			}
+		}
+		touch(cached);
+		evict(maxSize, cached);
+		return cached;
+	}
+
+	/**
+	 * Deletes the least recently used archives until the cache fits into the
+	 * given size. The archive that was just added and archives that are being
+	 * downloaded are kept.
+	 * 
+	 * @param maxSize
+	 *            the maximum size in bytes
+	 * @param keep
+	 *            the archive that must be kept
+	 */
+	private void evict(long maxSize, File keep) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		long size = 0;
+		for (File f : files) {
+			size += f.length();
+		}
+		if (size <= maxSize) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long d = a.lastModified() - b.lastModified();
+				return d < 0 ? -1 : d > 0 ? 1 : 0;
+			}
+		});
+		for (File f : files) {
+			if (size <= maxSize) {
+				break;
+			}
+			String name = f.getName();
+			if (f.equals(keep) || name.endsWith(".part")
+					|| inflight.containsKey(name)) {
+				continue;
+			}
+			long length = f.length();
+			if (f.delete()) {
+				size -= length;
+				LOGGER.log(INFO, "Evicted " + f + " from the archive cache");
+			}
+		}
+	}
+
+	/**
+	 * Marks an archive as recently used.
+	 * 
+	 * @param f
+	 *            the archive
+	 */
+	private static void touch(File f) {
+		if (!f.setLastModified(System.currentTimeMillis())) {
+			LOGGER.log(FINE, "Unable to touch " + f);
+		}
+	}
+}
@@ -0,0 +1,614 @@
+package hudson.plugins.scm;
+
+import static java.util.logging.Level.FINE;
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Util;
+import hudson.model.TaskListener;
+import hudson.remoting.RemoteInputStream;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.tools.bzip2.CBZip2InputStream;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarInputStream;
+import org.apache.tools.zip.ZipEntry;
+import org.apache.tools.zip.ZipFile;
+import org.tukaani.xz.XZInputStream;
+
+import com.github.luben.zstd.ZstdInputStream;
+
+/**
+ * Extracts an archive into the workspace. The extractor always runs on the
+ * node that owns the workspace; when the archive is read on the master it is
+ * streamed to the node through a {@link RemoteInputStream}, the same way
+ * {@link FilePath#unzipFrom(InputStream)} does it.
+ * 
+ * Only the entries accepted by the {@link EntryFilter} are written; the others
+ * are skipped while streaming through the archive. In incremental mode,
+ * entries whose fingerprint matches the
+ * {@link ExtractionManifest} of the previous extraction and whose file is
+ * still untouched in the workspace are not written again, and files of
+ * entries that disappeared from the archive are deleted.
+ */
+final class ArchiveExtractor implements FileCallable<ArchiveExtractor.Stats> {
+
+	/** The Constant serialVersionUID. */
+	private static final long serialVersionUID = 1L;
+
+	/** The Constant LOGGER. */
+	private static final Logger LOGGER = Logger
+			.getLogger(ArchiveExtractor.class.getName());
+
+	/** The size of the buffers passed between pipeline stages. */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/** The number of buffers between two pipeline stages. */
+	private static final int PIPELINE_DEPTH = 32;
+
+	/** The archive type. */
+	private final ArchiveType type;
+
+	/** The file name of the archive. */
+	private final String fileName;
+
+	/** Whether unchanged entries are skipped. */
+	private final boolean incremental;
+
+	/** The entries to extract. */
+	private final EntryFilter filter;
+
+	/** The archive content. */
+	private final InputStream in;
+
+	/**
+	 * The path of the archive on the node, null if it is only available as a
+	 * stream. Zip archives are read from this file when it is set.
+	 */
+	private final String archive;
+
+	/**
+	 * Instantiates a new archive extractor.
+	 * 
+	 * @param type
+	 *            the type
+	 * @param fileName
+	 *            the file name
+	 * @param incremental
+	 *            the incremental flag
+	 * @param filter
+	 *            the filter
+	 * @param in
+	 *            the stream
+	 * @param archive
+	 *            the archive path
+	 */
+	private ArchiveExtractor(ArchiveType type, String fileName,
+			boolean incremental, EntryFilter filter, InputStream in,
+			String archive) {
+		this.type = type;
+		this.fileName = fileName;
+		this.incremental = incremental;
+		this.filter = filter;
+		this.in = in;
+		this.archive = archive;
+	}
+
+	/**
+	 * Extracts an archive into the workspace.
+	 * 
+	 * @param type
+	 *            the archive type
+	 * @param fileName
+	 *            the file name of the archive
+	 * @param incremental
+	 *            whether unchanged entries are skipped
+	 * @param filter
+	 *            the entries to extract
+	 * @param in
+	 *            the archive content
+	 * @param archive
+	 *            the archive as a file on this JVM, null if only the stream
+	 *            is available
+	 * @param workspace
+	 *            the workspace
+	 * @return the stats
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	static Stats extract(ArchiveType type, String fileName,
+			boolean incremental, EntryFilter filter, InputStream in,
+			File archive, FilePath workspace) throws IOException,
+			InterruptedException {
+		if (workspace.isRemote()) {
+			return workspace.act(new ArchiveExtractor(type, fileName,
+					incremental, filter, new RemoteInputStream(in), null));
+		}
+		return new ArchiveExtractor(type, fileName, incremental, filter, in,
+				archive == null ? null : archive.getPath()).invoke(new File(
+				workspace.getRemote()), null);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see hudson.FilePath.FileCallable#invoke(java.io.File,
+	 * hudson.remoting.VirtualChannel)
+	 */
+	public Stats invoke(File dir, VirtualChannel channel) throws IOException,
+			InterruptedException {
+		Stats stats = new Stats();
+		if (type == ArchiveType.UNKNOWN) {
+			if (archive != null) {
+				// the caller reads the stream only if it needs the digest
+				LocalFiles.copy(new File(archive), new File(dir, fileName));
+			} else {
+				copy(in, new File(dir, fileName));
+			}
+			stats.written++;
+			return stats;
+		}
+		ExtractionManifest manifest = ExtractionManifest.load(dir, fileName);
+		if (type == ArchiveType.ZIP) {
+			unzip(dir, manifest, stats);
+		} else {
+			untar(dir, manifest, stats);
+		}
+		if (incremental) {
+			for (String name : manifest.getRemoved()) {
+				File f = target(dir, name);
+				if (f.isFile() && f.delete()) {
+					stats.deleted++;
+				}
+			}
+		}
+		manifest.save();
+		return stats;
+	}
+
+	/**
+	 * Extracts a zip archive. A zip archive is read through its central
+	 * directory, so a streamed archive is spooled to a temporary file first.
+	 * Directories are created up front; the file entries are then inflated
+	 * and written concurrently, one worker per core of the node.
+	 * 
+	 * @param dir
+	 *            the workspace
+	 * @param manifest
+	 *            the manifest
+	 * @param stats
+	 *            the stats
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	private void unzip(File dir, ExtractionManifest manifest, Stats stats)
+			throws IOException, InterruptedException {
+		File zipFile = archive != null ? new File(archive) : null;
+		File tmp = null;
+		if (zipFile == null) {
+			tmp = File.createTempFile("archive-files-scm", ".zip");
+			copy(in, tmp);
+			zipFile = tmp;
+		}
+		ZipFile zip = new ZipFile(zipFile);
+		try {
+			// when a name occurs more than once the last entry wins, as it
+			// would when the entries are written one after another
+			Map<String, ZipEntry> files = new LinkedHashMap<String, ZipEntry>();
+			Enumeration<?> entries = zip.getEntries();
+			while (entries.hasMoreElements()) {
+				ZipEntry e = (ZipEntry) entries.nextElement();
+				if (!filter.accept(e.getName())) {
+					stats.filtered++;
+					continue;
+				}
+				File f = target(dir, e.getName());
+				if (e.isDirectory()) {
+					f.mkdirs();
+					continue;
+				}
+				String fingerprint = ExtractionManifest.zipFingerprint(
+						e.getSize(), e.getCrc());
+				manifest.record(e.getName(), fingerprint);
+				if (incremental
+						&& manifest.isUnchanged(e.getName(), fingerprint, f,
+								e.getSize(), e.getTime())) {
+					stats.skipped++;
+					files.remove(e.getName());
+					continue;
+				}
+				files.remove(e.getName());
+				files.put(e.getName(), e);
+			}
+			unzipFiles(zip, dir, new ArrayList<ZipEntry>(files.values()));
+			stats.written += files.size();
+		} finally {
+			zip.close();
+			if (tmp != null && !tmp.delete()) {
+				LOGGER.log(FINE, "Unable to delete " + tmp);
+			}
+		}
+	}
+
+	/**
+	 * Writes the given file entries of a zip archive. {@link ZipFile} reads
+	 * the archive under a lock but inflates outside of it, so the entries are
+	 * spread over a worker pool sized to the cores of the node, largest
+	 * entries first.
+	 * 
+	 * @param zip
+	 *            the zip
+	 * @param dir
+	 *            the workspace
+	 * @param files
+	 *            the file entries to write
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	private static void unzipFiles(final ZipFile zip, final File dir,
+			List<ZipEntry> files) throws IOException, InterruptedException {
+		int threads = Math.min(Runtime.getRuntime().availableProcessors(),
+				files.size());
+		if (threads <= 1) {
+			for (ZipEntry e : files) {
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+				unzipFile(zip, dir, e);
+			}
+			return;
+		}
+		Collections.sort(files, new Comparator<ZipEntry>() {
+			public int compare(ZipEntry a, ZipEntry b) {
+				long d = b.getCompressedSize() - a.getCompressedSize();
+				return d < 0 ? -1 : d > 0 ? 1 : 0;
+			}
+		});
+		ExecutorService executor = Executors.newFixedThreadPool(threads,
+				new DaemonThreadFactory());
+		CompletionService<Void> completion = new ExecutorCompletionService<Void>(
+				executor);
+		try {
+			for (final ZipEntry e : files) {
+				completion.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						unzipFile(zip, dir, e);
+						return null;
+					}
+				});
+			}
+			for (int i = 0; i < files.size(); i++) {
+				try {
+					completion.take().get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof IOException) {
+						throw (IOException) cause;
+					}
+					if (cause instanceof InterruptedException) {
+						throw (InterruptedException) cause;
+					}
+					throw new IOException("Unable to extract " + zip + " : "
+							+ cause);
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Writes a file entry of a zip archive.
+	 * 
+	 * @param zip
+	 *            the zip
+	 * @param dir
+	 *            the workspace
+	 * @param e
+	 *            the entry
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	private static void unzipFile(ZipFile zip, File dir, ZipEntry e)
+			throws IOException, InterruptedException {
+		File f = target(dir, e.getName());
+		InputStream entry = zip.getInputStream(e);
+		try {
+			copy(entry, f);
+		} finally {
+			entry.close();
+		}
+		finish(f, e.getTime(), e.getUnixMode());
+	}
+
+	/**
+	 * Extracts a tar archive as a pipeline of three stages connected by
+	 * bounded buffers: reading the archive from the network or the disk,
+	 * decompressing and parsing the tar entries, and writing the files. Each
+	 * stage runs on its own thread, so a slow network, a slow decompressor
+	 * and a slow disk overlap instead of adding up.
+	 * 
+	 * @param dir
+	 *            the workspace
+	 * @param manifest
+	 *            the manifest
+	 * @param stats
+	 *            the stats
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	private void untar(File dir, ExtractionManifest manifest, Stats stats)
+			throws IOException, InterruptedException {
+		// the stream is preferred over the file, so a digest computed by the
+		// caller is computed on the same pass
+		InputStream raw = new ReadAheadInputStream(in != null ? in
+				: new FileInputStream(archive), BUFFER_SIZE, PIPELINE_DEPTH);
+		AsyncFileWriter writer = new AsyncFileWriter(PIPELINE_DEPTH);
+		TarInputStream t = null;
+		boolean done = false;
+		try {
+			t = new TarInputStream(decompress(raw));
+			byte[] buffer = new byte[BUFFER_SIZE];
+			TarEntry te;
+			while ((te = t.getNextEntry()) != null) {
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+				if (!filter.accept(te.getName())) {
+					// the entry is skipped by the next getNextEntry()
+					stats.filtered++;
+					continue;
+				}
+				File f = target(dir, te.getName());
+				if (te.isDirectory()) {
+					f.mkdirs();
+					continue;
+				}
+				File parent = f.getParentFile();
+				if (parent != null) {
+					parent.mkdirs();
+				}
+				if (te.isSymbolicLink()) {
+					Util.createSymlink(parent, te.getLinkName(), f.getName(),
+							TaskListener.NULL);
+					stats.written++;
+					continue;
+				}
+				long time = te.getModTime().getTime();
+				String fingerprint = ExtractionManifest.tarFingerprint(
+						te.getSize(), time);
+				manifest.record(te.getName(), fingerprint);
+				if (incremental
+						&& manifest.isUnchanged(te.getName(), fingerprint, f,
+								te.getSize(), time)) {
+					stats.skipped++;
+					continue;
+				}
+				writer.open(f);
+				int n;
+				while ((n = t.read(buffer)) != -1) {
+					writer.write(buffer, 0, n);
+				}
+				writer.close(time, te.getMode());
+				stats.written++;
+			}
+			writer.finish();
+			done = true;
+		} finally {
+			if (!done) {
+				writer.abort();
+			}
+			if (t != null) {
+				t.close();
+			} else {
+				raw.close();
+			}
+		}
+	}
+
+	/**
+	 * Wraps the archive in the decompressor of its type.
+	 * 
+	 * @param raw
+	 *            the compressed stream
+	 * @return the uncompressed tar stream
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private InputStream decompress(InputStream raw) throws IOException {
+		switch (type) {
+		case TAR_GZ:
+			return new GZIPInputStream(raw, BUFFER_SIZE);
+		case TAR_XZ:
+			return new XZInputStream(raw);
+		case TAR_BZ2:
+			// the bzip2 decoder expects the stream after the "BZ" magic
+			if (raw.read() != 'B' || raw.read() != 'Z') {
+				throw new IOException(fileName + " is not a bzip2 file");
+			}
+			return new CBZip2InputStream(raw);
+		case TAR_ZST:
+			return new ZstdInputStream(raw);
+		default:
+			return raw;
+		}
+	}
+
+	/**
+	 * Resolves the file of an entry, refusing entries that would end up
+	 * outside of the workspace.
+	 * 
+	 * @param dir
+	 *            the workspace
+	 * @param name
+	 *            the entry name
+	 * @return the file
+	 * @throws IOException
+	 *             if the entry points outside of the workspace
+	 */
+	static File target(File dir, String name) throws IOException {
+		File f = new File(dir, name);
+		if (name.contains("..")
+				&& !f.getCanonicalPath().startsWith(
+						dir.getCanonicalPath() + File.separator)) {
+			throw new IOException("Entry " + name
+					+ " is outside of the workspace");
+		}
+		return f;
+	}
+
+	/**
+	 * Writes a stream to a file, creating its parent directories. An existing
+	 * file is replaced rather than overwritten, so files hardlinked from the
+	 * {@link TreeStore} are never written through.
+	 * 
+	 * @param from
+	 *            the stream, left open
+	 * @param f
+	 *            the file
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	static void copy(InputStream from, File f) throws IOException {
+		File parent = f.getParentFile();
+		if (parent != null) {
+			parent.mkdirs();
+		}
+		if (f.exists() && !f.delete()) {
+			throw new IOException("Unable to replace " + f);
+		}
+		OutputStream out = new FileOutputStream(f);
+		try {
+			IOUtils.copy(from, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Sets the modification time and permissions of an extracted file.
+	 * 
+	 * @param f
+	 *            the file
+	 * @param time
+	 *            the modification time
+	 * @param mode
+	 *            the unix mode with the setuid, setgid and sticky bits, 0 if
+	 *            unknown
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	static void finish(File f, long time, int mode) throws IOException,
+			InterruptedException {
+		f.setLastModified(time);
+		if ((mode & 07777) != 0 && File.separatorChar == '/') {
+			new FilePath(f).chmod(mode & 07777);
+		}
+	}
+
+	/**
+	 * What an extraction did.
+	 */
+	static final class Stats implements Serializable {
+
+		/** The Constant serialVersionUID. */
+		private static final long serialVersionUID = 1L;
+
+		/** The number of entries written. */
+		private int written;
+
+		/** The number of unchanged entries skipped. */
+		private int skipped;
+
+		/** The number of files of removed entries deleted. */
+		private int deleted;
+
+		/** The number of entries left out by the include/exclude patterns. */
+		private int filtered;
+
+		/**
+		 * Gets the number of entries written.
+		 * 
+		 * @return the written
+		 */
+		int getWritten() {
+			return written;
+		}
+
+		/**
+		 * Gets the number of unchanged entries skipped.
+		 * 
+		 * @return the skipped
+		 */
+		int getSkipped() {
+			return skipped;
+		}
+
+		/**
+		 * Gets the number of files of removed entries deleted.
+		 * 
+		 * @return the deleted
+		 */
+		int getDeleted() {
+			return deleted;
+		}
+
+		/**
+		 * Gets the number of entries left out by the include/exclude
+		 * patterns.
+		 * 
+		 * @return the filtered
+		 */
+		int getFiltered() {
+			return filtered;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return "Extracted " + written + " entries, skipped " + skipped
+					+ " unchanged, deleted " + deleted + ", filtered out "
+					+ filtered;
+		}
+	}
+}
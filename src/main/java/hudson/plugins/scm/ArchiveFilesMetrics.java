@@ -0,0 +1,494 @@
+package hudson.plugins.scm;
+
+import hudson.Extension;
+import hudson.model.Hudson;
+import hudson.model.RootAction;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.kohsuke.stapler.StaplerProxy;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Aggregates the {@link TransferMetrics} of all checkouts since the master
+ * started, by server and by node, so that slow mirrors and slow nodes stand
+ * out. The metrics are shown at <tt>/archive-files-metrics</tt> and are
+ * available as plain text at <tt>/archive-files-metrics/text</tt> for
+ * monitoring systems. Both are only shown to administrators, since they
+ * name the servers, nodes and jobs of the master.
+ */
+@Extension
+public class ArchiveFilesMetrics implements RootAction, StaplerProxy {
+
+	/** The upper bounds of the throughput buckets in bytes per second. */
+	static final long[] THROUGHPUT_BUCKETS = { 100L * 1024, 1024L * 1024,
+			10L * 1024 * 1024, 100L * 1024 * 1024, Long.MAX_VALUE };
+
+	/** The upper bounds of the duration buckets in millis. */
+	static final long[] DURATION_BUCKETS = { 1000, 10 * 1000, 60 * 1000,
+			5 * 60 * 1000, Long.MAX_VALUE };
+
+	/** The counters by server. */
+	private static final Map<String, Counters> BY_SERVER = new TreeMap<String, Counters>();
+
+	/** The counters by node. */
+	private static final Map<String, Counters> BY_NODE = new TreeMap<String, Counters>();
+
+	/**
+	 * Records the checkout of a url.
+	 * 
+	 * @param url
+	 *            the url
+	 * @param node
+	 *            the name of the node, empty for the master
+	 * @param metrics
+	 *            the metrics
+	 */
+	static synchronized void record(String url, String node,
+			TransferMetrics metrics) {
+		counters(BY_SERVER, server(url)).add(metrics);
+		counters(BY_NODE, nodeName(node)).add(metrics);
+	}
+
+	/**
+	 * Records a failed checkout of a url.
+	 * 
+	 * @param url
+	 *            the url
+	 * @param node
+	 *            the name of the node, empty for the master
+	 */
+	static synchronized void recordFailure(String url, String node) {
+		counters(BY_SERVER, server(url)).failures++;
+		counters(BY_NODE, nodeName(node)).failures++;
+	}
+
+	/**
+	 * Gets the counters of a key, creating them if needed.
+	 * 
+	 * @param map
+	 *            the map
+	 * @param key
+	 *            the key
+	 * @return the counters
+	 */
+	private static Counters counters(Map<String, Counters> map, String key) {
+		Counters c = map.get(key);
+		if (c == null) {
+			c = new Counters(key);
+			map.put(key, c);
+		}
+		return c;
+	}
+
+	/**
+	 * Gets the server part of a url.
+	 * 
+	 * @param url
+	 *            the url
+	 * @return the protocol, host and port
+	 */
+	static String server(String url) {
+		try {
+			URL u = new URL(url);
+			return u.getProtocol() + "://" + u.getHost()
+					+ (u.getPort() < 0 ? "" : ":" + u.getPort());
+		} catch (MalformedURLException e) {
+			return url;
+		}
+	}
+
+	/**
+	 * Gets the display name of a node.
+	 * 
+	 * @param node
+	 *            the node name, empty for the master
+	 * @return the display name
+	 */
+	private static String nodeName(String node) {
+		return node == null || node.length() == 0 ? "master" : node;
+	}
+
+	/**
+	 * Gets the counters by server.
+	 * 
+	 * @return a snapshot of the counters
+	 */
+	public List<Counters> getServers() {
+		return snapshot(BY_SERVER);
+	}
+
+	/**
+	 * Gets the counters by node.
+	 * 
+	 * @return a snapshot of the counters
+	 */
+	public List<Counters> getNodes() {
+		return snapshot(BY_NODE);
+	}
+
+	/**
+	 * Gets the downloads currently running and waiting, by server.
+	 * 
+	 * @return a snapshot of the download queues
+	 */
+	public List<DownloadScheduler.Queue> getQueues() {
+		return DownloadScheduler.get().getQueues();
+	}
+
+	/**
+	 * Copies counters so they can be rendered outside of the lock.
+	 * 
+	 * @param map
+	 *            the map
+	 * @return the copies
+	 */
+	private static List<Counters> snapshot(Map<String, Counters> map) {
+		synchronized (ArchiveFilesMetrics.class) {
+			List<Counters> list = new ArrayList<Counters>();
+			for (Counters c : map.values()) {
+				list.add(c.copy());
+			}
+			return Collections.unmodifiableList(list);
+		}
+	}
+
+	/**
+	 * Writes the metrics as plain text, one <tt>name{label} value</tt> line
+	 * per value.
+	 * 
+	 * @param req
+	 *            the req
+	 * @param rsp
+	 *            the rsp
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void doText(StaplerRequest req, StaplerResponse rsp)
+			throws IOException {
+		rsp.setContentType("text/plain;charset=UTF-8");
+		PrintWriter w = rsp.getWriter();
+		for (Counters c : getServers()) {
+			c.print(w, "server");
+		}
+		for (Counters c : getNodes()) {
+			c.print(w, "node");
+		}
+		for (DownloadScheduler.Queue q : getQueues()) {
+			String l = "{server=\"" + q.getServer() + "\"} ";
+			w.println("archive_files_downloads_running" + l
+					+ q.getRunning().size());
+			w.println("archive_files_downloads_waiting" + l
+					+ q.getWaiting().size());
+		}
+		w.flush();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see hudson.model.Action#getIconFileName()
+	 */
+	public String getIconFileName() {
+		// reachable by url only, the metrics are not linked from the menu
+		return null;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see hudson.model.Action#getDisplayName()
+	 */
+	public String getDisplayName() {
+		return "Archive Files SCM Metrics";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see hudson.model.Action#getUrlName()
+	 */
+	public String getUrlName() {
+		return "archive-files-metrics";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.kohsuke.stapler.StaplerProxy#getTarget()
+	 */
+	public Object getTarget() {
+		// checked before the page or the text output is rendered
+		Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+		return this;
+	}
+
+	/**
+	 * The counters of one server or node.
+	 */
+	public static final class Counters {
+
+		/** The server or node. */
+		private final String name;
+
+		/** The number of checkouts. */
+		private long checkouts;
+
+		/** The number of checkouts that found the workspace up to date. */
+		private long upToDate;
+
+		/** The number of archives taken from the node archive cache. */
+		private long cacheHits;
+
+		/** The number of failed checkouts. */
+		private long failures;
+
+		/** The number of bytes downloaded. */
+		private long bytes;
+
+		/** The time spent downloading in millis. */
+		private long downloadMillis;
+
+		/** The time spent extracting in millis. */
+		private long extractMillis;
+
+		/** The sum of the times to the first byte in millis. */
+		private long firstByteMillis;
+
+		/** The number of downloads with a known time to the first byte. */
+		private long firstByteCount;
+
+		/** The downloads by throughput bucket. */
+		private long[] throughput = new long[THROUGHPUT_BUCKETS.length];
+
+		/** The checkouts by duration bucket. */
+		private long[] duration = new long[DURATION_BUCKETS.length];
+
+		/**
+		 * Instantiates new counters.
+		 * 
+		 * @param name
+		 *            the server or node
+		 */
+		Counters(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Adds the metrics of a checkout.
+		 * 
+		 * @param m
+		 *            the metrics
+		 */
+		void add(TransferMetrics m) {
+			checkouts++;
+			duration[bucket(DURATION_BUCKETS, m.getMillis())]++;
+			if (m.isUpToDate()) {
+				upToDate++;
+				return;
+			}
+			if (m.isCacheHit()) {
+				cacheHits++;
+			}
+			extractMillis += m.getExtractMillis();
+			if (m.getBytes() > 0) {
+				bytes += m.getBytes();
+				downloadMillis += m.getDownloadMillis();
+				throughput[bucket(THROUGHPUT_BUCKETS, m.getBytesPerSecond())]++;
+			}
+			if (m.getFirstByteMillis() >= 0) {
+				firstByteMillis += m.getFirstByteMillis();
+				firstByteCount++;
+			}
+		}
+
+		/**
+		 * Finds the bucket of a value.
+		 * 
+		 * @param bounds
+		 *            the upper bounds of the buckets
+		 * @param value
+		 *            the value
+		 * @return the index of the bucket
+		 */
+		private static int bucket(long[] bounds, long value) {
+			int i = 0;
+			while (value >= bounds[i] && i < bounds.length - 1) {
+				i++;
+			}
+			return i;
+		}
+
+		/**
+		 * Copies the counters.
+		 * 
+		 * @return the copy
+		 */
+		Counters copy() {
+			Counters c = new Counters(name);
+			c.checkouts = checkouts;
+			c.upToDate = upToDate;
+			c.cacheHits = cacheHits;
+			c.failures = failures;
+			c.bytes = bytes;
+			c.downloadMillis = downloadMillis;
+			c.extractMillis = extractMillis;
+			c.firstByteMillis = firstByteMillis;
+			c.firstByteCount = firstByteCount;
+			c.throughput = throughput.clone();
+			c.duration = duration.clone();
+			return c;
+		}
+
+		/**
+		 * Prints the counters as plain text.
+		 * 
+		 * @param w
+		 *            the writer
+		 * @param label
+		 *            the label name
+		 */
+		void print(PrintWriter w, String label) {
+			String l = "{" + label + "=\"" + name + "\"";
+			w.println("archive_files_checkouts" + l + "} " + checkouts);
+			w.println("archive_files_up_to_date" + l + "} " + upToDate);
+			w.println("archive_files_cache_hits" + l + "} " + cacheHits);
+			w.println("archive_files_failures" + l + "} " + failures);
+			w.println("archive_files_bytes" + l + "} " + bytes);
+			w.println("archive_files_download_millis" + l + "} "
+					+ downloadMillis);
+			w.println("archive_files_extract_millis" + l + "} "
+					+ extractMillis);
+			w.println("archive_files_first_byte_millis_avg" + l + "} "
+					+ getAverageFirstByteMillis());
+			for (int i = 0; i < throughput.length; i++) {
+				w.println("archive_files_throughput_bucket" + l + ",le=\""
+						+ bound(THROUGHPUT_BUCKETS[i]) + "\"} "
+						+ throughput[i]);
+			}
+			for (int i = 0; i < duration.length; i++) {
+				w.println("archive_files_duration_bucket" + l + ",le=\""
+						+ bound(DURATION_BUCKETS[i]) + "\"} " + duration[i]);
+			}
+		}
+
+		/**
+		 * Formats the upper bound of a bucket.
+		 * 
+		 * @param bound
+		 *            the bound
+		 * @return the formatted bound
+		 */
+		private static String bound(long bound) {
+			return bound == Long.MAX_VALUE ? "+Inf" : String.valueOf(bound);
+		}
+
+		/**
+		 * Gets the server or node.
+		 * 
+		 * @return the name
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Gets the number of checkouts.
+		 * 
+		 * @return the checkouts
+		 */
+		public long getCheckouts() {
+			return checkouts;
+		}
+
+		/**
+		 * Gets the number of checkouts that found the workspace up to date.
+		 * 
+		 * @return the up to date checkouts
+		 */
+		public long getUpToDate() {
+			return upToDate;
+		}
+
+		/**
+		 * Gets the number of archives taken from the node archive cache.
+		 * 
+		 * @return the cache hits
+		 */
+		public long getCacheHits() {
+			return cacheHits;
+		}
+
+		/**
+		 * Gets the number of failed checkouts.
+		 * 
+		 * @return the failures
+		 */
+		public long getFailures() {
+			return failures;
+		}
+
+		/**
+		 * Gets the number of bytes downloaded.
+		 * 
+		 * @return the bytes
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * Gets the average download throughput.
+		 * 
+		 * @return the bytes per second
+		 */
+		public long getBytesPerSecond() {
+			return bytes * 1000 / Math.max(downloadMillis, 1);
+		}
+
+		/**
+		 * Gets the time spent extracting.
+		 * 
+		 * @return the millis
+		 */
+		public long getExtractMillis() {
+			return extractMillis;
+		}
+
+		/**
+		 * Gets the average time to the first byte.
+		 * 
+		 * @return the millis, 0 if unknown
+		 */
+		public long getAverageFirstByteMillis() {
+			return firstByteCount == 0 ? 0 : firstByteMillis / firstByteCount;
+		}
+
+		/**
+		 * Gets the downloads by throughput bucket, slowest first.
+		 * 
+		 * @return the counts
+		 */
+		public long[] getThroughputHistogram() {
+			return throughput.clone();
+		}
+
+		/**
+		 * Gets the checkouts by duration bucket, fastest first.
+		 * 
+		 * @return the counts
+		 */
+		public long[] getDurationHistogram() {
+			return duration.clone();
+		}
+	}
+}
@@ -1,7 +1,5 @@
 package hudson.plugins.scm;
 
-import static hudson.FilePath.TarCompression.GZIP;
-import static hudson.FilePath.TarCompression.NONE;
 import static java.util.logging.Level.ALL;
 import static java.util.logging.Level.INFO;
 import hudson.Extension;
@@ -13,37 +11,49 @@ import hudson.model.TaskListener;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.Hudson;
+import hudson.model.Item;
+import hudson.model.Node;
 import hudson.scm.ChangeLogParser;
 import hudson.scm.NullChangeLogParser;
 import hudson.scm.PollingResult;
 import hudson.scm.SCMDescriptor;
 import hudson.scm.SCMRevisionState;
+import hudson.remoting.VirtualChannel;
 import hudson.scm.SCM;
+import hudson.triggers.SCMTrigger;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.FormValidation;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.Authenticator;
+import java.net.MalformedURLException;
 import java.net.PasswordAuthentication;
 import java.net.URL;
-import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
 
 import net.sf.json.JSONObject;
 
-import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.io.input.CountingInputStream;
-import org.jvnet.robust_http_client.RetryableHttpStream;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 
 //import sun.net.www.protocol.http.AuthCacheImpl;
 //import sun.net.www.protocol.http.AuthCacheValue;
@@ -59,10 +69,11 @@ import org.kohsuke.stapler.StaplerRequest;
  * 
  * - supports pooling using the same above logic
  * 
- * - supports extraction of zip,tar,gz,jar,war,ear files
+ * - supports extraction of zip,tar,gz,tgz,tar.xz,tar.bz2,tar.zst,jar,war,ear
+ * files
  * 
  * - detects type of archive file based on file name (i.e URL must end with
- * zip,tar,tar.gz,jar,war,ear)
+ * zip,tar,tar.gz,tgz,tar.xz,tar.bz2,tar.zst,jar,war,ear)
  * 
  * - supports basic authentication
  * 
@@ -88,10 +99,44 @@ public class ArchiveFilesSCM extends hudson.scm.SCM {
 	/** The clear workspace. */
 	private final boolean clearWorkspace;
 
+	/** The maximum number of urls downloaded at the same time. */
+	private final int maxConcurrentDownloads;
+
+	/** Whether urls are downloaded on the node that owns the workspace. */
+	private final boolean downloadOnNode;
+
+	/** Whether unchanged archive entries are skipped during extraction. */
+	private final boolean incrementalExtraction;
+
+	/** Whether the old contents of the workspace are deleted in the background. */
+	private final boolean clearInBackground;
+
+	/**
+	 * Whether the urls polling finds changed are downloaded into the node
+	 * archive cache before the build starts.
+	 */
+	private final boolean prefetch;
+
 	/** The Constant LOGGER. */
 	private static final Logger LOGGER = Logger.getLogger(ArchiveFilesSCM.class
 			.getName());
 
+	/** The threads probing the urls of polled jobs, shared by all jobs. */
+	private static final ExecutorService PROBES = Executors
+			.newCachedThreadPool(new DaemonThreadFactory());
+
+	/** The directory of the archive cache, relative to the node root. */
+	static final String CACHE_DIR = "archive-files-scm-cache";
+
+	/** The directory of the extracted-tree store, relative to the node root. */
+	static final String TREE_STORE_DIR = "archive-files-scm-trees";
+
+	/**
+	 * The directory of the previous versions delta downloads start from,
+	 * relative to the node root.
+	 */
+	static final String DELTA_DIR = "archive-files-scm-delta";
+
 	/**
 	 * Instantiates a new archive files scm.
 	 * 
@@ -119,14 +164,71 @@ public class ArchiveFilesSCM extends hudson.scm.SCM {
 	 */
 	public ArchiveFilesSCM(String[] yourls, boolean clear, String[] username,
 			String[] password) {
+		this(yourls, clear, username, password, null, null, null, 1, false,
+				false, false, false);
+	}
+
+	/**
+	 * Instantiates a new archive files scm.
+	 * 
+	 * @param u
+	 *            the yourls - urls
+	 * @param clear
+	 *            the clear -clear workspace flag
+	 * @param username
+	 *            the username - username
+	 * @param password
+	 *            the password - password
+	 * @param includes
+	 *            the includes - include patterns of each url
+	 * @param excludes
+	 *            the excludes - exclude patterns of each url
+	 * @param checksums
+	 *            the checksums - expected SHA-256 or sidecar url of each url
+	 * @param maxConcurrentDownloads
+	 *            the maximum number of urls downloaded at the same time
+	 * @param downloadOnNode
+	 *            the download on node flag
+	 * @param incrementalExtraction
+	 *            the incremental extraction flag
+	 * @param clearInBackground
+	 *            the clear in background flag
+	 * @param prefetch
+	 *            the prefetch flag
+	 */
+	public ArchiveFilesSCM(String[] yourls, boolean clear, String[] username,
+			String[] password, String[] includes, String[] excludes,
+			String[] checksums, int maxConcurrentDownloads,
+			boolean downloadOnNode, boolean incrementalExtraction,
+			boolean clearInBackground, boolean prefetch) {
 		LOGGER.log(ALL, "ArchiveFilesSCM() Enter >>>");
 		for (int i = 0; i < yourls.length; i++) {
-			urls.add(new URLTuple(yourls[i], username[i], password[i]));
+			urls.add(new URLTuple(yourls[i], username[i], password[i],
+					valueAt(includes, i), valueAt(excludes, i), valueAt(
+							checksums, i)));
 		}
 		this.clearWorkspace = clear;
+		this.maxConcurrentDownloads = maxConcurrentDownloads;
+		this.downloadOnNode = downloadOnNode;
+		this.incrementalExtraction = incrementalExtraction;
+		this.clearInBackground = clearInBackground;
+		this.prefetch = prefetch;
 		LOGGER.log(ALL, "ArchiveFilesSCM() Exit >>>");
 	}
 
+	/**
+	 * Gets a value of a repeated form field.
+	 * 
+	 * @param values
+	 *            the values, null if the field was not submitted
+	 * @param i
+	 *            the index
+	 * @return the value, null if there is none
+	 */
+	private static String valueAt(String[] values, int i) {
+		return values != null && i < values.length ? values[i] : null;
+	}
+
 	/**
 	 * Checks if is clear workspace.
 	 * 
@@ -136,6 +238,57 @@ public class ArchiveFilesSCM extends hudson.scm.SCM {
 		return clearWorkspace;
 	}
 
+	/**
+	 * Checks if the old contents of the workspace are moved to the trash of
+	 * the node and deleted in the background instead of before the download.
+	 * 
+	 * @return true, if is clear in background
+	 */
+	public boolean isClearInBackground() {
+		return clearInBackground;
+	}
+
+	/**
+	 * Gets the maximum number of urls downloaded at the same time. Jobs
+	 * configured before this setting existed download one url at a time.
+	 * 
+	 * @return the maximum number of concurrent downloads, at least 1
+	 */
+	public int getMaxConcurrentDownloads() {
+		return maxConcurrentDownloads < 1 ? 1 : maxConcurrentDownloads;
+	}
+
+	/**
+	 * Checks if urls are downloaded and extracted on the node that owns the
+	 * workspace instead of being piped through the master.
+	 * 
+	 * @return true, if is download on node
+	 */
+	public boolean isDownloadOnNode() {
+		return downloadOnNode;
+	}
+
+	/**
+	 * Checks if unchanged archive entries are skipped during extraction and
+	 * entries removed from the archive are deleted from the workspace.
+	 * 
+	 * @return true, if is incremental extraction
+	 */
+	public boolean isIncrementalExtraction() {
+		return incrementalExtraction;
+	}
+
+	/**
+	 * Checks if the urls polling finds changed are downloaded into the
+	 * archive cache of the node the job last ran on while the build waits in
+	 * the queue.
+	 * 
+	 * @return true, if is prefetch
+	 */
+	public boolean isPrefetch() {
+		return prefetch;
+	}
+
 	/**
 	 * Gets the urls.
 	 * 
@@ -146,7 +299,10 @@ public class ArchiveFilesSCM extends hudson.scm.SCM {
 	}
 
 	/**
-	 * This method downloads the file and also extracts it.
+	 * This method downloads the file and also extracts it. Up to
+	 * {@link #getMaxConcurrentDownloads()} urls are downloaded and extracted
+	 * at the same time; when one of them fails the remaining downloads are
+	 * cancelled.
 	 * 
 	 * @see hudson.scm.SCM#checkout(hudson.model.AbstractBuild, hudson.Launcher,
 	 *      hudson.FilePath, hudson.model.BuildListener, java.io.File)
@@ -157,144 +313,86 @@ public class ArchiveFilesSCM extends hudson.scm.SCM {
 			throws IOException, InterruptedException {
 		LOGGER.log(ALL, "checkout() Enter >>>");
 
-		if (clearWorkspace) {
-			workspace.deleteContents();
-			listener.getLogger().println("Cleared workspace");
-		}
 		long start = System.currentTimeMillis();
 		LastModifiedDateAction action = new LastModifiedDateAction(build);
 		Hudson h = Hudson.getInstance(); // this code might run on slaves
 
 		ProxyConfiguration proxyConfiguration = h != null ? h.proxy : null;
-		String proxyUserName = null;
-		String proxyPassword = null;
-		if (proxyConfiguration != null
-				&& proxyConfiguration.getUserName() != null
-				&& proxyConfiguration.getUserName().trim().length() > 0) {
-			proxyUserName = proxyConfiguration.getUserName();
-			proxyPassword = proxyConfiguration.getPassword();
+
+		// one call to the node of the workspace, whatever the number of urls
+		List<String> fileNames = new ArrayList<String>();
+		for (URLTuple tuple : urls) {
+			fileNames.add(fileName(tuple.getUrlString()));
+		}
+		String trashDir = trashDir(build);
+		WorkspaceState state = WorkspaceState.read(workspace, clearWorkspace,
+				trashDir, fileNames);
+		if (clearWorkspace && trashDir != null) {
+			listener.getLogger().println(
+					"Moved workspace contents to " + trashDir);
+		} else if (clearWorkspace) {
+			listener.getLogger().println("Cleared workspace");
 		}
 
+		FetchOptions options = fetchOptions(build.getBuiltOn(), workspace
+				.isRemote());
+		if (options.getCacheDir() != null) {
+			listener.getLogger().println(
+					"Using node archive cache " + options.getCacheDir());
+		}
+		if (options.getTreeStoreDir() != null) {
+			listener.getLogger().println(
+					"Using node extracted-tree store "
+							+ options.getTreeStoreDir());
+		}
+
+		int parallelism = Math.min(getMaxConcurrentDownloads(), urls.size());
+		List<UrlCheckout> tasks = new ArrayList<UrlCheckout>();
 		for (URLTuple tuple : urls) {
-			String urlString = tuple.getUrlString();
-			InputStream is = null;
-			try {
-				URLConnection connection = null;
-				listener.getLogger().println("File URL : " + urlString);
-				URL url = new URL(urlString);
+			tasks.add(new UrlCheckout(tuple, workspace, build, listener,
+					action, proxyConfiguration, options, state
+							.get(fileName(tuple.getUrlString())),
+					parallelism > 1));
+		}
 
-				if (proxyConfiguration == null) {
-					listener.getLogger().println("Proxy is not configured");
-					connection = url.openConnection();
-				} else {
-					listener.getLogger().println(
-							"Proxy is configured"
-									+ "\n"
-									+ ProxyConfiguration.getXmlFile()
-											.asString());
-					// Proxy should be used when it is configured in Jenkins
-					// global configuration
-					connection = url.openConnection(proxyConfiguration
-							.createProxy());
-					// setting authentication parameters for proxy.
-					// Authenticator class is not used here because of two
-					// reasons. The actual URL to download file may be secured
-					// and we can not set two Authenticators at
-					// the same time using Authenticator.setDefault and the
-					// second reason is username/password caching
-					// bug in JDK.
-					// (say if user gives incorrect username/password and when
-					// validation is performed, that
-					// username/password cached and even
-					// if user gives correct password next time
-					// java.net.URLConnection uses cached password only.
-					// User name and password is not cached when it is set as
-					// request parameter.)
-					// http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6626700
-					if (proxyUserName != null) {
-						listener.getLogger()
-								.println(
-										"User Name and Password is configured to connect through proxy");
-						connection.setRequestProperty(
-								"Proxy-Authorization",
-								"Basic "
-										+ new String(Base64
-												.encodeBase64((proxyUserName
-														+ ":" + proxyPassword)
-														.getBytes())));
-					}
-				}
-				// Do not use cached file
-				connection.setUseCaches(false);
-
-				// Saving last modified time stamp for later use while polling
-				// for source code change
-				action.setLastModified(urlString, connection.getLastModified());
-
-				long sourceLastUpdatedTimestamp = connection.getLastModified();
-				File f = new File(url.getPath());
-				String fileName = f.getName();
-				// creating a timestamp file which will be used to see if source
-				// file is updated since last download
-				FilePath timestamp = workspace.child("." + fileName
-						+ "-timestamp");
-
-				if (!workspace.exists()) {
-					workspace.mkdirs();
-				}
-				if (timestamp.exists()
-						&& sourceLastUpdatedTimestamp == timestamp
-								.lastModified()) {
-					listener.getLogger().println("File is up to date");
-				} else {
-					// for HTTP downloads, enable automatic retry for added
-					// resilience
-					is = new CountingInputStream(url.getProtocol().equals(
-							"http") ? new RetryableHttpStream(url)
-							: connection.getInputStream());
-
-					if (url.toExternalForm().endsWith(".zip")
-							|| url.toExternalForm().endsWith(".jar")
-							|| url.toExternalForm().endsWith(".war")
-							|| url.toExternalForm().endsWith(".ear")) {
-						listener.getLogger().println(
-								"Compression type is zip/jar/war");
-						workspace.unzipFrom(is);
-					} else if (url.toExternalForm().endsWith(".gz")) {
-						listener.getLogger().println("Compression type is gz");
-						workspace.untarFrom(is, GZIP);
-					} else if (url.toExternalForm().endsWith(".tar")) {
-						listener.getLogger().println("Compression type is tar");
-						workspace.untarFrom(is, NONE);
-					} else {
-						listener.getLogger()
-								.println(
-										"Compression type unknow. Hence directly downloding the file");
-						workspace.child(fileName).copyFrom(is);
-					}
-					listener.getLogger().println(
-							"Downloaded " + urlString + " to "
-									+ workspace.toURI());
-					// update the last modified timestamp of timestamp file
-					timestamp.touch(sourceLastUpdatedTimestamp);
+		UrlCheckout failed = null;
+		if (parallelism <= 1) {
+			for (UrlCheckout task : tasks) {
+				try {
+					task.call();
+				} catch (InterruptedException e) {
+					throw e;
+				} catch (Exception e) {
+					failed = task;
+					reportFailure(listener, task, e);
+					break;
 				}
-
-			} catch (Exception e) {
-				listener.error("Unable to copy " + urlString + "\n");
-				e.printStackTrace(listener.getLogger());
-				LOGGER.log(ALL, " checkout() Exit >>>");
-				return false;
-			} finally {
-				if (is != null)
-					is.close();
 			}
-
-			this.createEmptyChangeLog(changelogFile, listener, "log");
+		} else {
+			listener.getLogger().println(
+					"Downloading " + tasks.size() + " files, " + parallelism
+							+ " at a time");
+			failed = checkoutInParallel(tasks, parallelism, listener);
+		}
+		// again one call, also when a download failed
+		Map<String, WorkspaceState.Entry> updates = new HashMap<String, WorkspaceState.Entry>();
+		for (UrlCheckout task : tasks) {
+			task.collectUpdate(updates);
+		}
+		WorkspaceState.write(workspace, updates);
+		if (failed != null) {
+			LOGGER.log(ALL, " checkout() Exit >>>");
+			return false;
 		}
+
+		this.createEmptyChangeLog(changelogFile, listener, "log");
 		// Adding LastModificationDateAction to build for later use while
 		// pooling. This is optimized code as
 		// calcRevisionsFromBuild method will not be invoked
 		build.addAction(action);
+		// Jenkins keeps the state of the latest build in memory as the
+		// polling baseline
+		build.addAction(ArchiveRevisionState.of(urls, action));
 		listener.getLogger().println(
 				"Total time taken to download files in millis: "
 						+ (System.currentTimeMillis() - start));
@@ -303,6 +401,490 @@ public class ArchiveFilesSCM extends hudson.scm.SCM {
 		return true;
 	}
 
+	/**
+	 * Gets the options of the downloads of a build.
+	 * 
+	 * @param node
+	 *            the node the build runs on
+	 * @param remote
+	 *            whether the workspace is on another machine than the master
+	 * @return the options
+	 */
+	private FetchOptions fetchOptions(Node node, boolean remote) {
+		FetchOptions options = new FetchOptions();
+		options.setCache(nodeDir(node, remote, CACHE_DIR, getDescriptor()
+				.getCacheSize() > 0), getDescriptor().getCacheSize());
+		options.setTreeStore(nodeDir(node, remote, TREE_STORE_DIR,
+				getDescriptor().getTreeStoreSize() > 0), getDescriptor()
+				.getTreeStoreSize());
+		options.setTreeStoreHardlinks(getDescriptor().isTreeStoreHardlinks());
+		options.setDeltaDir(nodeDir(node, remote, DELTA_DIR, getDescriptor()
+				.isDeltaDownloads()));
+		options.setCompression(getDescriptor().isTransferCompression());
+		options.setSegments(getDescriptor().getDownloadSegments());
+		options.setIncremental(incrementalExtraction);
+		return options;
+	}
+
+	/**
+	 * Gets a directory of the node the build runs on, such as the archive
+	 * cache or the extracted-tree store. These are only used where the
+	 * archive is extracted, that is when the download happens on the node or
+	 * the workspace is on the master.
+	 * 
+	 * @param node
+	 *            the node
+	 * @param remote
+	 *            whether the workspace is on another machine than the master
+	 * @param name
+	 *            the directory, relative to the node root
+	 * @param enabled
+	 *            whether the directory is used
+	 * @return the directory, null if it is not used
+	 */
+	private String nodeDir(Node node, boolean remote, String name,
+			boolean enabled) {
+		if (!enabled || (remote && !downloadOnNode)) {
+			return null;
+		}
+		FilePath root = node != null ? node.getRootPath() : null;
+		if (root == null) {
+			return null;
+		}
+		return root.child(name).getRemote();
+	}
+
+	/**
+	 * Gets the trash directory of the node the workspace contents are moved
+	 * to when they are deleted in the background.
+	 * 
+	 * @param build
+	 *            the build
+	 * @return the path of the trash directory on the node, null if the
+	 *         contents are deleted before the download
+	 */
+	private String trashDir(AbstractBuild<?, ?> build) {
+		if (!clearWorkspace || !clearInBackground) {
+			return null;
+		}
+		Node node = build.getBuiltOn();
+		FilePath root = node != null ? node.getRootPath() : null;
+		if (root == null) {
+			return null;
+		}
+		return root.child(WorkspaceTrash.TRASH_DIR).getRemote();
+	}
+
+	/**
+	 * Runs the given downloads on a bounded thread pool. The first failure
+	 * aborts every download that is still queued or running, and the
+	 * aborted downloads have stopped, on the master and on the nodes, once
+	 * this returns.
+	 * 
+	 * @param tasks
+	 *            the per url downloads
+	 * @param parallelism
+	 *            the number of downloads that may run at the same time
+	 * @param listener
+	 *            the listener
+	 * @return the download that failed first, or null if all of them
+	 *         succeeded
+	 * @throws InterruptedException
+	 *             if the build is aborted while waiting for the downloads
+	 */
+	private UrlCheckout checkoutInParallel(List<UrlCheckout> tasks,
+			int parallelism, BuildListener listener)
+			throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+				new DaemonThreadFactory());
+		CompletionService<UrlCheckout> completion = new ExecutorCompletionService<UrlCheckout>(
+				executor);
+		Map<Future<UrlCheckout>, UrlCheckout> running = new HashMap<Future<UrlCheckout>, UrlCheckout>();
+		try {
+			for (UrlCheckout task : tasks) {
+				running.put(completion.submit(task), task);
+			}
+			while (!running.isEmpty()) {
+				Future<UrlCheckout> done = completion.take();
+				UrlCheckout task = running.remove(done);
+				try {
+					done.get();
+				} catch (ExecutionException e) {
+					reportFailure(listener, task, e.getCause());
+					return task;
+				}
+			}
+			return null;
+		} finally {
+			// cancels whatever is left after a failure or an abort
+			for (Map.Entry<Future<UrlCheckout>, UrlCheckout> e : running
+					.entrySet()) {
+				e.getKey().cancel(true);
+				e.getValue().abort();
+			}
+			executor.shutdownNow();
+			// the workspace must not change after the checkout returned
+			while (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+				listener.getLogger().println(
+						"Waiting for the downloads to stop");
+			}
+		}
+	}
+
+	/**
+	 * Prints the failure of a download to the build console and counts it in
+	 * the metrics.
+	 * 
+	 * @param listener
+	 *            the listener
+	 * @param task
+	 *            the failed download
+	 * @param e
+	 *            the cause
+	 */
+	private static void reportFailure(BuildListener listener,
+			UrlCheckout task, Throwable e) {
+		listener.error("Unable to copy " + task.getUrlString() + "\n");
+		e.printStackTrace(listener.getLogger());
+		ArchiveFilesMetrics.recordFailure(task.getUrlString(), task.getNode());
+	}
+
+	/**
+	 * Downloads and extracts a single url into the workspace.
+	 */
+	private final class UrlCheckout implements Callable<UrlCheckout> {
+
+		/** The tuple. */
+		private final URLTuple tuple;
+
+		/** The workspace. */
+		private final FilePath workspace;
+
+		/** The name of the node of the workspace, empty for the master. */
+		private final String node;
+
+		/** The build, as shown in the download queues. */
+		private final String owner;
+
+		/** The listener. */
+		private final BuildListener listener;
+
+		/** The action collecting last modified dates. */
+		private final LastModifiedDateAction action;
+
+		/** The fetcher doing the actual download. */
+		private final UrlFetcher fetcher;
+
+		/** The prefix of every console line, empty for sequential downloads. */
+		private final String prefix;
+
+		/** Set once the download started. */
+		private volatile boolean started;
+
+		/** The result, null until the download completed. */
+		private volatile UrlFetcher.Result result;
+
+		/**
+		 * Instantiates a new url checkout.
+		 * 
+		 * @param tuple
+		 *            the tuple
+		 * @param workspace
+		 *            the workspace
+		 * @param build
+		 *            the build
+		 * @param listener
+		 *            the listener
+		 * @param action
+		 *            the action
+		 * @param proxyConfiguration
+		 *            the proxy configuration
+		 * @param options
+		 *            the fetch options
+		 * @param extracted
+		 *            the version of the url extracted into the workspace
+		 * @param parallel
+		 *            whether the download runs next to other downloads
+		 */
+		UrlCheckout(URLTuple tuple, FilePath workspace,
+				AbstractBuild<?, ?> build, BuildListener listener, LastModifiedDateAction action,
+				ProxyConfiguration proxyConfiguration, FetchOptions options,
+				WorkspaceState.Entry extracted, boolean parallel) {
+			this.tuple = tuple;
+			this.workspace = workspace;
+			this.node = build.getBuiltOnStr();
+			this.owner = build.getFullDisplayName();
+			this.listener = listener;
+			this.action = action;
+			this.prefix = parallel ? "[" + fileName(tuple.getUrlString())
+					+ "] " : "";
+			this.fetcher = new UrlFetcher(tuple.getUrlString(),
+					ConnectionSettings.create(tuple, proxyConfiguration,
+							getDescriptor().getConnectTimeout(),
+							getDescriptor().getReadTimeout()),
+					tuple.getFilter(), tuple.getChecksum(), extracted,
+					listener, prefix, options);
+		}
+
+		/**
+		 * Gets the url string.
+		 * 
+		 * @return the url string
+		 */
+		String getUrlString() {
+			return tuple.getUrlString();
+		}
+
+		/**
+		 * Gets the name of the node of the workspace.
+		 * 
+		 * @return the node name, empty for the master
+		 */
+		String getNode() {
+			return node;
+		}
+
+		/**
+		 * Adds the change of the workspace state made by this download. A
+		 * download that started but did not complete may have left a partly
+		 * extracted archive behind, so its version is forgotten.
+		 * 
+		 * @param updates
+		 *            the updates by file name
+		 */
+		void collectUpdate(Map<String, WorkspaceState.Entry> updates) {
+			String fileName = fileName(tuple.getUrlString());
+			UrlFetcher.Result r = result;
+			if (r == null) {
+				if (started) {
+					updates.put(fileName, null);
+				}
+			} else if (!r.getMetrics().isUpToDate()) {
+				updates.put(fileName, new WorkspaceState.Entry(r
+						.getLastModified(), r.getSha256()));
+			}
+		}
+
+		/**
+		 * Aborts the download.
+		 */
+		void abort() {
+			fetcher.abort();
+		}
+
+		/**
+		 * Hands the slot of the download scheduler of the master to the
+		 * fetcher, which waits for it once it is about to download. Local
+		 * files are not scheduled.
+		 * 
+		 * @param remote
+		 *            whether the fetcher runs on the node of the workspace
+		 * @return the slot, null if the download is not scheduled
+		 * @throws MalformedURLException
+		 *             if the url is invalid
+		 */
+		private DownloadScheduler.Slot schedule(boolean remote)
+				throws MalformedURLException {
+			URL url = new URL(tuple.getUrlString());
+			if (url.getHost() == null || url.getHost().length() == 0) {
+				return null;
+			}
+			DownloadScheduler.Slot slot = DownloadScheduler.get().slot(
+					ArchiveFilesMetrics.server(tuple.getUrlString()),
+					owner + " " + fileName(tuple.getUrlString()),
+					getDescriptor().getMaxDownloadsPerServer(),
+					getDescriptor().getMaxBandwidth());
+			if (remote) {
+				VirtualChannel channel = workspace.getChannel();
+				fetcher.schedule(slot.export(channel), slot.getThrottle()
+						.export(channel));
+			} else {
+				fetcher.schedule(slot, slot.getThrottle());
+			}
+			return slot;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.concurrent.Callable#call()
+		 */
+		public UrlCheckout call() throws Exception {
+			started = true;
+			boolean remote = isDownloadOnNode() && workspace.isRemote();
+			DownloadScheduler.Slot slot = schedule(remote);
+			UrlFetcher.Result result;
+			try {
+				if (remote) {
+					listener.getLogger().println(
+							prefix + "Downloading on the node of the workspace");
+					fetcher.export(workspace.getChannel());
+					result = workspace.act(fetcher);
+				} else {
+					result = fetcher.fetch(workspace);
+				}
+			} finally {
+				if (slot != null) {
+					slot.release();
+				}
+			}
+			// Saving last modified time stamp for later use while polling
+			// for source code change
+			action.setLastModified(tuple.getUrlString(),
+					result.getLastModified());
+			action.setEtag(tuple.getUrlString(), result.getEtag());
+			action.setSha256(tuple.getUrlString(), result.getSha256());
+			this.result = result;
+			TransferMetrics metrics = result.getMetrics();
+			action.setMetrics(tuple.getUrlString(), metrics);
+			ArchiveFilesMetrics.record(tuple.getUrlString(), node, metrics);
+			if (!metrics.isUpToDate()) {
+				listener.getLogger().println(
+						prefix + "Transferred " + metrics.getBytes()
+								+ " bytes in " + metrics.getMillis()
+								+ " millis");
+			}
+			return this;
+		}
+	}
+
+	/**
+	 * The probe of one url of a poll.
+	 */
+	private final class UrlPoll implements Callable<UrlPoll> {
+
+		/** The tuple. */
+		private final URLTuple tuple;
+
+		/** The revision of the url the last build saw. */
+		private final ArchiveRevisionState.Revision previous;
+
+		/** The proxy configuration. */
+		private final ProxyConfiguration proxyConfiguration;
+
+		/** The listener. */
+		private final TaskListener listener;
+
+		/**
+		 * The revision of the url, null until it is probed or if the url is
+		 * not due and was never probed.
+		 */
+		private volatile UrlProbe.Result result;
+
+		/**
+		 * Instantiates a new url poll.
+		 * 
+		 * @param tuple
+		 *            the tuple
+		 * @param previous
+		 *            the revision of the url the last build saw
+		 * @param proxyConfiguration
+		 *            the proxy configuration
+		 * @param listener
+		 *            the listener
+		 */
+		UrlPoll(URLTuple tuple, ArchiveRevisionState.Revision previous,
+				ProxyConfiguration proxyConfiguration, TaskListener listener) {
+			this.tuple = tuple;
+			this.previous = previous;
+			this.proxyConfiguration = proxyConfiguration;
+			this.listener = listener;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.concurrent.Callable#call()
+		 */
+		public UrlPoll call() throws Exception {
+			String urlString = tuple.getUrlString();
+			long maxInterval = getDescriptor().getMaxPollInterval();
+			PollSchedule schedule = PollSchedule.get();
+			if (maxInterval > 0
+					&& !schedule.isDue(urlString, System.currentTimeMillis())) {
+				// compared with what the last probe of any job saw
+				listener.getLogger().println(
+						"Not probing " + urlString + " until "
+								+ new Date(schedule.getNext(urlString)));
+				result = schedule.getRevision(urlString);
+				return this;
+			}
+			// HEAD or conditional GET, the archive itself is never read; jobs
+			// polling the same URL share the result for a while
+			UrlProbe.Result probe = RevisionCache.get().probe(
+					new URL(urlString),
+					ConnectionSettings.create(tuple, proxyConfiguration,
+							getDescriptor().getConnectTimeout(),
+							getDescriptor().getReadTimeout()),
+					previous.getLastModified(), previous.getEtag(),
+					getDescriptor().getPollCacheTtl());
+			if (maxInterval > 0) {
+				schedule.probed(urlString, probe, maxInterval, System
+						.currentTimeMillis());
+			}
+			result = probe;
+			return this;
+		}
+
+		/**
+		 * Checks if the url changed since the last build.
+		 * 
+		 * @return true, if changed
+		 */
+		boolean isChanged() {
+			UrlProbe.Result r = result;
+			return r != null
+					&& r.isChanged(previous.getLastModified(), previous
+							.getEtag());
+		}
+
+		/**
+		 * Reports a failed probe to the polling log and the poll schedule.
+		 * 
+		 * @param e
+		 *            the failure
+		 */
+		void failed(Throwable e) {
+			String urlString = tuple.getUrlString();
+			long maxInterval = getDescriptor().getMaxPollInterval();
+			if (maxInterval > 0) {
+				PollSchedule.get().failed(
+						urlString,
+						e instanceof UrlProbe.RateLimited ? ((UrlProbe.RateLimited) e)
+								.getRetryAfter()
+								: 0, maxInterval, System.currentTimeMillis());
+			}
+			listener.error("Unable to check " + urlString + "\n"
+					+ e.getMessage());
+			e.printStackTrace(listener.getLogger());
+		}
+	}
+
+	/**
+	 * Gets the file name part of the path of an url.
+	 * 
+	 * @param urlString
+	 *            the url string
+	 * @return the file name
+	 */
+	static String fileName(String urlString) {
+		try {
+			return new File(new URL(urlString).getPath()).getName();
+		} catch (MalformedURLException e) {
+			return new File(urlString).getName();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see hudson.scm.SCM#getDescriptor()
+	 */
+	@Override
+	public ArchiveFilesSCMDescriptorImpl getDescriptor() {
+		return (ArchiveFilesSCMDescriptorImpl) super.getDescriptor();
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -338,21 +920,6 @@ public class ArchiveFilesSCM extends hudson.scm.SCM {
 			FilePath workspace, TaskListener listener, SCMRevisionState baseline)
 			throws IOException, InterruptedException {
 		LOGGER.log(ALL, "compareRemoteRevisionWith() Enter >>>");
-		PollingResult pollingResult = PollingResult.NO_CHANGES;
-
-		AbstractBuild<?, ?> lastBuild = project.getLastBuild();
-		// When no previous build exits and this is the first build we got to
-		// build
-		if (lastBuild != null) {
-			listener.getLogger().println(
-					"[poll] Last Build : #" + lastBuild.getNumber());
-		} else {
-			listener.getLogger()
-					.println(
-							"[poll] No previous build, so forcing an initial build.\ncompareRemoteRevisionWith() Exit >>>");
-			LOGGER.log(ALL, "compareRemoteRevisionWith() Exit >>>");
-			return PollingResult.BUILD_NOW;
-		}
 		// Rebuild if working directory does not exits
 		if (workspace != null && !workspace.exists()) {
 			listener.getLogger()
@@ -361,40 +928,177 @@ public class ArchiveFilesSCM extends hudson.scm.SCM {
 			LOGGER.log(ALL, "compareRemoteRevisionWith() Exit >>>");
 			return PollingResult.BUILD_NOW;
 		}
-		LastModifiedDateAction action = lastBuild
-				.getAction(LastModifiedDateAction.class);
-		if (action == null) {
+		if (!(baseline instanceof ArchiveRevisionState)) {
+			// the last build did not record the revisions of its urls
 			listener.getLogger()
 					.println(
 							"There are significant changes.\ncompareRemoteRevisionWith() Exit >>>");
 			LOGGER.log(ALL, "compareRemoteRevisionWith() Exit >>>");
 			return PollingResult.SIGNIFICANT;
 		}
+		ArchiveRevisionState base = (ArchiveRevisionState) baseline;
+		ArchiveRevisionState remote = base;
+		PollingResult.Change change = PollingResult.Change.NONE;
+		URLTuple changed = null;
+		Hudson h = Hudson.getInstance();
+		ProxyConfiguration proxyConfiguration = h != null ? h.proxy : null;
+		// the revisions recorded by the last build are checked before any
+		// url is probed
+		List<UrlPoll> polls = new ArrayList<UrlPoll>();
 		for (URLTuple tuple : urls) {
 			String urlString = tuple.getUrlString();
+			ArchiveRevisionState.Revision previous = base.get(urlString);
+			if (previous == null) {
+				listener.getLogger().println(
+						"Found change: " + urlString
+								+ " was not part of the last build");
+				change = PollingResult.Change.SIGNIFICANT;
+				changed = tuple;
+				break;
+			}
+			String checksum = tuple.getChecksum();
+			if (checksum.matches("[0-9a-fA-F]{64}")
+					&& previous.getSha256() != null
+					&& !checksum.equalsIgnoreCase(previous.getSha256())) {
+				listener.getLogger().println(
+						"Found change: " + urlString
+								+ " is expected with SHA-256 " + checksum);
+				change = PollingResult.Change.SIGNIFICANT;
+				changed = tuple;
+				break;
+			}
+			polls.add(new UrlPoll(tuple, previous, proxyConfiguration, listener));
+		}
+		UrlPoll found = changed == null ? pollInParallel(polls) : null;
+		if (found != null) {
+			String urlString = found.tuple.getUrlString();
+			UrlProbe.Result probe = found.result;
+			listener.getLogger().println(
+					"Found change: " + urlString + " modified "
+							+ new Date(probe.getLastModified())
+							+ " previous modification was "
+							+ new Date(found.previous.getLastModified()));
+			remote = remote.with(urlString, new ArchiveRevisionState.Revision(
+					probe.getLastModified(), probe.getEtag(), null));
+			change = PollingResult.Change.SIGNIFICANT;
+			changed = found.tuple;
+		}
+		if (changed != null && prefetch) {
+			prefetch(project, changed, proxyConfiguration, listener);
+		}
+		LOGGER.log(ALL, "compareRemoteRevisionWith() Exit >>>");
+		return new PollingResult(base, remote, change);
+	}
+
+	/**
+	 * Probes the urls of a job at the same time on the probe threads of the
+	 * master, and returns as soon as one of them changed. Every probe has the
+	 * connect and read timeouts of the global settings, and a probe that has
+	 * not completed once its HEAD and GET could have timed out is given up,
+	 * so a hung server delays the poll by a bounded time only.
+	 * 
+	 * @param polls
+	 *            the urls to probe
+	 * @return the first url found changed, null if none changed
+	 * @throws InterruptedException
+	 *             if the poll is aborted
+	 */
+	private UrlPoll pollInParallel(List<UrlPoll> polls)
+			throws InterruptedException {
+		if (polls.size() == 1) {
+			UrlPoll poll = polls.get(0);
 			try {
-				URL url = new URL(urlString);
-				URLConnection conn = url.openConnection();
-				conn.setUseCaches(false);
-				long lastMod = conn.getLastModified();
-				long lastBuildMod = action.getLastModified(urlString);
-				if (lastBuildMod != lastMod) {
-					listener.getLogger().println(
-							"Found change: " + urlString + " modified "
-									+ new Date(lastMod)
-									+ " previous modification was "
-									+ new Date(lastBuildMod));
-					pollingResult = PollingResult.SIGNIFICANT;
-					break;
-				}
+				return poll.call().isChanged() ? poll : null;
+			} catch (InterruptedException e) {
+				throw e;
 			} catch (Exception e) {
-				listener.error("Unable to check " + urlString + "\n"
-						+ e.getMessage());
-				e.printStackTrace(listener.getLogger());
+				poll.failed(e);
+				return null;
 			}
 		}
-		LOGGER.log(ALL, "compareRemoteRevisionWith() Exit >>>");
-		return pollingResult;
+		CompletionService<UrlPoll> completion = new ExecutorCompletionService<UrlPoll>(
+				PROBES);
+		Map<Future<UrlPoll>, UrlPoll> running = new HashMap<Future<UrlPoll>, UrlPoll>();
+		long timeout = 2L * (getDescriptor().getConnectTimeout() + getDescriptor()
+				.getReadTimeout());
+		long deadline = System.currentTimeMillis() + timeout;
+		try {
+			for (UrlPoll poll : polls) {
+				running.put(completion.submit(poll), poll);
+			}
+			while (!running.isEmpty()) {
+				long left = deadline - System.currentTimeMillis();
+				Future<UrlPoll> done = left > 0 ? completion.poll(left,
+						TimeUnit.MILLISECONDS) : null;
+				if (done == null) {
+					for (UrlPoll poll : running.values()) {
+						poll.failed(new IOException("No response within "
+								+ timeout + " millis"));
+					}
+					return null;
+				}
+				UrlPoll poll = running.remove(done);
+				try {
+					done.get();
+				} catch (ExecutionException e) {
+					poll.failed(e.getCause());
+					continue;
+				}
+				if (poll.isChanged()) {
+					// the other probes are not needed any more
+					return poll;
+				}
+			}
+			return null;
+		} finally {
+			for (Future<UrlPoll> f : running.keySet()) {
+				f.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Starts downloading a changed url into the archive cache of the node the
+	 * job last ran on, so that the checkout of the build that polling
+	 * triggers finds it cached or being downloaded. The other urls of the job
+	 * are not probed once a change is found, so they are downloaded by the
+	 * checkout.
+	 * 
+	 * @param project
+	 *            the project
+	 * @param tuple
+	 *            the changed url
+	 * @param proxyConfiguration
+	 *            the proxy configuration
+	 * @param listener
+	 *            the listener
+	 */
+	private void prefetch(AbstractProject<?, ?> project, URLTuple tuple,
+			ProxyConfiguration proxyConfiguration, TaskListener listener) {
+		Node node = project.getLastBuiltOn();
+		FilePath root = node != null ? node.getRootPath() : null;
+		if (root == null) {
+			return;
+		}
+		FetchOptions options = fetchOptions(node, !(node instanceof Hudson));
+		if (options.getCacheDir() == null) {
+			listener.getLogger().println(
+					"Not prefetching, the node archive cache is not used");
+			return;
+		}
+		UrlFetcher fetcher = new UrlFetcher(tuple.getUrlString(),
+				ConnectionSettings.create(tuple, proxyConfiguration,
+						getDescriptor().getConnectTimeout(), getDescriptor()
+								.getReadTimeout()), tuple.getFilter(), tuple
+						.getChecksum(), new WorkspaceState.Entry(-1, null),
+				TaskListener.NULL, "", options);
+		if (Prefetcher.start(root, node.getNodeName(), fetcher, project
+				.getFullName(), getDescriptor().getMaxDownloadsPerServer(),
+				getDescriptor().getMaxBandwidth())) {
+			listener.getLogger().println(
+					"Prefetching " + tuple.getUrlString() + " into "
+							+ options.getCacheDir());
+		}
 	}
 
 	/*
@@ -407,7 +1111,14 @@ public class ArchiveFilesSCM extends hudson.scm.SCM {
 	public SCMRevisionState calcRevisionsFromBuild(AbstractBuild<?, ?> arg0,
 			Launcher arg1, TaskListener arg2) throws IOException,
 			InterruptedException {
-		return SCMRevisionState.NONE;
+		// only called for builds checked out before the revision state was
+		// attached to them
+		LastModifiedDateAction action = arg0
+				.getAction(LastModifiedDateAction.class);
+		if (action == null) {
+			return SCMRevisionState.NONE;
+		}
+		return ArchiveRevisionState.of(urls, action);
 	}
 
 	/**
@@ -417,6 +1128,63 @@ public class ArchiveFilesSCM extends hudson.scm.SCM {
 	public static final class ArchiveFilesSCMDescriptorImpl extends
 			SCMDescriptor<ArchiveFilesSCM> {
 
+		/** The maximum size of the node archive cache in MB, 0 disables it. */
+		private long cacheSizeMB;
+
+		/**
+		 * The maximum size of the node extracted-tree store in MB, 0 disables
+		 * it.
+		 */
+		private long treeStoreMB;
+
+		/**
+		 * Whether workspaces may be populated with hardlinks to the read-only
+		 * files of the extracted-tree store.
+		 */
+		private boolean treeStoreHardlinks;
+
+		/** The number of concurrent range requests per http download. */
+		private int downloadSegments;
+
+		/**
+		 * Whether http downloads only fetch the blocks that changed since the
+		 * previous version.
+		 */
+		private boolean deltaDownloads;
+
+		/**
+		 * Whether http downloads of uncompressed archives ask the server to
+		 * compress the transfer.
+		 */
+		private boolean transferCompression;
+
+		/**
+		 * The maximum number of downloads from one server at the same time, 0
+		 * for no limit.
+		 */
+		private int maxDownloadsPerServer;
+
+		/** The aggregate bandwidth of all downloads in KB/s, 0 for no limit. */
+		private long maxBandwidthKB;
+
+		/**
+		 * The number of seconds a polled revision is shared between jobs, 0
+		 * disables sharing.
+		 */
+		private int pollCacheSeconds = 60;
+
+		/**
+		 * The longest time in minutes a url is not probed when it rarely
+		 * changes, 0 probes every url on every poll.
+		 */
+		private int maxPollIntervalMinutes;
+
+		/** The connect timeout in seconds. */
+		private int connectTimeoutSeconds = 30;
+
+		/** The read timeout in seconds, a stalled download is resumed after it. */
+		private int readTimeoutSeconds = 60;
+
 		/**
 		 * Instantiates a new archive files scm descriptor impl.
 		 */
@@ -454,7 +1222,36 @@ public class ArchiveFilesSCM extends hudson.scm.SCM {
 			return new ArchiveFilesSCM(urls,
 					req.getParameter("archive_files_scm_clear") != null,
 					usernames,
-					req.getParameterValues("archive_files_scm_password"));
+					req.getParameterValues("archive_files_scm_password"),
+					req.getParameterValues("archive_files_scm_includes"),
+					req.getParameterValues("archive_files_scm_excludes"),
+					req.getParameterValues("archive_files_scm_sha256"),
+					parseInt(req.getParameter("archive_files_scm_concurrency"), 1),
+					req.getParameter("archive_files_scm_on_node") != null,
+					req.getParameter("archive_files_scm_incremental") != null,
+					req.getParameter("archive_files_scm_clear_background") != null,
+					req.getParameter("archive_files_scm_prefetch") != null);
+		}
+
+		/**
+		 * Parses a positive number entered in the form.
+		 * 
+		 * @param value
+		 *            the value
+		 * @param defaultValue
+		 *            the value used when nothing valid was entered
+		 * @return the number
+		 */
+		private static int parseInt(String value, int defaultValue) {
+			if (value == null || value.trim().length() == 0) {
+				return defaultValue;
+			}
+			try {
+				int i = Integer.parseInt(value.trim());
+				return i > 0 ? i : defaultValue;
+			} catch (NumberFormatException e) {
+				return defaultValue;
+			}
 		}
 
 		/*
@@ -467,9 +1264,216 @@ public class ArchiveFilesSCM extends hudson.scm.SCM {
 		@Override
 		public boolean configure(StaplerRequest req, JSONObject formData)
 				throws FormException {
+			cacheSizeMB = parseInt(
+					req.getParameter("archive_files_scm_cache_size"), 0);
+			treeStoreMB = parseInt(
+					req.getParameter("archive_files_scm_tree_store_size"), 0);
+			treeStoreHardlinks = req
+					.getParameter("archive_files_scm_tree_store_hardlinks") != null;
+			downloadSegments = parseInt(
+					req.getParameter("archive_files_scm_segments"), 1);
+			deltaDownloads = req.getParameter("archive_files_scm_delta") != null;
+			transferCompression = req
+					.getParameter("archive_files_scm_compression") != null;
+			maxDownloadsPerServer = parseInt(
+					req.getParameter("archive_files_scm_downloads_per_server"),
+					0);
+			maxBandwidthKB = parseInt(
+					req.getParameter("archive_files_scm_bandwidth"), 0);
+			String pollCache = req.getParameter("archive_files_scm_poll_cache");
+			pollCacheSeconds = pollCache != null
+					&& pollCache.trim().equals("0") ? 0 : parseInt(pollCache,
+					60);
+			maxPollIntervalMinutes = parseInt(
+					req.getParameter("archive_files_scm_max_poll_interval"), 0);
+			connectTimeoutSeconds = parseInt(
+					req.getParameter("archive_files_scm_connect_timeout"), 30);
+			readTimeoutSeconds = parseInt(
+					req.getParameter("archive_files_scm_read_timeout"), 60);
+			save();
 			return true;
 		}
 
+		/**
+		 * Gets the maximum size of the node archive cache in MB.
+		 * 
+		 * @return the size in MB, 0 if the cache is disabled
+		 */
+		public long getCacheSizeMB() {
+			return cacheSizeMB;
+		}
+
+		/**
+		 * Gets the maximum size of the node extracted-tree store in MB.
+		 * 
+		 * @return the size in MB, 0 if the store is disabled
+		 */
+		public long getTreeStoreMB() {
+			return treeStoreMB;
+		}
+
+		/**
+		 * Checks if workspaces may be populated with hardlinks to the
+		 * read-only files of the extracted-tree store, which the jobs must
+		 * then never change in place.
+		 * 
+		 * @return true, if hardlinks are allowed
+		 */
+		public boolean isTreeStoreHardlinks() {
+			return treeStoreHardlinks;
+		}
+
+		/**
+		 * Gets the number of concurrent range requests used to download a
+		 * single large file from a server that accepts byte ranges.
+		 * 
+		 * @return the number of range requests, at least 1
+		 */
+		public int getDownloadSegments() {
+			return downloadSegments < 1 ? 1 : downloadSegments;
+		}
+
+		/**
+		 * Checks if http downloads only fetch the blocks that changed since
+		 * the previous version kept on the node.
+		 * 
+		 * @return true, if delta downloads are enabled
+		 */
+		public boolean isDeltaDownloads() {
+			return deltaDownloads;
+		}
+
+		/**
+		 * Checks if http downloads of plain tar archives and files of unknown
+		 * type ask the server for a gzip or zstd compressed transfer.
+		 * 
+		 * @return true, if transfers are compressed
+		 */
+		public boolean isTransferCompression() {
+			return transferCompression;
+		}
+
+		/**
+		 * Gets the maximum number of downloads from one server that run at
+		 * the same time, for all jobs together.
+		 * 
+		 * @return the number of downloads, 0 if there is no limit
+		 */
+		public int getMaxDownloadsPerServer() {
+			return maxDownloadsPerServer < 0 ? 0 : maxDownloadsPerServer;
+		}
+
+		/**
+		 * Gets the aggregate bandwidth of all downloads.
+		 * 
+		 * @return the bandwidth in KB/s, 0 if there is no limit
+		 */
+		public long getMaxBandwidthKB() {
+			return maxBandwidthKB < 0 ? 0 : maxBandwidthKB;
+		}
+
+		/**
+		 * Gets the aggregate bandwidth of all downloads.
+		 * 
+		 * @return the bandwidth in bytes per second, 0 if there is no limit
+		 */
+		long getMaxBandwidth() {
+			return getMaxBandwidthKB() * 1024;
+		}
+
+		/**
+		 * Gets the number of seconds a polled revision is shared between the
+		 * jobs polling the same URL.
+		 * 
+		 * @return the number of seconds, 0 if results are not shared
+		 */
+		public int getPollCacheSeconds() {
+			return pollCacheSeconds < 0 ? 0 : pollCacheSeconds;
+		}
+
+		/**
+		 * Gets the time a polled revision is shared between jobs.
+		 * 
+		 * @return the time in millis, 0 if results are not shared
+		 */
+		long getPollCacheTtl() {
+			return getPollCacheSeconds() * 1000L;
+		}
+
+		/**
+		 * Gets the longest time a url that rarely changes is not probed by
+		 * polling.
+		 * 
+		 * @return the time in minutes, 0 if every url is probed on every poll
+		 */
+		public int getMaxPollIntervalMinutes() {
+			return maxPollIntervalMinutes < 0 ? 0 : maxPollIntervalMinutes;
+		}
+
+		/**
+		 * Gets the longest time a url that rarely changes is not probed by
+		 * polling.
+		 * 
+		 * @return the time in millis, 0 if every url is probed on every poll
+		 */
+		long getMaxPollInterval() {
+			return getMaxPollIntervalMinutes() * 60 * 1000L;
+		}
+
+		/**
+		 * Gets the connect timeout.
+		 * 
+		 * @return the connect timeout in seconds
+		 */
+		public int getConnectTimeoutSeconds() {
+			return connectTimeoutSeconds;
+		}
+
+		/**
+		 * Gets the read timeout.
+		 * 
+		 * @return the read timeout in seconds
+		 */
+		public int getReadTimeoutSeconds() {
+			return readTimeoutSeconds;
+		}
+
+		/**
+		 * Gets the connect timeout of every connection.
+		 * 
+		 * @return the connect timeout in millis
+		 */
+		int getConnectTimeout() {
+			return (connectTimeoutSeconds > 0 ? connectTimeoutSeconds : 30) * 1000;
+		}
+
+		/**
+		 * Gets the read timeout of every connection.
+		 * 
+		 * @return the read timeout in millis
+		 */
+		int getReadTimeout() {
+			return (readTimeoutSeconds > 0 ? readTimeoutSeconds : 60) * 1000;
+		}
+
+		/**
+		 * Gets the maximum size of the node archive cache in bytes.
+		 * 
+		 * @return the size in bytes, 0 if the cache is disabled
+		 */
+		long getCacheSize() {
+			return cacheSizeMB * 1024 * 1024;
+		}
+
+		/**
+		 * Gets the maximum size of the node extracted-tree store in bytes.
+		 * 
+		 * @return the size in bytes, 0 if the store is disabled
+		 */
+		long getTreeStoreSize() {
+			return treeStoreMB * 1024 * 1024;
+		}
+
 		/**
 		 * Do required check.
 		 * 
@@ -486,6 +1490,68 @@ public class ArchiveFilesSCM extends hudson.scm.SCM {
 			LOGGER.log(ALL, "doRequiredCheck() Exit >>>");
 			return FormValidation.validateRequired(value);
 		}
+
+		/**
+		 * Makes the next poll of a job probe all its urls whatever their
+		 * adaptive schedule, and starts that poll if the job polls. Only
+		 * accepted as a POST, which Jenkins guards against cross-site
+		 * requests with its crumbs.
+		 * 
+		 * @param req
+		 *            the req
+		 * @param rsp
+		 *            the rsp
+		 * @param job
+		 *            the full name of the job
+		 * @throws IOException
+		 *             Signals that an I/O exception has occurred.
+		 */
+		public void doForcePoll(StaplerRequest req, StaplerResponse rsp,
+				@QueryParameter final String job) throws IOException {
+			if (!"POST".equals(req.getMethod())) {
+				rsp.setHeader("Allow", "POST");
+				rsp.sendError(405, "forcePoll requires a POST request");
+				return;
+			}
+			Hudson h = Hudson.getInstance();
+			AbstractProject<?, ?> project = h != null && job != null ? h
+					.getItemByFullName(job, AbstractProject.class) : null;
+			rsp.setContentType("text/plain;charset=UTF-8");
+			if (project == null
+					|| !(project.getScm() instanceof ArchiveFilesSCM)) {
+				rsp.setStatus(404);
+				rsp.getWriter().println(
+						"No job " + job + " uses Archive Files SCM");
+				return;
+			}
+			project.checkPermission(Item.BUILD);
+			ArchiveFilesSCM scm = (ArchiveFilesSCM) project.getScm();
+			for (URLTuple tuple : scm.urls) {
+				PollSchedule.get().force(tuple.getUrlString());
+			}
+			SCMTrigger trigger = project.getTrigger(SCMTrigger.class);
+			if (trigger != null) {
+				trigger.run();
+			}
+			rsp.getWriter().println(
+					"The next poll of " + job + " probes all "
+							+ scm.urls.size() + " urls"
+							+ (trigger != null ? ", polling started" : ""));
+		}
+
+		/**
+		 * Do positive number check.
+		 * 
+		 * @param value
+		 *            the value
+		 * @return the form validation
+		 * @throws ServletException
+		 *             the servlet exception
+		 */
+		public FormValidation doPositiveNumberCheck(
+				@QueryParameter final String value) throws ServletException {
+			return FormValidation.validatePositiveInteger(value);
+		}
 	}
 
 	/**
@@ -502,6 +1568,18 @@ public class ArchiveFilesSCM extends hudson.scm.SCM {
 		/** The password. */
 		private final String password;
 
+		/** The include patterns, empty to extract every entry. */
+		private final String includes;
+
+		/** The exclude patterns, empty to exclude nothing. */
+		private final String excludes;
+
+		/**
+		 * The expected SHA-256 or the url of a sidecar file holding it, empty
+		 * if the archive is not verified.
+		 */
+		private final String checksum;
+
 		/**
 		 * Instantiates a new uRL tuple.
 		 * 
@@ -513,8 +1591,33 @@ public class ArchiveFilesSCM extends hudson.scm.SCM {
 		 *            the password
 		 */
 		public URLTuple(String urlString, String username, String password) {
+			this(urlString, username, password, null, null, null);
+		}
+
+		/**
+		 * Instantiates a new uRL tuple.
+		 * 
+		 * @param urlString
+		 *            the url string
+		 * @param username
+		 *            the username
+		 * @param password
+		 *            the password
+		 * @param includes
+		 *            the include patterns
+		 * @param excludes
+		 *            the exclude patterns
+		 * @param checksum
+		 *            the expected SHA-256 or the url of a sidecar file
+		 *            holding it
+		 */
+		public URLTuple(String urlString, String username, String password,
+				String includes, String excludes, String checksum) {
 			LOGGER.log(ALL, "URLTuple() Enter >>>");
 			this.urlString = urlString;
+			this.includes = includes == null ? "" : includes.trim();
+			this.excludes = excludes == null ? "" : excludes.trim();
+			this.checksum = checksum == null ? "" : checksum.trim();
 			// In the url is not secured initialize user name and password with
 			// empty strings
 			if (username == null || username.trim().length() == 0) {
@@ -555,6 +1658,42 @@ public class ArchiveFilesSCM extends hudson.scm.SCM {
 			return password;
 		}
 
+		/**
+		 * Gets the include patterns.
+		 * 
+		 * @return the include patterns
+		 */
+		public String getIncludes() {
+			return includes;
+		}
+
+		/**
+		 * Gets the exclude patterns.
+		 * 
+		 * @return the exclude patterns
+		 */
+		public String getExcludes() {
+			return excludes;
+		}
+
+		/**
+		 * Gets the expected SHA-256 or the url of a sidecar file holding it.
+		 * 
+		 * @return the checksum, empty if the archive is not verified
+		 */
+		public String getChecksum() {
+			return checksum == null ? "" : checksum;
+		}
+
+		/**
+		 * Gets the filter selecting the archive entries to extract.
+		 * 
+		 * @return the filter
+		 */
+		EntryFilter getFilter() {
+			return EntryFilter.create(includes, excludes);
+		}
+
 		/**
 		 * The Class SecuredResourceAuthenticator.
 		 */
@@ -0,0 +1,153 @@
+package hudson.plugins.scm;
+
+import hudson.plugins.scm.ArchiveFilesSCM.URLTuple;
+import hudson.scm.SCMRevisionState;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The revision of every URL of a build: its Last-Modified, ETag and the
+ * SHA-256 of the extracted archive. The state is attached to the build it
+ * was checked out by, and Jenkins keeps the latest one in memory as the
+ * polling baseline, so polling compares against it without loading build
+ * records from disk.
+ */
+public final class ArchiveRevisionState extends SCMRevisionState implements
+		Serializable {
+
+	/** The Constant serialVersionUID. */
+	private static final long serialVersionUID = 1L;
+
+	/** The revisions by url. */
+	private final HashMap<String, Revision> revisions;
+
+	/**
+	 * Instantiates a new archive revision state.
+	 * 
+	 * @param revisions
+	 *            the revisions by url
+	 */
+	private ArchiveRevisionState(HashMap<String, Revision> revisions) {
+		this.revisions = revisions;
+	}
+
+	/**
+	 * Creates the state of the given urls from what a build recorded.
+	 * 
+	 * @param urls
+	 *            the urls
+	 * @param action
+	 *            the action of the build
+	 * @return the state
+	 */
+	static ArchiveRevisionState of(List<URLTuple> urls,
+			LastModifiedDateAction action) {
+		HashMap<String, Revision> revisions = new HashMap<String, Revision>();
+		for (URLTuple tuple : urls) {
+			String url = tuple.getUrlString();
+			revisions.put(url, new Revision(action.getLastModified(url),
+					action.getEtag(url), action.getSha256(url)));
+		}
+		return new ArchiveRevisionState(revisions);
+	}
+
+	/**
+	 * Gets the revision of a url.
+	 * 
+	 * @param url
+	 *            the url
+	 * @return the revision, null if the url was not part of the build
+	 */
+	Revision get(String url) {
+		return revisions.get(url);
+	}
+
+	/**
+	 * Creates a copy of this state with the revision of one url replaced.
+	 * 
+	 * @param url
+	 *            the url
+	 * @param revision
+	 *            the revision
+	 * @return the new state
+	 */
+	ArchiveRevisionState with(String url, Revision revision) {
+		HashMap<String, Revision> copy = new HashMap<String, Revision>(
+				revisions);
+		copy.put(url, revision);
+		return new ArchiveRevisionState(copy);
+	}
+
+	/**
+	 * Gets the urls of the state.
+	 * 
+	 * @return the revisions by url
+	 */
+	Map<String, Revision> getRevisions() {
+		return revisions;
+	}
+
+	/**
+	 * The revision of one url.
+	 */
+	static final class Revision implements Serializable {
+
+		/** The Constant serialVersionUID. */
+		private static final long serialVersionUID = 1L;
+
+		/** The last modified time stamp, 0 if unknown. */
+		private final long lastModified;
+
+		/** The ETag, null if unknown. */
+		private final String etag;
+
+		/** The SHA-256 of the extracted archive, null if unknown. */
+		private final String sha256;
+
+		/**
+		 * Instantiates a new revision.
+		 * 
+		 * @param lastModified
+		 *            the last modified
+		 * @param etag
+		 *            the etag
+		 * @param sha256
+		 *            the SHA-256
+		 */
+		Revision(long lastModified, String etag, String sha256) {
+			this.lastModified = lastModified;
+			this.etag = etag;
+			this.sha256 = sha256;
+		}
+
+		/**
+		 * Gets the last modified.
+		 * 
+		 * @return the last modified
+		 */
+		long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * Gets the etag.
+		 * 
+		 * @return the etag
+		 */
+		String getEtag() {
+			return etag;
+		}
+
+		/**
+		 * Gets the SHA-256 of the extracted archive.
+		 * 
+		 * @return the hex encoded digest
+		 */
+		String getSha256() {
+			return sha256;
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package hudson.plugins.scm;
+
+/**
+ * The archive types the plugin knows how to extract. The type is detected
+ * from the file name at the end of the URL.
+ */
+enum ArchiveType {
+
+	/** A zip archive, including jar, war and ear files. */
+	ZIP("Compression type is zip/jar/war", ".zip", ".jar", ".war", ".ear"),
+
+	/** A gzip compressed tar archive. */
+	TAR_GZ("Compression type is gz", ".gz", ".tgz"),
+
+	/** An xz compressed tar archive. */
+	TAR_XZ("Compression type is xz", ".tar.xz", ".txz"),
+
+	/** A bzip2 compressed tar archive. */
+	TAR_BZ2("Compression type is bz2", ".tar.bz2", ".tbz2", ".tbz"),
+
+	/** A zstd compressed tar archive. */
+	TAR_ZST("Compression type is zstd", ".tar.zst", ".tzst"),
+
+	/** An uncompressed tar archive. */
+	TAR("Compression type is tar", ".tar"),
+
+	/** Any other file, copied to the workspace as it is. */
+	UNKNOWN("Compression type unknow. Hence directly downloding the file");
+
+	/** The message printed to the build console. */
+	private final String description;
+
+	/** The file name suffixes of the type. */
+	private final String[] suffixes;
+
+	/**
+	 * Instantiates a new archive type.
+	 * 
+	 * @param description
+	 *            the description
+	 * @param suffixes
+	 *            the suffixes
+	 */
+	private ArchiveType(String description, String... suffixes) {
+		this.description = description;
+		this.suffixes = suffixes;
+	}
+
+	/**
+	 * Gets the message printed to the build console.
+	 * 
+	 * @return the description
+	 */
+	String getDescription() {
+		return description;
+	}
+
+	/**
+	 * Detects the type of an archive from its URL.
+	 * 
+	 * @param url
+	 *            the url
+	 * @return the type, {@link #UNKNOWN} if no suffix matches
+	 */
+	static ArchiveType of(String url) {
+		for (ArchiveType type : values()) {
+			for (String suffix : type.suffixes) {
+				if (url.endsWith(suffix)) {
+					return type;
+				}
+			}
+		}
+		return UNKNOWN;
+	}
+}
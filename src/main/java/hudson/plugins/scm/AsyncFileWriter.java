@@ -0,0 +1,249 @@
+package hudson.plugins.scm;
+
+import hudson.util.DaemonThreadFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes files on a separate thread. The producer, e.g. the tar parser,
+ * hands over the content of each file in chunks through a bounded queue, so
+ * parsing the next entry overlaps with writing the previous one and a slow
+ * disk stalls the producer only once the queue is full.
+ */
+final class AsyncFileWriter {
+
+	/** The end of the work. */
+	private static final Op END = new Op(null, null, 0, 0, 0);
+
+	/** The pending operations. */
+	private final BlockingQueue<Op> queue;
+
+	/** The writer thread. */
+	private final Thread writer;
+
+	/** The first error the writer ran into. */
+	private volatile Throwable failure;
+
+	/**
+	 * An operation on the current file: open it (file set), append to it
+	 * (data set) or close it (neither set).
+	 */
+	private static final class Op {
+
+		/** The file to open. */
+		private final File file;
+
+		/** The data to append. */
+		private final byte[] data;
+
+		/** The length of the data. */
+		private final int length;
+
+		/** The modification time set on close. */
+		private final long time;
+
+		/** The unix mode set on close. */
+		private final int mode;
+
+		/**
+		 * Instantiates a new op.
+		 * 
+		 * @param file
+		 *            the file
+		 * @param data
+		 *            the data
+		 * @param length
+		 *            the length
+		 * @param time
+		 *            the time
+		 * @param mode
+		 *            the mode
+		 */
+		Op(File file, byte[] data, int length, long time, int mode) {
+			this.file = file;
+			this.data = data;
+			this.length = length;
+			this.time = time;
+			this.mode = mode;
+		}
+	}
+
+	/**
+	 * Instantiates a new async file writer and starts the writer thread.
+	 * 
+	 * @param capacity
+	 *            the number of operations that may be pending
+	 */
+	AsyncFileWriter(int capacity) {
+		this.queue = new ArrayBlockingQueue<Op>(capacity);
+		this.writer = new DaemonThreadFactory().newThread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		});
+		writer.setName("ArchiveFilesSCM writer");
+		writer.start();
+	}
+
+	/**
+	 * Processes operations until the end. After a failure the remaining
+	 * operations are discarded so the producer never blocks.
+	 */
+	private void drain() {
+		OutputStream out = null;
+		File file = null;
+		try {
+			while (true) {
+				Op op = queue.take();
+				if (op == END) {
+					break;
+				}
+				if (failure != null) {
+					continue;
+				}
+				try {
+					if (op.file != null) {
+						file = op.file;
+						File parent = file.getParentFile();
+						if (parent != null) {
+							parent.mkdirs();
+						}
+						// a new file, never a rewrite of a hardlinked one
+						if (file.exists() && !file.delete()) {
+							throw new IOException("Unable to replace " + file);
+						}
+						out = new FileOutputStream(file);
+					} else if (op.data != null) {
+						out.write(op.data, 0, op.length);
+					} else {
+						out.close();
+						out = null;
+						ArchiveExtractor.finish(file, op.time, op.mode);
+					}
+				} catch (Throwable t) {
+					failure = t;
+				}
+			}
+		} catch (InterruptedException e) {
+			failure = e;
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// the failure is reported already
+				}
+			}
+		}
+	}
+
+	/**
+	 * Queues an operation, failing fast if the writer already failed.
+	 * 
+	 * @param op
+	 *            the op
+	 * @throws IOException
+	 *             if the writer failed
+	 */
+	private void put(Op op) throws IOException {
+		try {
+			while (!queue.offer(op, 1, TimeUnit.SECONDS)) {
+				check();
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		check();
+	}
+
+	/**
+	 * Throws the failure of the writer, if any.
+	 * 
+	 * @throws IOException
+	 *             the failure
+	 */
+	private void check() throws IOException {
+		Throwable t = failure;
+		if (t == null) {
+			return;
+		}
+		if (t instanceof IOException) {
+			throw (IOException) t;
+		}
+		IOException e = new IOException("Unable to write file : " + t);
+		e.initCause(t);
+		throw e;
+	}
+
+	/**
+	 * Starts a new file.
+	 * 
+	 * @param f
+	 *            the file
+	 * @throws IOException
+	 *             if the writer failed
+	 */
+	void open(File f) throws IOException {
+		put(new Op(f, null, 0, 0, 0));
+	}
+
+	/**
+	 * Appends to the current file. The data is copied.
+	 * 
+	 * @param b
+	 *            the data
+	 * @param off
+	 *            the offset
+	 * @param len
+	 *            the length
+	 * @throws IOException
+	 *             if the writer failed
+	 */
+	void write(byte[] b, int off, int len) throws IOException {
+		byte[] copy = new byte[len];
+		System.arraycopy(b, off, copy, 0, len);
+		put(new Op(null, copy, len, 0, 0));
+	}
+
+	/**
+	 * Closes the current file and sets its modification time and mode.
+	 * 
+	 * @param time
+	 *            the modification time
+	 * @param mode
+	 *            the unix mode, 0 if unknown
+	 * @throws IOException
+	 *             if the writer failed
+	 */
+	void close(long time, int mode) throws IOException {
+		put(new Op(null, null, 0, time, mode));
+	}
+
+	/**
+	 * Waits until everything queued is written.
+	 * 
+	 * @throws IOException
+	 *             if the writer failed
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	void finish() throws IOException, InterruptedException {
+		put(END);
+		writer.join();
+		check();
+	}
+
+	/**
+	 * Stops the writer without waiting for pending operations.
+	 */
+	void abort() {
+		writer.interrupt();
+	}
+}
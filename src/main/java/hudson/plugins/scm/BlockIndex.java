@@ -0,0 +1,404 @@
+package hudson.plugins.scm;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * The block checksums of an archive, published next to it so that a node
+ * holding an older version only downloads the blocks that changed. Every
+ * block has a weak rolling checksum, which is cheap to slide over the old
+ * version one byte at a time, and a strong MD5 that confirms a match. The
+ * SHA-256 of the whole archive verifies the rebuilt file.
+ * 
+ * The index is a text file:
+ * 
+ * <pre>
+ * archive-files-scm-blocks 1
+ * size &lt;archive size&gt;
+ * block-size &lt;block size&gt;
+ * sha256 &lt;hex digest of the archive&gt;
+ * &lt;weak checksum as 8 hex digits&gt; &lt;hex MD5&gt;
+ * ...
+ * </pre>
+ * 
+ * with one line per block, the last block possibly being shorter. It is
+ * generated with
+ * <tt>java -cp archive-files-scm.jar hudson.plugins.scm.BlockIndex &lt;archive&gt; [block size]</tt>
+ * which writes <tt>&lt;archive&gt;.blocks</tt>.
+ */
+public final class BlockIndex {
+
+	/** The first line of an index. */
+	private static final String HEADER = "archive-files-scm-blocks 1";
+
+	/** The suffix of the index url, appended to the archive url. */
+	static final String SUFFIX = ".blocks";
+
+	/** The default block size. */
+	static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+	/** The size of the archive. */
+	private final long size;
+
+	/** The block size. */
+	private final int blockSize;
+
+	/** The SHA-256 of the archive. */
+	private final String sha256;
+
+	/** The weak checksums of the blocks. */
+	private final int[] weak;
+
+	/** The MD5s of the blocks. */
+	private final byte[][] strong;
+
+	/**
+	 * Instantiates a new block index.
+	 * 
+	 * @param size
+	 *            the size of the archive
+	 * @param blockSize
+	 *            the block size
+	 * @param sha256
+	 *            the SHA-256 of the archive
+	 * @param weak
+	 *            the weak checksums
+	 * @param strong
+	 *            the MD5s
+	 */
+	private BlockIndex(long size, int blockSize, String sha256, int[] weak,
+			byte[][] strong) {
+		this.size = size;
+		this.blockSize = blockSize;
+		this.sha256 = sha256;
+		this.weak = weak;
+		this.strong = strong;
+	}
+
+	/**
+	 * Writes the index of an archive to <tt>&lt;archive&gt;.blocks</tt>.
+	 * 
+	 * @param args
+	 *            the archive and optionally the block size
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: BlockIndex <archive> [block size]");
+			System.exit(1);
+		}
+		File archive = new File(args[0]);
+		int blockSize = args.length > 1 ? Integer.parseInt(args[1])
+				: DEFAULT_BLOCK_SIZE;
+		BlockIndex index = create(archive, blockSize);
+		File f = new File(archive.getPath() + SUFFIX);
+		Writer w = new OutputStreamWriter(new FileOutputStream(f), "US-ASCII");
+		try {
+			index.write(w);
+		} finally {
+			w.close();
+		}
+		System.out.println("Wrote " + index.getBlockCount() + " blocks to "
+				+ f);
+	}
+
+	/**
+	 * Computes the index of an archive.
+	 * 
+	 * @param archive
+	 *            the archive
+	 * @param blockSize
+	 *            the block size
+	 * @return the index
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	static BlockIndex create(File archive, int blockSize) throws IOException {
+		if (blockSize < 1) {
+			throw new IllegalArgumentException("Invalid block size "
+					+ blockSize);
+		}
+		long size = archive.length();
+		int count = (int) ((size + blockSize - 1) / blockSize);
+		int[] weak = new int[count];
+		byte[][] strong = new byte[count][];
+		MessageDigest whole = digest("SHA-256");
+		MessageDigest md5 = digest("MD5");
+		byte[] block = new byte[blockSize];
+		InputStream in = LocalFiles.open(archive);
+		try {
+			for (int i = 0; i < count; i++) {
+				int length = (int) Math.min(blockSize, size - (long) i
+						* blockSize);
+				readFully(in, block, length);
+				weak[i] = weak(block, 0, length);
+				strong[i] = md5.digest(copyOf(block, length));
+				whole.update(block, 0, length);
+			}
+		} finally {
+			in.close();
+		}
+		return new BlockIndex(size, blockSize, new String(Hex
+				.encodeHex(whole.digest())), weak, strong);
+	}
+
+	/**
+	 * Reads an index.
+	 * 
+	 * @param in
+	 *            the index
+	 * @return the index
+	 * @throws IOException
+	 *             if the index is invalid
+	 */
+	static BlockIndex read(InputStream in) throws IOException {
+		BufferedReader r = new BufferedReader(new InputStreamReader(in,
+				"US-ASCII"));
+		try {
+			if (!HEADER.equals(r.readLine())) {
+				throw new IOException("Not a block index");
+			}
+			long size = Long.parseLong(value(r.readLine(), "size"));
+			int blockSize = Integer.parseInt(value(r.readLine(),
+					"block-size"));
+			String sha256 = value(r.readLine(), "sha256");
+			if (size < 0 || blockSize < 1) {
+				throw new IOException("Invalid block index");
+			}
+			int count = (int) ((size + blockSize - 1) / blockSize);
+			int[] weak = new int[count];
+			byte[][] strong = new byte[count][];
+			for (int i = 0; i < count; i++) {
+				String line = r.readLine();
+				if (line == null || line.length() != 8 + 1 + 32) {
+					throw new IOException("Invalid block " + i);
+				}
+				weak[i] = (int) Long.parseLong(line.substring(0, 8), 16);
+				strong[i] = Hex.decodeHex(line.substring(9).toCharArray());
+			}
+			return new BlockIndex(size, blockSize, sha256, weak, strong);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid block index : " + e.getMessage());
+		} catch (DecoderException e) {
+			throw new IOException("Invalid block index : " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Gets the value of a header line.
+	 * 
+	 * @param line
+	 *            the line
+	 * @param name
+	 *            the name of the header
+	 * @return the value
+	 * @throws IOException
+	 *             if the line is not the expected header
+	 */
+	private static String value(String line, String name) throws IOException {
+		if (line == null || !line.startsWith(name + " ")) {
+			throw new IOException("Missing " + name + " in block index");
+		}
+		return line.substring(name.length() + 1).trim();
+	}
+
+	/**
+	 * Writes the index.
+	 * 
+	 * @param w
+	 *            the writer
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	void write(Writer w) throws IOException {
+		w.write(HEADER + "\n");
+		w.write("size " + size + "\n");
+		w.write("block-size " + blockSize + "\n");
+		w.write("sha256 " + sha256 + "\n");
+		for (int i = 0; i < weak.length; i++) {
+			String hex = Long.toHexString(weak[i] & 0xffffffffL);
+			w.write("00000000".substring(hex.length()) + hex + " "
+					+ new String(Hex.encodeHex(strong[i])) + "\n");
+		}
+	}
+
+	/**
+	 * Computes the weak checksum of a block, the one rsync uses: the sum of
+	 * the bytes in the low half and the sum of the running sums in the high
+	 * half.
+	 * 
+	 * @param b
+	 *            the bytes
+	 * @param off
+	 *            the offset
+	 * @param len
+	 *            the length
+	 * @return the checksum
+	 */
+	static int weak(byte[] b, int off, int len) {
+		int a = 0;
+		int s = 0;
+		for (int i = 0; i < len; i++) {
+			a += b[off + i] & 0xff;
+			s += (len - i) * (b[off + i] & 0xff);
+		}
+		return (a & 0xffff) | (s << 16);
+	}
+
+	/**
+	 * Rolls a weak checksum one byte forward.
+	 * 
+	 * @param checksum
+	 *            the checksum of the window
+	 * @param out
+	 *            the byte leaving the window
+	 * @param in
+	 *            the byte entering the window
+	 * @param len
+	 *            the length of the window
+	 * @return the checksum of the next window
+	 */
+	static int roll(int checksum, byte out, byte in, int len) {
+		int a = checksum & 0xffff;
+		int s = checksum >>> 16;
+		a = (a - (out & 0xff) + (in & 0xff)) & 0xffff;
+		s = (s - len * (out & 0xff) + a) & 0xffff;
+		return a | (s << 16);
+	}
+
+	/**
+	 * Creates a message digest.
+	 * 
+	 * @param algorithm
+	 *            the algorithm
+	 * @return the digest
+	 */
+	static MessageDigest digest(String algorithm) {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Reads exactly the given number of bytes.
+	 * 
+	 * @param in
+	 *            the stream
+	 * @param b
+	 *            the buffer
+	 * @param len
+	 *            the number of bytes
+	 * @throws IOException
+	 *             if the stream ends early
+	 */
+	static void readFully(InputStream in, byte[] b, int len)
+			throws IOException {
+		int n = 0;
+		while (n < len) {
+			int r = in.read(b, n, len - n);
+			if (r < 0) {
+				throw new IOException("Unexpected end of file");
+			}
+			n += r;
+		}
+	}
+
+	/**
+	 * Copies the start of an array.
+	 * 
+	 * @param b
+	 *            the array
+	 * @param len
+	 *            the length
+	 * @return the copy
+	 */
+	private static byte[] copyOf(byte[] b, int len) {
+		byte[] copy = new byte[len];
+		System.arraycopy(b, 0, copy, 0, len);
+		return copy;
+	}
+
+	/**
+	 * Gets the size of the archive.
+	 * 
+	 * @return the size
+	 */
+	long getSize() {
+		return size;
+	}
+
+	/**
+	 * Gets the block size.
+	 * 
+	 * @return the block size
+	 */
+	int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Gets the SHA-256 of the archive.
+	 * 
+	 * @return the hex encoded digest
+	 */
+	String getSha256() {
+		return sha256;
+	}
+
+	/**
+	 * Gets the number of blocks.
+	 * 
+	 * @return the block count
+	 */
+	int getBlockCount() {
+		return weak.length;
+	}
+
+	/**
+	 * Gets the length of a block.
+	 * 
+	 * @param i
+	 *            the block
+	 * @return the length, less than the block size for the last block
+	 */
+	int getLength(int i) {
+		return (int) Math.min(blockSize, size - (long) i * blockSize);
+	}
+
+	/**
+	 * Gets the weak checksum of a block.
+	 * 
+	 * @param i
+	 *            the block
+	 * @return the checksum
+	 */
+	int getWeak(int i) {
+		return weak[i];
+	}
+
+	/**
+	 * Gets the MD5 of a block.
+	 * 
+	 * @param i
+	 *            the block
+	 * @return the digest
+	 */
+	byte[] getStrong(int i) {
+		return strong[i];
+	}
+}
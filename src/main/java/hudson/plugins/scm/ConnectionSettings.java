@@ -0,0 +1,346 @@
+package hudson.plugins.scm;
+
+import hudson.ProxyConfiguration;
+import hudson.plugins.scm.ArchiveFilesSCM.URLTuple;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Proxy;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Locale;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * The proxy, authentication and timeout settings needed to open a connection
+ * to one URL. The settings are resolved on the master, where the Jenkins proxy
+ * configuration is available, and are serializable so that the connection can
+ * also be opened on the node that owns the workspace.
+ * 
+ * Http connections are kept alive by the connection pool of the JVM and reused
+ * by the next request to the same server, for polling and downloads alike, as
+ * long as a response is read to its end or is released with
+ * {@link #release(HttpURLConnection)}. The size of that pool is set with the
+ * <tt>http.maxConnections</tt> system property of the JVM.
+ */
+final class ConnectionSettings implements Serializable {
+
+	/** The Constant serialVersionUID. */
+	private static final long serialVersionUID = 1L;
+
+	/** The most bytes read to return a connection to the keep-alive pool. */
+	private static final int RELEASE_LIMIT = 64 * 1024;
+
+	/** The proxy host, null if no proxy is configured. */
+	private final String proxyHost;
+
+	/** The proxy port. */
+	private final int proxyPort;
+
+	/** The proxy user name, null if the proxy is not secured. */
+	private final String proxyUserName;
+
+	/** The proxy password. */
+	private final String proxyPassword;
+
+	/** The user name of the URL, empty if the URL is not secured. */
+	private final String username;
+
+	/** The password of the URL. */
+	private final String password;
+
+	/**
+	 * The host and port of the URL, the only server the credentials are sent
+	 * to, null if the URL is invalid.
+	 */
+	private final String origin;
+
+	/** The connect timeout in millis, 0 for no timeout. */
+	private final int connectTimeout;
+
+	/** The read timeout in millis, 0 for no timeout. */
+	private final int readTimeout;
+
+	/** The proxy, created on first use. */
+	private transient Proxy proxy;
+
+	/** The Proxy-Authorization header, built on first use. */
+	private transient String proxyAuthorization;
+
+	/** The Authorization header, built on first use. */
+	private transient String authorization;
+
+	/**
+	 * Instantiates new connection settings.
+	 * 
+	 * @param proxyHost
+	 *            the proxy host
+	 * @param proxyPort
+	 *            the proxy port
+	 * @param proxyUserName
+	 *            the proxy user name
+	 * @param proxyPassword
+	 *            the proxy password
+	 * @param username
+	 *            the username
+	 * @param password
+	 *            the password
+	 * @param origin
+	 *            the host and port of the URL
+	 * @param connectTimeout
+	 *            the connect timeout in millis
+	 * @param readTimeout
+	 *            the read timeout in millis
+	 */
+	private ConnectionSettings(String proxyHost, int proxyPort,
+			String proxyUserName, String proxyPassword, String username,
+			String password, String origin, int connectTimeout,
+			int readTimeout) {
+		this.proxyHost = proxyHost;
+		this.proxyPort = proxyPort;
+		this.proxyUserName = proxyUserName;
+		this.proxyPassword = proxyPassword;
+		this.username = username;
+		this.password = password;
+		this.origin = origin;
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Creates the settings for a URL.
+	 * 
+	 * @param tuple
+	 *            the tuple
+	 * @param proxyConfiguration
+	 *            the Jenkins proxy configuration, null if no proxy is
+	 *            configured
+	 * @param connectTimeout
+	 *            the connect timeout in millis, 0 for no timeout
+	 * @param readTimeout
+	 *            the read timeout in millis, 0 for no timeout
+	 * @return the connection settings
+	 */
+	static ConnectionSettings create(URLTuple tuple,
+			ProxyConfiguration proxyConfiguration, int connectTimeout,
+			int readTimeout) {
+		String proxyHost = null;
+		int proxyPort = 0;
+		String proxyUserName = null;
+		String proxyPassword = null;
+		if (proxyConfiguration != null) {
+			proxyHost = proxyConfiguration.name;
+			proxyPort = proxyConfiguration.port;
+			if (proxyConfiguration.getUserName() != null
+					&& proxyConfiguration.getUserName().trim().length() > 0) {
+				proxyUserName = proxyConfiguration.getUserName();
+				proxyPassword = proxyConfiguration.getPassword();
+			}
+		}
+		String origin;
+		try {
+			origin = origin(new URL(tuple.getUrlString()));
+		} catch (MalformedURLException e) {
+			origin = null;
+		}
+		return new ConnectionSettings(proxyHost, proxyPort, proxyUserName,
+				proxyPassword, tuple.getUsername(), tuple.getPassword(),
+				origin, connectTimeout, readTimeout);
+	}
+
+	/**
+	 * Gets the host and port of a URL.
+	 * 
+	 * @param url
+	 *            the url
+	 * @return the lower case host and the port, the default port of the
+	 *         protocol if the URL has none
+	 */
+	private static String origin(URL url) {
+		int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+		return url.getHost().toLowerCase(Locale.ENGLISH) + ":" + port;
+	}
+
+	/**
+	 * Checks if a proxy is configured.
+	 * 
+	 * @return true, if a proxy is configured
+	 */
+	boolean isProxyConfigured() {
+		return proxyHost != null;
+	}
+
+	/**
+	 * Checks if the proxy requires authentication.
+	 * 
+	 * @return true, if the proxy is secured
+	 */
+	boolean isProxySecured() {
+		return proxyUserName != null;
+	}
+
+	/**
+	 * Checks if the URL requires authentication.
+	 * 
+	 * @return true, if the URL is secured
+	 */
+	boolean isSecured() {
+		return username != null && username.length() > 0;
+	}
+
+	/**
+	 * Gets the Jenkins proxy connections are opened through.
+	 * 
+	 * @return the proxy, null if no proxy is configured in Jenkins
+	 */
+	synchronized Proxy getProxy() {
+		if (proxy == null && proxyHost != null) {
+			// the JVM pools keep-alive connections per proxy, so the same
+			// instance is handed out for every request
+			proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress(
+					proxyHost, proxyPort));
+		}
+		return proxy;
+	}
+
+	/**
+	 * Describes the proxy for the build console.
+	 * 
+	 * @return the description
+	 */
+	String describeProxy() {
+		return proxyHost + ":" + proxyPort;
+	}
+
+	/**
+	 * Identifies what a server sees of these settings, so that results can be
+	 * shared between jobs connecting with the same credentials. The
+	 * credentials are hashed and never kept in plain text.
+	 * 
+	 * @return the identity
+	 */
+	String identity() {
+		return ArchiveCache.sha256(proxyHost + ":" + proxyPort + "\n"
+				+ proxyUserName + "\n" + proxyPassword + "\n" + username
+				+ "\n" + password);
+	}
+
+	/**
+	 * Opens a connection to the URL through the configured proxy and sets the
+	 * authentication headers. Without a Jenkins proxy, the proxy system
+	 * properties and the default ProxySelector of the JVM apply. The
+	 * credentials of the URL are only sent to its own server, not to e.g. a
+	 * checksum sidecar file on another host.
+	 * 
+	 * @param url
+	 *            the url
+	 * @return the connection, not yet connected
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	URLConnection open(URL url) throws IOException {
+		// Proxy should be used when it is configured in Jenkins global
+		// configuration
+		Proxy p = getProxy();
+		URLConnection connection = p == null ? url.openConnection() : url
+				.openConnection(p);
+		// setting authentication parameters for proxy.
+		// Authenticator class is not used here because of two
+		// reasons. The actual URL to download file may be secured
+		// and we can not set two Authenticators at
+		// the same time using Authenticator.setDefault and the
+		// second reason is username/password caching
+		// bug in JDK.
+		// (say if user gives incorrect username/password and when
+		// validation is performed, that
+		// username/password cached and even
+		// if user gives correct password next time
+		// java.net.URLConnection uses cached password only.
+		// User name and password is not cached when it is set as
+		// request parameter.)
+		// http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6626700
+		if (proxyUserName != null) {
+			if (proxyAuthorization == null) {
+				proxyAuthorization = basic(proxyUserName, proxyPassword);
+			}
+			connection.setRequestProperty("Proxy-Authorization",
+					proxyAuthorization);
+		}
+		// The same applies to the URL itself. The Authenticator set by
+		// URLTuple only exists in the master JVM, so the credentials are sent
+		// as request parameter as well.
+		if (isSecured() && url.getProtocol().startsWith("http")
+				&& origin(url).equals(origin)) {
+			if (authorization == null) {
+				authorization = basic(username, password);
+			}
+			connection.setRequestProperty("Authorization", authorization);
+		}
+		// Do not use cached file
+		connection.setUseCaches(false);
+		connection.setConnectTimeout(connectTimeout);
+		connection.setReadTimeout(readTimeout);
+		return connection;
+	}
+
+	/**
+	 * Releases an http connection whose body is not going to be read. Empty
+	 * and error responses are read to their end, so the connection goes back
+	 * to the keep-alive pool; a connection with a body, e.g. an archive, is
+	 * dropped instead of being drained.
+	 * 
+	 * @param http
+	 *            the connection
+	 */
+	static void release(HttpURLConnection http) {
+		try {
+			int status = http.getResponseCode();
+			InputStream in;
+			if ("HEAD".equals(http.getRequestMethod())
+					|| status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				in = http.getInputStream();
+			} else if (status >= 400) {
+				in = http.getErrorStream();
+			} else {
+				http.disconnect();
+				return;
+			}
+			if (in != null) {
+				byte[] buffer = new byte[1024];
+				int left = RELEASE_LIMIT;
+				int n;
+				while (left > 0 && (n = in.read(buffer)) != -1) {
+					left -= n;
+				}
+				if (left <= 0) {
+					// not worth draining, e.g. an error page that is a site
+					http.disconnect();
+					return;
+				}
+				in.close();
+			}
+		} catch (IOException e) {
+			http.disconnect();
+		}
+	}
+
+	/**
+	 * Builds a basic authentication header value.
+	 * 
+	 * @param user
+	 *            the user
+	 * @param pass
+	 *            the password
+	 * @return the header value
+	 */
+	private static String basic(String user, String pass) {
+		return "Basic "
+				+ new String(Base64.encodeBase64((user + ":" + pass)
+						.getBytes()));
+	}
+}
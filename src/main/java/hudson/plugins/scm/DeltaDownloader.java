@@ -0,0 +1,342 @@
+package hudson.plugins.scm;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Downloads a new version of an archive by reusing the blocks it shares with
+ * the previous version kept on the node, in the manner of zsync. The
+ * {@link BlockIndex} published next to the archive is matched against the
+ * previous version with a rolling checksum, so blocks that merely moved are
+ * found as well; the blocks that are not found are fetched with http range
+ * requests. The new version is written block by block in order, and its
+ * SHA-256 is checked against the index before it is handed to the extractor.
+ */
+final class DeltaDownloader {
+
+	/** The size of the read buffer of the previous version. */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/** The url. */
+	private final URL url;
+
+	/** The connection settings. */
+	private final ConnectionSettings settings;
+
+	/** The revision metadata of the url. */
+	private final UrlProbe.Result remote;
+
+	/** The throttle of the download. */
+	private final Throttle throttle;
+
+	/** The number of bytes reused from the previous version. */
+	private long reused;
+
+	/** The number of range requests sent. */
+	private int requests;
+
+	/**
+	 * Instantiates a new delta downloader.
+	 * 
+	 * @param url
+	 *            the url
+	 * @param settings
+	 *            the connection settings
+	 * @param remote
+	 *            the revision metadata of the url
+	 * @param throttle
+	 *            the throttle of the download
+	 */
+	DeltaDownloader(URL url, ConnectionSettings settings,
+			UrlProbe.Result remote, Throttle throttle) {
+		this.url = url;
+		this.settings = settings;
+		this.remote = remote;
+		this.throttle = throttle;
+	}
+
+	/**
+	 * Fetches the block index of the url.
+	 * 
+	 * @return the index
+	 * @throws IOException
+	 *             if there is no valid index
+	 */
+	BlockIndex fetchIndex() throws IOException {
+		InputStream in = settings.open(
+				new URL(url.toExternalForm() + BlockIndex.SUFFIX))
+				.getInputStream();
+		try {
+			BlockIndex index = BlockIndex.read(in);
+			if (remote.getContentLength() >= 0
+					&& remote.getContentLength() != index.getSize()) {
+				throw new IOException("The block index does not match "
+						+ url);
+			}
+			return index;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Rebuilds the new version of the archive from the previous version and
+	 * the blocks that changed.
+	 * 
+	 * @param index
+	 *            the block index of the new version
+	 * @param previous
+	 *            the previous version
+	 * @param target
+	 *            the file to write the new version to
+	 * @return the number of bytes downloaded
+	 * @throws IOException
+	 *             if the download fails or the result does not match the
+	 *             index, in which case the caller downloads the whole file
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	long download(BlockIndex index, File previous, File target)
+			throws IOException, InterruptedException {
+		long[] sources = match(index, previous);
+		MessageDigest digest = BlockIndex.digest("SHA-256");
+		byte[] buffer = new byte[index.getBlockSize()];
+		long downloaded = 0;
+		RandomAccessFile old = new RandomAccessFile(previous, "r");
+		RandomAccessFile out = new RandomAccessFile(target, "rw");
+		try {
+			out.setLength(0);
+			int count = index.getBlockCount();
+			int i = 0;
+			while (i < count) {
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+				if (sources[i] >= 0) {
+					int length = index.getLength(i);
+					old.seek(sources[i]);
+					old.readFully(buffer, 0, length);
+					out.write(buffer, 0, length);
+					digest.update(buffer, 0, length);
+					reused += length;
+					i++;
+					continue;
+				}
+				// one request for a run of missing blocks
+				int end = i;
+				while (end < count && sources[end] < 0) {
+					end++;
+				}
+				long first = (long) i * index.getBlockSize();
+				long last = Math.min((long) end * index.getBlockSize(), index
+						.getSize()) - 1;
+				downloaded += fetch(first, last, out, digest, buffer);
+				i = end;
+			}
+		} finally {
+			old.close();
+			out.close();
+		}
+		String actual = new String(Hex.encodeHex(digest.digest()));
+		if (!actual.equals(index.getSha256())) {
+			throw new IOException("SHA-256 mismatch of the rebuilt " + url
+					+ " : expected " + index.getSha256() + " but was "
+					+ actual);
+		}
+		return downloaded;
+	}
+
+	/**
+	 * Finds the blocks of the new version in the previous version, sliding
+	 * the rolling checksum over it one byte at a time and confirming every
+	 * weak match with the MD5 of the block.
+	 * 
+	 * @param index
+	 *            the block index of the new version
+	 * @param previous
+	 *            the previous version
+	 * @return the offset in the previous version of every block, -1 for the
+	 *         blocks that have to be downloaded
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static long[] match(BlockIndex index, File previous)
+			throws IOException {
+		int count = index.getBlockCount();
+		int blockSize = index.getBlockSize();
+		long[] sources = new long[count];
+		Arrays.fill(sources, -1);
+		Map<Integer, List<Integer>> byWeak = new HashMap<Integer, List<Integer>>();
+		for (int i = 0; i < count; i++) {
+			if (index.getLength(i) == blockSize) {
+				List<Integer> blocks = byWeak.get(index.getWeak(i));
+				if (blocks == null) {
+					blocks = new ArrayList<Integer>();
+					byWeak.put(index.getWeak(i), blocks);
+				}
+				blocks.add(i);
+			}
+		}
+		long length = previous.length();
+		int missing = count;
+		MessageDigest md5 = BlockIndex.digest("MD5");
+		if (!byWeak.isEmpty() && length >= blockSize) {
+			// the window is a ring buffer, its first byte is at start
+			byte[] window = new byte[blockSize];
+			int start = 0;
+			// the window slides one byte per read
+			InputStream in = new BufferedInputStream(LocalFiles
+					.open(previous), BUFFER_SIZE);
+			try {
+				BlockIndex.readFully(in, window, blockSize);
+				int weak = BlockIndex.weak(window, 0, blockSize);
+				long pos = 0;
+				while (missing > 0) {
+					List<Integer> blocks = byWeak.get(weak);
+					boolean matched = false;
+					if (blocks != null) {
+						md5.update(window, start, blockSize - start);
+						md5.update(window, 0, start);
+						byte[] strong = md5.digest();
+						for (int i : blocks) {
+							if (Arrays.equals(strong, index.getStrong(i))) {
+								matched = true;
+								if (sources[i] < 0) {
+									sources[i] = pos;
+									missing--;
+								}
+							}
+						}
+					}
+					if (matched) {
+						// continue behind the block
+						if (pos + 2L * blockSize > length) {
+							break;
+						}
+						BlockIndex.readFully(in, window, blockSize);
+						start = 0;
+						pos += blockSize;
+						weak = BlockIndex.weak(window, 0, blockSize);
+						continue;
+					}
+					int b = in.read();
+					if (b < 0) {
+						break;
+					}
+					byte out = window[start];
+					window[start] = (byte) b;
+					start = (start + 1) % blockSize;
+					weak = BlockIndex.roll(weak, out, (byte) b, blockSize);
+					pos++;
+				}
+			} finally {
+				in.close();
+			}
+		}
+		// the last block is usually shorter and can only be matched with the
+		// end of the previous version
+		int last = count - 1;
+		if (last >= 0 && sources[last] < 0 && length >= index.getLength(last)) {
+			int tail = index.getLength(last);
+			byte[] b = new byte[tail];
+			RandomAccessFile f = new RandomAccessFile(previous, "r");
+			try {
+				f.seek(length - tail);
+				f.readFully(b);
+			} finally {
+				f.close();
+			}
+			if (Arrays.equals(md5.digest(b), index.getStrong(last))) {
+				sources[last] = length - tail;
+			}
+		}
+		return sources;
+	}
+
+	/**
+	 * Downloads a range of the new version and appends it to the target.
+	 * 
+	 * @param first
+	 *            the offset of the first byte
+	 * @param last
+	 *            the offset of the last byte
+	 * @param out
+	 *            the target
+	 * @param digest
+	 *            the digest of the new version
+	 * @param buffer
+	 *            the buffer
+	 * @return the number of bytes downloaded
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private long fetch(long first, long last, RandomAccessFile out,
+			MessageDigest digest, byte[] buffer) throws IOException {
+		requests++;
+		HttpURLConnection connection = (HttpURLConnection) settings.open(url);
+		connection.setRequestProperty("Range", "bytes=" + first + "-" + last);
+		String validator = ResumableDownloader.validator(remote);
+		if (validator != null) {
+			// a newer version than the one of the index must not be mixed in
+			connection.setRequestProperty("If-Range", validator);
+		}
+		int status = connection.getResponseCode();
+		if (status != HttpURLConnection.HTTP_PARTIAL
+				|| !String.valueOf(connection.getHeaderField("Content-Range"))
+						.startsWith("bytes " + first + "-")) {
+			ConnectionSettings.release(connection);
+			throw new IOException("Server did not return the range " + first
+					+ "-" + last + " of " + url + " : HTTP " + status);
+		}
+		InputStream in = throttle.wrap(connection.getInputStream());
+		long expected = last - first + 1;
+		long n = 0;
+		try {
+			while (n < expected) {
+				int r = in.read(buffer, 0, (int) Math.min(buffer.length,
+						expected - n));
+				if (r < 0) {
+					throw new IOException("Premature end of " + url
+							+ " at byte " + (first + n));
+				}
+				out.write(buffer, 0, r);
+				digest.update(buffer, 0, r);
+				n += r;
+			}
+		} finally {
+			in.close();
+		}
+		return n;
+	}
+
+	/**
+	 * Gets the number of bytes reused from the previous version.
+	 * 
+	 * @return the reused bytes
+	 */
+	long getReused() {
+		return reused;
+	}
+
+	/**
+	 * Gets the number of range requests sent.
+	 * 
+	 * @return the requests
+	 */
+	int getRequests() {
+		return requests;
+	}
+}
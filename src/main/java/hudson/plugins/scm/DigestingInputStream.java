@@ -0,0 +1,99 @@
+package hudson.plugins.scm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * An input stream that computes the SHA-256 of everything read through it.
+ * Extractors stop reading at the end of the archive structure and zip
+ * archives are read from their file instead of the stream, so closing this
+ * stream first reads the rest of the source. Once the stream is closed the
+ * digest covers the whole archive. When no digest is needed, the stream is
+ * discarded instead, so an archive read from its file is not read twice.
+ */
+final class DigestingInputStream extends DigestInputStream {
+
+	/** The size of the buffer used to read the rest of the source. */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/** Set once the stream is closed. */
+	private boolean closed;
+
+	/** The hex encoded digest, null until the stream is closed. */
+	private String hexDigest;
+
+	/**
+	 * Instantiates a new digesting input stream.
+	 * 
+	 * @param source
+	 *            the source, closed by this stream
+	 */
+	DigestingInputStream(InputStream source) {
+		super(source, sha256());
+	}
+
+	/**
+	 * Creates a SHA-256 message digest.
+	 * 
+	 * @return the message digest
+	 */
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.io.FilterInputStream#close()
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while (read(buffer, 0, buffer.length) != -1) {
+				// only the digest is of interest
+			}
+			hexDigest = new String(Hex.encodeHex(getMessageDigest().digest()));
+		} finally {
+			super.close();
+		}
+	}
+
+	/**
+	 * Closes the stream without reading the rest of the source. The digest
+	 * is not computed.
+	 * 
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	synchronized void discard() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		super.close();
+	}
+
+	/**
+	 * Gets the hex encoded SHA-256 of the source.
+	 * 
+	 * @return the digest, null if the stream has not been closed, was
+	 *         discarded or the rest of the source could not be read
+	 */
+	synchronized String getHexDigest() {
+		return hexDigest;
+	}
+}
@@ -0,0 +1,324 @@
+package hudson.plugins.scm;
+
+import hudson.remoting.VirtualChannel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Schedules the downloads of all jobs of the master, so that a burst of
+ * checkouts does not saturate an artifact server or the uplink of the
+ * master. At most a configured number of downloads run per server at the
+ * same time; the others wait in a first come, first served queue of their
+ * server. When an aggregate bandwidth is configured, all running downloads
+ * draw from it through one shared {@link Throttle.Bucket}.
+ * 
+ * A download takes its slot only once it is known that bytes will be
+ * transferred, so checkouts that find the workspace up to date or the archive
+ * in a node cache never wait. Downloads that happen on a node are scheduled
+ * here as well, through the {@link Gate} of their slot.
+ */
+final class DownloadScheduler {
+
+	/** The instance. */
+	private static final DownloadScheduler INSTANCE = new DownloadScheduler();
+
+	/** The queues by server. */
+	private final Map<String, Queue> queues = new TreeMap<String, Queue>();
+
+	/** The bandwidth all downloads share. */
+	private final Throttle.Bucket bandwidth = new Throttle.Bucket();
+
+	/**
+	 * Gets the scheduler of the master.
+	 * 
+	 * @return the scheduler
+	 */
+	static DownloadScheduler get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Creates the slot of a download from a server. The download waits for
+	 * its turn when it {@link Slot#enter() enters} the slot.
+	 * 
+	 * @param server
+	 *            the server, as protocol, host and port
+	 * @param owner
+	 *            what the download is for, shown while it waits or runs
+	 * @param maxPerServer
+	 *            the maximum number of downloads from one server, 0 for no
+	 *            limit
+	 * @param maxBytesPerSecond
+	 *            the maximum aggregate bandwidth, 0 for no limit
+	 * @return the slot, to be released once the download is done
+	 */
+	Slot slot(String server, String owner, int maxPerServer,
+			long maxBytesPerSecond) {
+		return new Slot(server, owner, maxPerServer, maxBytesPerSecond);
+	}
+
+	/**
+	 * Waits until a download may start.
+	 * 
+	 * @param slot
+	 *            the slot of the download
+	 * @throws InterruptedException
+	 *             if the build is aborted while waiting, or the slot is
+	 *             released
+	 */
+	private synchronized void enter(Slot slot) throws InterruptedException {
+		if (slot.queue != null) {
+			return;
+		}
+		if (slot.released) {
+			throw new InterruptedException("Download of " + slot.owner
+					+ " was cancelled");
+		}
+		Queue queue = queues.get(slot.server);
+		if (queue == null) {
+			queue = new Queue(slot.server);
+			queues.put(slot.server, queue);
+		}
+		queue.waiting.add(slot);
+		try {
+			while (queue.waiting.getFirst() != slot
+					|| (slot.maxPerServer > 0 && queue.running.size() >= slot
+							.maxPerServer)) {
+				if (slot.released) {
+					throw new InterruptedException("Download of "
+							+ slot.owner + " was cancelled");
+				}
+				wait();
+			}
+		} catch (InterruptedException e) {
+			queue.waiting.remove(slot);
+			forget(queue);
+			// the next one in the queue may be able to start now
+			notifyAll();
+			throw e;
+		}
+		queue.waiting.removeFirst();
+		queue.running.add(slot.owner);
+		slot.queue = queue;
+		// the latest configuration applies to all running downloads
+		bandwidth.setBytesPerSecond(slot.maxBytesPerSecond);
+		notifyAll();
+	}
+
+	/**
+	 * Releases a slot.
+	 * 
+	 * @param slot
+	 *            the slot
+	 */
+	private synchronized void release(Slot slot) {
+		if (slot.released) {
+			return;
+		}
+		slot.released = true;
+		if (slot.queue != null) {
+			slot.queue.running.remove(slot.owner);
+			forget(slot.queue);
+		}
+		// wakes a download that waits in the slot as well
+		notifyAll();
+	}
+
+	/**
+	 * Removes the queue of a server once nothing uses it.
+	 * 
+	 * @param queue
+	 *            the queue
+	 */
+	private void forget(Queue queue) {
+		if (queue.running.isEmpty() && queue.waiting.isEmpty()) {
+			queues.remove(queue.server);
+		}
+	}
+
+	/**
+	 * Gets the current state of the queues.
+	 * 
+	 * @return a snapshot of the queues by server
+	 */
+	synchronized List<Queue> getQueues() {
+		List<Queue> list = new ArrayList<Queue>();
+		for (Queue q : queues.values()) {
+			list.add(q.copy());
+		}
+		return Collections.unmodifiableList(list);
+	}
+
+	/**
+	 * Lets a download wait for its turn, possibly from a node.
+	 */
+	interface Gate {
+
+		/**
+		 * Waits until the download may start. Entering again has no effect.
+		 * 
+		 * @throws InterruptedException
+		 *             if the build is aborted while waiting
+		 */
+		void enter() throws InterruptedException;
+	}
+
+	/**
+	 * The permission to download from a server.
+	 */
+	final class Slot implements Gate {
+
+		/** The server. */
+		private final String server;
+
+		/** What the download is for. */
+		private final String owner;
+
+		/** The maximum number of downloads from one server. */
+		private final int maxPerServer;
+
+		/** The maximum aggregate bandwidth. */
+		private final long maxBytesPerSecond;
+
+		/** The queue the download runs in, null until it entered. */
+		private Queue queue;
+
+		/** Whether the slot was released. */
+		private boolean released;
+
+		/**
+		 * Instantiates a new slot.
+		 * 
+		 * @param server
+		 *            the server
+		 * @param owner
+		 *            what the download is for
+		 * @param maxPerServer
+		 *            the maximum number of downloads from one server
+		 * @param maxBytesPerSecond
+		 *            the maximum aggregate bandwidth
+		 */
+		Slot(String server, String owner, int maxPerServer,
+				long maxBytesPerSecond) {
+			this.server = server;
+			this.owner = owner;
+			this.maxPerServer = maxPerServer;
+			this.maxBytesPerSecond = maxBytesPerSecond;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see hudson.plugins.scm.DownloadScheduler.Gate#enter()
+		 */
+		public void enter() throws InterruptedException {
+			DownloadScheduler.this.enter(this);
+		}
+
+		/**
+		 * Gets the throttle of the download, which draws from the bandwidth
+		 * all downloads share.
+		 * 
+		 * @return the throttle
+		 */
+		Throttle getThrottle() {
+			return maxBytesPerSecond > 0 ? new Throttle(bandwidth)
+					: Throttle.NONE;
+		}
+
+		/**
+		 * Gets the gate of the download for a node.
+		 * 
+		 * @param channel
+		 *            the channel of the node
+		 * @return the gate, which waits on the master
+		 */
+		Gate export(VirtualChannel channel) {
+			return channel.export(Gate.class, this);
+		}
+
+		/**
+		 * Releases the slot, letting the next download from the server
+		 * start. Releasing twice has no effect.
+		 */
+		void release() {
+			DownloadScheduler.this.release(this);
+		}
+	}
+
+	/**
+	 * The downloads running and waiting for one server.
+	 */
+	public static final class Queue {
+
+		/** The server. */
+		private final String server;
+
+		/** The running downloads. */
+		private final List<String> running = new ArrayList<String>();
+
+		/** The waiting downloads, in the order they start. */
+		private final LinkedList<Slot> waiting = new LinkedList<Slot>();
+
+		/** The waiting downloads of a snapshot. */
+		private List<String> waitingOwners;
+
+		/**
+		 * Instantiates a new queue.
+		 * 
+		 * @param server
+		 *            the server
+		 */
+		Queue(String server) {
+			this.server = server;
+		}
+
+		/**
+		 * Copies the queue.
+		 * 
+		 * @return the copy
+		 */
+		Queue copy() {
+			Queue q = new Queue(server);
+			q.running.addAll(running);
+			q.waitingOwners = new ArrayList<String>();
+			for (Slot s : waiting) {
+				q.waitingOwners.add(s.owner);
+			}
+			return q;
+		}
+
+		/**
+		 * Gets the server.
+		 * 
+		 * @return the protocol, host and port
+		 */
+		public String getServer() {
+			return server;
+		}
+
+		/**
+		 * Gets the running downloads.
+		 * 
+		 * @return what the downloads are for
+		 */
+		public List<String> getRunning() {
+			return Collections.unmodifiableList(running);
+		}
+
+		/**
+		 * Gets the waiting downloads of a snapshot.
+		 * 
+		 * @return what the downloads are for, in the order they start
+		 */
+		public List<String> getWaiting() {
+			return waitingOwners == null ? Collections.<String> emptyList()
+					: Collections.unmodifiableList(waitingOwners);
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package hudson.plugins.scm;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+/**
+ * Selects the archive entries that are extracted, using Ant style include
+ * and exclude patterns such as <code>docs/**</code> or
+ * <code>**&#47;*.so</code>. An entry is extracted when it matches an include
+ * pattern, or no include patterns are given, and matches no exclude pattern.
+ * 
+ * The patterns are kept with '/' separators, like the entry names of the
+ * archives, so a filter created on the master matches the same entries on an
+ * agent of another platform. They are converted to the separator of the JVM
+ * that extracts, which is what {@link SelectorUtils} tokenizes on, when they
+ * are first used there.
+ */
+final class EntryFilter implements Serializable {
+
+	/** The Constant serialVersionUID. */
+	private static final long serialVersionUID = 1L;
+
+	/** The filter that accepts every entry. */
+	static final EntryFilter ALL = new EntryFilter(new ArrayList<String>(),
+			new ArrayList<String>());
+
+	/** The include patterns. */
+	private final List<String> includes;
+
+	/** The exclude patterns. */
+	private final List<String> excludes;
+
+	/** The include patterns with the separator of this JVM. */
+	private transient List<String> localIncludes;
+
+	/** The exclude patterns with the separator of this JVM. */
+	private transient List<String> localExcludes;
+
+	/**
+	 * Instantiates a new entry filter.
+	 * 
+	 * @param includes
+	 *            the includes
+	 * @param excludes
+	 *            the excludes
+	 */
+	private EntryFilter(List<String> includes, List<String> excludes) {
+		this.includes = includes;
+		this.excludes = excludes;
+	}
+
+	/**
+	 * Creates a filter from comma or whitespace separated pattern lists.
+	 * 
+	 * @param includes
+	 *            the include patterns, empty or null to include everything
+	 * @param excludes
+	 *            the exclude patterns, empty or null to exclude nothing
+	 * @return the filter
+	 */
+	static EntryFilter create(String includes, String excludes) {
+		List<String> in = parse(includes);
+		List<String> ex = parse(excludes);
+		if (in.isEmpty() && ex.isEmpty()) {
+			return ALL;
+		}
+		return new EntryFilter(in, ex);
+	}
+
+	/**
+	 * Splits a pattern list. As in Ant, a pattern ending with a slash matches
+	 * everything below that directory.
+	 * 
+	 * @param patterns
+	 *            the patterns
+	 * @return the patterns with '/' separators
+	 */
+	private static List<String> parse(String patterns) {
+		List<String> list = new ArrayList<String>();
+		if (patterns == null) {
+			return list;
+		}
+		for (String p : patterns.split("[,\\s]+")) {
+			if (p.length() == 0) {
+				continue;
+			}
+			if (p.endsWith("/") || p.endsWith("\\")) {
+				p += "**";
+			}
+			list.add(normalize(p));
+		}
+		return list;
+	}
+
+	/**
+	 * Converts a path to '/' separators.
+	 * 
+	 * @param path
+	 *            the path
+	 * @return the normalized path
+	 */
+	private static String normalize(String path) {
+		return path.replace('\\', '/');
+	}
+
+	/**
+	 * Converts paths to the separator of this JVM.
+	 * 
+	 * @param paths
+	 *            the paths with '/' separators
+	 * @return the local paths
+	 */
+	private static List<String> local(List<String> paths) {
+		List<String> list = new ArrayList<String>(paths.size());
+		for (String p : paths) {
+			list.add(p.replace('/', File.separatorChar));
+		}
+		return list;
+	}
+
+	/**
+	 * Checks if the filter accepts every entry.
+	 * 
+	 * @return true, if no patterns are given
+	 */
+	boolean isEmpty() {
+		return includes.isEmpty() && excludes.isEmpty();
+	}
+
+	/**
+	 * Identifies the entries selected by the filter, so that extractions with
+	 * the same patterns can be shared.
+	 * 
+	 * @return the identity
+	 */
+	String identity() {
+		return "includes=" + includes + "\nexcludes=" + excludes;
+	}
+
+	/**
+	 * Checks if an entry is extracted.
+	 * 
+	 * @param name
+	 *            the entry name, with a trailing slash for directories
+	 * @return true, if the entry is extracted
+	 */
+	boolean accept(String name) {
+		if (isEmpty()) {
+			return true;
+		}
+		List<String> in = localIncludes;
+		List<String> ex = localExcludes;
+		if (in == null || ex == null) {
+			in = local(includes);
+			ex = local(excludes);
+			localIncludes = in;
+			localExcludes = ex;
+		}
+		String path = normalize(name);
+		if (path.endsWith("/")) {
+			path = path.substring(0, path.length() - 1);
+		}
+		path = path.replace('/', File.separatorChar);
+		boolean included = in.isEmpty();
+		for (String p : in) {
+			if (SelectorUtils.matchPath(p, path)) {
+				included = true;
+				break;
+			}
+		}
+		if (!included) {
+			return false;
+		}
+		for (String p : ex) {
+			if (SelectorUtils.matchPath(p, path)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
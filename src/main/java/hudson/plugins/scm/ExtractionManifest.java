@@ -0,0 +1,169 @@
+package hudson.plugins.scm;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * The entries written by the last extraction of an archive into a workspace.
+ * 
+ * The manifest maps each entry name to a fingerprint of its content: size and
+ * CRC for zip entries, size and modification time for tar entries, whose
+ * headers carry no checksum. It is kept in a
+ * <code>.&lt;name&gt;-manifest</code> file next to the timestamp file.
+ */
+final class ExtractionManifest {
+
+	/** The file the manifest is stored in. */
+	private final File file;
+
+	/** The fingerprints of the previous extraction by entry name. */
+	private final Properties previous = new Properties();
+
+	/** The fingerprints of the current extraction by entry name. */
+	private final Properties current = new Properties();
+
+	/**
+	 * Instantiates a new extraction manifest.
+	 * 
+	 * @param file
+	 *            the file
+	 */
+	private ExtractionManifest(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Loads the manifest of an archive.
+	 * 
+	 * @param dir
+	 *            the workspace
+	 * @param fileName
+	 *            the file name of the archive
+	 * @return the manifest, empty if the archive was never extracted
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	static ExtractionManifest load(File dir, String fileName)
+			throws IOException {
+		ExtractionManifest manifest = new ExtractionManifest(new File(dir, "."
+				+ fileName + "-manifest"));
+		if (manifest.file.isFile()) {
+			InputStream in = new FileInputStream(manifest.file);
+			try {
+				manifest.previous.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		return manifest;
+	}
+
+	/**
+	 * Checks if an entry is unchanged since the previous extraction and still
+	 * present, untouched, in the workspace.
+	 * 
+	 * @param name
+	 *            the entry name
+	 * @param fingerprint
+	 *            the fingerprint of the entry
+	 * @param target
+	 *            the file the entry is extracted to
+	 * @param size
+	 *            the size of the entry
+	 * @param time
+	 *            the modification time the entry is extracted with
+	 * @return true, if the entry does not need to be written
+	 */
+	boolean isUnchanged(String name, String fingerprint, File target,
+			long size, long time) {
+		return fingerprint.equals(previous.getProperty(name))
+				&& target.isFile() && target.length() == size
+				&& target.lastModified() == time;
+	}
+
+	/**
+	 * Records an entry of the current extraction.
+	 * 
+	 * @param name
+	 *            the entry name
+	 * @param fingerprint
+	 *            the fingerprint
+	 */
+	synchronized void record(String name, String fingerprint) {
+		current.setProperty(name, fingerprint);
+	}
+
+	/**
+	 * Gets the entries of the previous extraction.
+	 * 
+	 * @return the names of the entries
+	 */
+	Set<String> getPrevious() {
+		return previous.stringPropertyNames();
+	}
+
+	/**
+	 * Gets the entries of the previous extraction that are not part of the
+	 * current one.
+	 * 
+	 * @return the names of the removed entries
+	 */
+	Set<String> getRemoved() {
+		Set<String> removed = new HashSet<String>(previous.stringPropertyNames());
+		removed.removeAll(current.stringPropertyNames());
+		return removed;
+	}
+
+	/**
+	 * Stores the current extraction as the manifest for the next one.
+	 * 
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	void save() throws IOException {
+		// replaced rather than overwritten, it may be a hardlink into the
+		// extracted-tree store
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Unable to replace " + file);
+		}
+		OutputStream out = new FileOutputStream(file);
+		try {
+			current.store(out, "Extracted entries");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Computes the fingerprint of a zip entry.
+	 * 
+	 * @param size
+	 *            the size
+	 * @param crc
+	 *            the crc
+	 * @return the fingerprint
+	 */
+	static String zipFingerprint(long size, long crc) {
+		return size + ":crc:" + Long.toHexString(crc);
+	}
+
+	/**
+	 * Computes the fingerprint of a tar entry.
+	 * 
+	 * @param size
+	 *            the size
+	 * @param time
+	 *            the modification time
+	 * @return the fingerprint
+	 */
+	static String tarFingerprint(long size, long time) {
+		return size + ":time:" + time;
+	}
+}
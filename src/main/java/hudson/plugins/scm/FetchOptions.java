@@ -0,0 +1,208 @@
+package hudson.plugins.scm;
+
+import java.io.Serializable;
+
+/**
+ * The job and global settings that control how a {@link UrlFetcher}
+ * downloads and extracts its URL. The options are assembled on the master
+ * once per checkout and shared by the fetchers of all URLs.
+ */
+final class FetchOptions implements Serializable {
+
+	/** The Constant serialVersionUID. */
+	private static final long serialVersionUID = 1L;
+
+	/** The directory of the node archive cache, null if not used. */
+	private String cacheDir;
+
+	/** The maximum size of the node archive cache in bytes. */
+	private long cacheSize;
+
+	/** The number of concurrent range requests per http download. */
+	private int segments = 1;
+
+	/** Whether unchanged entries are skipped during extraction. */
+	private boolean incremental;
+
+	/** The directory of the node extracted-tree store, null if not used. */
+	private String treeStoreDir;
+
+	/** The maximum size of the node extracted-tree store in bytes. */
+	private long treeStoreSize;
+
+	/** Whether workspaces may be hardlinked to the extracted-tree store. */
+	private boolean treeStoreHardlinks;
+
+	/**
+	 * The directory of the previous versions delta downloads start from, null
+	 * if downloads are not delta downloads.
+	 */
+	private String deltaDir;
+
+	/**
+	 * Whether http downloads of uncompressed archives ask the server to
+	 * compress the transfer.
+	 */
+	private boolean compression;
+
+	/**
+	 * Gets the directory of the node archive cache.
+	 * 
+	 * @return the cache directory, null if the cache is not used
+	 */
+	String getCacheDir() {
+		return cacheDir;
+	}
+
+	/**
+	 * Gets the maximum size of the node archive cache.
+	 * 
+	 * @return the size in bytes
+	 */
+	long getCacheSize() {
+		return cacheSize;
+	}
+
+	/**
+	 * Sets the node archive cache.
+	 * 
+	 * @param cacheDir
+	 *            the cache directory, null if the cache is not used
+	 * @param cacheSize
+	 *            the maximum size in bytes
+	 */
+	void setCache(String cacheDir, long cacheSize) {
+		this.cacheDir = cacheDir;
+		this.cacheSize = cacheSize;
+	}
+
+	/**
+	 * Gets the number of concurrent range requests per http download.
+	 * 
+	 * @return the segments
+	 */
+	int getSegments() {
+		return segments;
+	}
+
+	/**
+	 * Sets the number of concurrent range requests per http download.
+	 * 
+	 * @param segments
+	 *            the segments
+	 */
+	void setSegments(int segments) {
+		this.segments = segments;
+	}
+
+	/**
+	 * Checks if unchanged entries are skipped during extraction.
+	 * 
+	 * @return true, if incremental
+	 */
+	boolean isIncremental() {
+		return incremental;
+	}
+
+	/**
+	 * Sets whether unchanged entries are skipped during extraction.
+	 * 
+	 * @param incremental
+	 *            the incremental flag
+	 */
+	void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+
+	/**
+	 * Gets the directory of the node extracted-tree store.
+	 * 
+	 * @return the store directory, null if the store is not used
+	 */
+	String getTreeStoreDir() {
+		return treeStoreDir;
+	}
+
+	/**
+	 * Gets the maximum size of the node extracted-tree store.
+	 * 
+	 * @return the size in bytes
+	 */
+	long getTreeStoreSize() {
+		return treeStoreSize;
+	}
+
+	/**
+	 * Sets the node extracted-tree store.
+	 * 
+	 * @param treeStoreDir
+	 *            the store directory, null if the store is not used
+	 * @param treeStoreSize
+	 *            the maximum size in bytes
+	 */
+	void setTreeStore(String treeStoreDir, long treeStoreSize) {
+		this.treeStoreDir = treeStoreDir;
+		this.treeStoreSize = treeStoreSize;
+	}
+
+	/**
+	 * Checks if workspaces may be populated with hardlinks to the read-only
+	 * files of the extracted-tree store.
+	 * 
+	 * @return true, if hardlinks are allowed
+	 */
+	boolean isTreeStoreHardlinks() {
+		return treeStoreHardlinks;
+	}
+
+	/**
+	 * Sets whether workspaces may be populated with hardlinks to the
+	 * read-only files of the extracted-tree store.
+	 * 
+	 * @param treeStoreHardlinks
+	 *            true, if hardlinks are allowed
+	 */
+	void setTreeStoreHardlinks(boolean treeStoreHardlinks) {
+		this.treeStoreHardlinks = treeStoreHardlinks;
+	}
+
+	/**
+	 * Gets the directory of the previous versions delta downloads start from.
+	 * 
+	 * @return the directory, null if downloads are not delta downloads
+	 */
+	String getDeltaDir() {
+		return deltaDir;
+	}
+
+	/**
+	 * Sets the directory of the previous versions delta downloads start from.
+	 * 
+	 * @param deltaDir
+	 *            the directory, null if downloads are not delta downloads
+	 */
+	void setDeltaDir(String deltaDir) {
+		this.deltaDir = deltaDir;
+	}
+
+	/**
+	 * Checks if http downloads of uncompressed archives ask the server to
+	 * compress the transfer.
+	 * 
+	 * @return true, if transfers are compressed
+	 */
+	boolean isCompression() {
+		return compression;
+	}
+
+	/**
+	 * Sets whether http downloads of uncompressed archives ask the server to
+	 * compress the transfer.
+	 * 
+	 * @param compression
+	 *            true, if transfers are compressed
+	 */
+	void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+}
@@ -26,6 +26,15 @@ public class LastModifiedDateAction extends AbstractModelObject implements Actio
 	/** The last modified. */
 	private HashMap<String, Long> lastModified = new HashMap<String, Long>();
 
+	/** The ETags, null for builds recorded before ETags were stored. */
+	private HashMap<String, String> etags = new HashMap<String, String>();
+
+	/** The SHA-256 digests, null for builds recorded before they were stored. */
+	private HashMap<String, String> sha256s = new HashMap<String, String>();
+
+	/** The transfer metrics, null for builds recorded before they were stored. */
+	private HashMap<String, TransferMetrics> metrics = new HashMap<String, TransferMetrics>();
+
 	/** The build. */
 	private final AbstractBuild<?, ?> build;
 
@@ -55,7 +64,7 @@ public class LastModifiedDateAction extends AbstractModelObject implements Actio
 	 *            the url
 	 * @return the last modified
 	 */
-	public long getLastModified(String url) {
+	public synchronized long getLastModified(String url) {
 		Long l = lastModified.get(url);
 		if (l == null)
 			return 0;
@@ -63,23 +72,140 @@ public class LastModifiedDateAction extends AbstractModelObject implements Actio
 	}
 
 	/**
-	 * Sets the last modified.
+	 * Sets the last modified. Urls of one build may be downloaded in parallel,
+	 * so updates are synchronized.
 	 * 
 	 * @param url
 	 *            the url
 	 * @param lastModifiedTimeStamp
 	 *            the last modified time stamp
 	 */
-	public void setLastModified(String url, long lastModifiedTimeStamp) {
+	public synchronized void setLastModified(String url, long lastModifiedTimeStamp) {
 		lastModified.put(url, lastModifiedTimeStamp);
 	}
 
+	/**
+	 * Gets the ETag.
+	 * 
+	 * @param url
+	 *            the url
+	 * @return the ETag, null if the server did not send one
+	 */
+	public synchronized String getEtag(String url) {
+		return etags == null ? null : etags.get(url);
+	}
+
+	/**
+	 * Sets the ETag.
+	 * 
+	 * @param url
+	 *            the url
+	 * @param etag
+	 *            the ETag, null if the server did not send one
+	 */
+	public synchronized void setEtag(String url, String etag) {
+		if (etags == null) {
+			etags = new HashMap<String, String>();
+		}
+		if (etag == null) {
+			etags.remove(url);
+		} else {
+			etags.put(url, etag);
+		}
+	}
+
+	/**
+	 * Gets the ETags.
+	 * 
+	 * @return the ETags by url
+	 */
+	public synchronized Map<String, String> getUrlEtags() {
+		return etags == null ? new HashMap<String, String>()
+				: new HashMap<String, String>(etags);
+	}
+
+	/**
+	 * Gets the SHA-256 of the archive extracted for a url.
+	 * 
+	 * @param url
+	 *            the url
+	 * @return the hex encoded digest, null if unknown
+	 */
+	public synchronized String getSha256(String url) {
+		return sha256s == null ? null : sha256s.get(url);
+	}
+
+	/**
+	 * Sets the SHA-256 of the archive extracted for a url.
+	 * 
+	 * @param url
+	 *            the url
+	 * @param sha256
+	 *            the hex encoded digest, null if unknown
+	 */
+	public synchronized void setSha256(String url, String sha256) {
+		if (sha256s == null) {
+			sha256s = new HashMap<String, String>();
+		}
+		if (sha256 == null) {
+			sha256s.remove(url);
+		} else {
+			sha256s.put(url, sha256);
+		}
+	}
+
+	/**
+	 * Gets the SHA-256 digests.
+	 * 
+	 * @return the digests by url
+	 */
+	public synchronized Map<String, String> getUrlSha256s() {
+		return sha256s == null ? new HashMap<String, String>()
+				: new HashMap<String, String>(sha256s);
+	}
+
+	/**
+	 * Gets the transfer metrics of a url.
+	 * 
+	 * @param url
+	 *            the url
+	 * @return the metrics, null if unknown
+	 */
+	public synchronized TransferMetrics getMetrics(String url) {
+		return metrics == null ? null : metrics.get(url);
+	}
+
+	/**
+	 * Sets the transfer metrics of a url.
+	 * 
+	 * @param url
+	 *            the url
+	 * @param m
+	 *            the metrics
+	 */
+	public synchronized void setMetrics(String url, TransferMetrics m) {
+		if (metrics == null) {
+			metrics = new HashMap<String, TransferMetrics>();
+		}
+		metrics.put(url, m);
+	}
+
+	/**
+	 * Gets the transfer metrics.
+	 * 
+	 * @return the metrics by url
+	 */
+	public synchronized Map<String, TransferMetrics> getUrlMetrics() {
+		return metrics == null ? new HashMap<String, TransferMetrics>()
+				: new HashMap<String, TransferMetrics>(metrics);
+	}
+
 	/**
 	 * Gets the url dates.
 	 * 
 	 * @return the url dates
 	 */
-	public Map<String, String> getUrlDates() {
+	public synchronized Map<String, String> getUrlDates() {
 		Map<String, String> ret = new HashMap<String, String>();
 		for (Map.Entry<String, Long> e : lastModified.entrySet()) {
 			long sinceEpoch = e.getValue();
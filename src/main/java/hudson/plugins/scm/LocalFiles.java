@@ -0,0 +1,302 @@
+package hudson.plugins.scm;
+
+import static java.util.logging.Level.FINE;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Moves the bytes of archives that are already on the machine, such as
+ * <tt>file://</tt> sources on a local disk or a shared mount, cached
+ * archives and part-files, without pulling them through Java heap buffers.
+ * Files are cloned with reflinks where the file system supports them,
+ * hardlinked when the source is read-only and so can not change under the
+ * workspace, and copied by the kernel with {@link FileChannel#transferTo}
+ * otherwise. Archives are read through memory mappings.
+ */
+final class LocalFiles {
+
+	/** The Constant LOGGER. */
+	private static final Logger LOGGER = Logger.getLogger(LocalFiles.class
+			.getName());
+
+	/** The size of the windows a file is mapped in. */
+	private static final long MAP_WINDOW = 64L * 1024 * 1024;
+
+	/**
+	 * Whether cp and memory mappings are used. Windows neither has cp nor
+	 * allows to delete a file that is still mapped.
+	 */
+	private static final boolean UNIX = File.separatorChar == '/';
+
+	/**
+	 * Instantiates a new local files.
+	 */
+	private LocalFiles() {
+	}
+
+	/**
+	 * Gets the file a <tt>file://</tt> url points to.
+	 * 
+	 * @param url
+	 *            the url
+	 * @return the file, null if the url is not a <tt>file://</tt> url of an
+	 *         existing file
+	 */
+	static File toFile(URL url) {
+		if (!"file".equals(url.getProtocol())) {
+			return null;
+		}
+		File f;
+		try {
+			f = new File(url.toURI());
+		} catch (URISyntaxException e) {
+			f = new File(url.getPath());
+		} catch (IllegalArgumentException e) {
+			// e.g. a UNC path with an authority
+			f = new File(url.getPath());
+		}
+		return f.isFile() ? f : null;
+	}
+
+	/**
+	 * Opens a local archive for reading through a memory mapping.
+	 * 
+	 * @param f
+	 *            the file
+	 * @return the stream
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	static InputStream open(File f) throws IOException {
+		if (!UNIX) {
+			return new FileInputStream(f);
+		}
+		return new MappedFileInputStream(f);
+	}
+
+	/**
+	 * Copies a local file, replacing the target and keeping the modification
+	 * time.
+	 * 
+	 * @param from
+	 *            the source
+	 * @param to
+	 *            the target
+	 * @return how the file was copied, for the build console
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	static String copy(File from, File to) throws IOException,
+			InterruptedException {
+		File parent = to.getParentFile();
+		if (parent != null) {
+			parent.mkdirs();
+		}
+		if (to.exists() && !to.delete()) {
+			throw new IOException("Unable to replace " + to);
+		}
+		if (UNIX) {
+			if (cp(from, to, "--reflink=always")) {
+				return "reflink";
+			}
+			if (!from.canWrite() && cp(from, to, "-l")) {
+				return "hardlink";
+			}
+		}
+		FileChannel in = new FileInputStream(from).getChannel();
+		try {
+			FileChannel out = new FileOutputStream(to).getChannel();
+			try {
+				long size = in.size();
+				long position = 0;
+				while (position < size) {
+					if (Thread.interrupted()) {
+						throw new InterruptedException();
+					}
+					position += in.transferTo(position, size - position, out);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		if (!to.setLastModified(from.lastModified())) {
+			LOGGER.log(FINE, "Unable to touch " + to);
+		}
+		if (from.canExecute()) {
+			to.setExecutable(true, false);
+		}
+		return "kernel copy";
+	}
+
+	/**
+	 * Runs the cp command of the machine, which copies a file or, with
+	 * <tt>-R</tt>, a whole tree with a single process.
+	 * 
+	 * @param from
+	 *            the source
+	 * @param to
+	 *            the target
+	 * @param option
+	 *            the option that selects reflinks or hardlinks
+	 * @return true, if cp succeeded
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	static boolean cp(File from, File to, String option)
+			throws InterruptedException {
+		try {
+			Process p = new ProcessBuilder("cp", "-R", "-p", option,
+					"--remove-destination", from.getPath(), to.getPath())
+					.redirectErrorStream(true).start();
+			try {
+				p.getOutputStream().close();
+				String output = IOUtils.toString(p.getInputStream());
+				if (p.waitFor() == 0) {
+					return true;
+				}
+				LOGGER.log(FINE, "cp " + option + " failed : " + output);
+				return false;
+			} finally {
+				p.destroy();
+			}
+		} catch (IOException e) {
+			LOGGER.log(FINE, "Unable to run cp", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Reads a file through memory mappings of {@link #MAP_WINDOW} bytes, so
+	 * that reading does not need a system call per buffer.
+	 */
+	private static final class MappedFileInputStream extends InputStream {
+
+		/** The file. */
+		private final RandomAccessFile file;
+
+		/** The size of the file. */
+		private final long size;
+
+		/** The offset of the current window. */
+		private long offset;
+
+		/** The current window, null before the first read. */
+		private MappedByteBuffer window;
+
+		/**
+		 * Instantiates a new mapped file input stream.
+		 * 
+		 * @param f
+		 *            the file
+		 * @throws IOException
+		 *             Signals that an I/O exception has occurred.
+		 */
+		MappedFileInputStream(File f) throws IOException {
+			this.file = new RandomAccessFile(f, "r");
+			this.size = file.length();
+		}
+
+		/**
+		 * Maps the next window once the current one is read.
+		 * 
+		 * @return true, if there is something left to read
+		 * @throws IOException
+		 *             Signals that an I/O exception has occurred.
+		 */
+		private boolean fill() throws IOException {
+			if (window != null && window.hasRemaining()) {
+				return true;
+			}
+			if (window != null) {
+				offset += window.capacity();
+			}
+			if (offset >= size) {
+				return false;
+			}
+			window = file.getChannel().map(FileChannel.MapMode.READ_ONLY,
+					offset, Math.min(MAP_WINDOW, size - offset));
+			return true;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.io.InputStream#read()
+		 */
+		@Override
+		public int read() throws IOException {
+			return fill() ? window.get() & 0xff : -1;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.io.InputStream#read(byte[], int, int)
+		 */
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!fill()) {
+				return -1;
+			}
+			int n = Math.min(len, window.remaining());
+			window.get(b, off, n);
+			return n;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.io.InputStream#skip(long)
+		 */
+		@Override
+		public long skip(long n) throws IOException {
+			if (n <= 0 || !fill()) {
+				return 0;
+			}
+			int skipped = (int) Math.min(n, window.remaining());
+			window.position(window.position() + skipped);
+			return skipped;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.io.InputStream#available()
+		 */
+		@Override
+		public int available() throws IOException {
+			long left = size - offset - (window != null ? window.position() : 0);
+			return (int) Math.min(left, Integer.MAX_VALUE);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.io.InputStream#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			window = null;
+			file.close();
+		}
+	}
+}
@@ -0,0 +1,232 @@
+package hudson.plugins.scm;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Decides when the URLs polled by the jobs of the master are probed again,
+ * from what polling observed about them. Most archives either change several
+ * times a day or once in a while, yet every poll of every job used to probe
+ * every URL. The schedule estimates the time between two changes of a URL
+ * from the changes polling saw and from the age of its Last-Modified, and
+ * waits a quarter of it, but never longer than the configured maximum,
+ * before the URL is probed again. Failed probes are retried after a delay
+ * that doubles with every failure, and a server that answers 429 or 503 is
+ * left alone for at least as long as its Retry-After asks for.
+ * 
+ * The schedule is shared by all jobs polling a URL. A job whose poll is
+ * skipped is compared with the revision of the URL the last probe saw, so a
+ * job that has not built that revision yet still finds the change.
+ */
+final class PollSchedule {
+
+	/** The instance. */
+	private static final PollSchedule INSTANCE = new PollSchedule();
+
+	/** The part of the expected time between two changes a URL waits. */
+	private static final int FRACTION = 4;
+
+	/** The delay after the first failed probe in millis. */
+	private static final long ERROR_DELAY = 60 * 1000;
+
+	/** The longest a Retry-After is honoured, in millis. */
+	private static final long MAX_RETRY_AFTER = 24L * 60 * 60 * 1000;
+
+	/** The schedule by url. */
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * Instantiates a new poll schedule.
+	 */
+	private PollSchedule() {
+	}
+
+	/**
+	 * Gets the poll schedule of this master.
+	 * 
+	 * @return the poll schedule
+	 */
+	static PollSchedule get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Gets the entry of a url.
+	 * 
+	 * @param url
+	 *            the url
+	 * @return the entry
+	 */
+	private Entry entry(String url) {
+		Entry e = entries.get(url);
+		if (e == null) {
+			Entry created = new Entry();
+			e = entries.putIfAbsent(url, created);
+			if (e == null) {
+				e = created;
+			}
+		}
+		return e;
+	}
+
+	/**
+	 * Checks if a url has to be probed.
+	 * 
+	 * @param url
+	 *            the url
+	 * @param now
+	 *            the current time
+	 * @return true, if the url is due or forced
+	 */
+	boolean isDue(String url, long now) {
+		Entry e = entries.get(url);
+		if (e == null) {
+			return true;
+		}
+		synchronized (e) {
+			return e.forced || now >= e.next;
+		}
+	}
+
+	/**
+	 * Gets the revision of a url the last successful probe saw.
+	 * 
+	 * @param url
+	 *            the url
+	 * @return the revision, null if the url was never probed successfully
+	 */
+	UrlProbe.Result getRevision(String url) {
+		Entry e = entries.get(url);
+		if (e == null) {
+			return null;
+		}
+		synchronized (e) {
+			return e.revision;
+		}
+	}
+
+	/**
+	 * Gets the time a url is probed again.
+	 * 
+	 * @param url
+	 *            the url
+	 * @return the time, 0 if the url is probed by the next poll
+	 */
+	long getNext(String url) {
+		Entry e = entries.get(url);
+		if (e == null) {
+			return 0;
+		}
+		synchronized (e) {
+			return e.forced ? 0 : e.next;
+		}
+	}
+
+	/**
+	 * Records a successful probe and schedules the next one.
+	 * 
+	 * @param url
+	 *            the url
+	 * @param result
+	 *            the result of the probe
+	 * @param maxInterval
+	 *            the longest time between two probes in millis
+	 * @param now
+	 *            the current time
+	 */
+	void probed(String url, UrlProbe.Result result, long maxInterval,
+			long now) {
+		Entry e = entry(url);
+		synchronized (e) {
+			UrlProbe.Result previous = e.revision;
+			boolean moved = previous == null
+					|| result.isChanged(previous.getLastModified(), previous
+							.getEtag());
+			if (previous == null) {
+				e.changed = result.getLastModified() > 0 ? result
+						.getLastModified() : now;
+			} else if (moved) {
+				// dated by Last-Modified if the server sends it
+				long at = result.getLastModified() > previous
+						.getLastModified() ? result.getLastModified() : now;
+				long since = at - e.changed;
+				if (since > 0) {
+					e.interval = e.interval > 0 ? (3 * e.interval + since) / 4
+							: since;
+				}
+				e.changed = at;
+			}
+			if (moved) {
+				// a 304 confirms the revision that was asked for, so the
+				// revision is kept without its 304 for other jobs to compare
+				e.revision = new UrlProbe.Result(false, result
+						.getLastModified(), result.getEtag(), -1, false);
+			}
+			long estimate = Math.max(e.interval, now - e.changed);
+			e.next = now + Math.min(estimate / FRACTION, maxInterval);
+			e.errors = 0;
+			e.forced = false;
+		}
+	}
+
+	/**
+	 * Records a failed probe and schedules the next one.
+	 * 
+	 * @param url
+	 *            the url
+	 * @param retryAfter
+	 *            the delay the server asked for in millis, 0 if none
+	 * @param maxInterval
+	 *            the longest time between two probes in millis
+	 * @param now
+	 *            the current time
+	 */
+	void failed(String url, long retryAfter, long maxInterval, long now) {
+		Entry e = entry(url);
+		synchronized (e) {
+			e.errors++;
+			long delay = Math.min(ERROR_DELAY << Math.min(e.errors - 1, 20),
+					Math.max(maxInterval, ERROR_DELAY));
+			e.next = now
+					+ Math.max(delay, Math.min(retryAfter, MAX_RETRY_AFTER));
+			e.forced = false;
+		}
+	}
+
+	/**
+	 * Makes the next poll probe a url whatever its schedule.
+	 * 
+	 * @param url
+	 *            the url
+	 */
+	void force(String url) {
+		Entry e = entry(url);
+		synchronized (e) {
+			e.forced = true;
+		}
+	}
+
+	/**
+	 * What polling observed about a url.
+	 */
+	private static final class Entry {
+
+		/** The revision the last probe saw, null before the first probe. */
+		private UrlProbe.Result revision;
+
+		/** The time of the last change, 0 if unknown. */
+		private long changed;
+
+		/** The average time between two changes in millis, 0 if unknown. */
+		private long interval;
+
+		/** The time the url is probed again. */
+		private long next;
+
+		/** The number of failed probes in a row. */
+		private int errors;
+
+		/** Whether the next poll probes the url whatever its schedule. */
+		private boolean forced;
+	}
+}
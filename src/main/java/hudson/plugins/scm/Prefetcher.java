@@ -0,0 +1,185 @@
+package hudson.plugins.scm;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.INFO;
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * Downloads the URLs that polling found changed into the archive cache of the
+ * node the job last ran on, while the build that polling triggers still waits
+ * in the queue. The checkout of that build then finds the archive cached, or
+ * waits for the download in progress through the single-flight of
+ * {@link ArchiveCache}, instead of starting from zero. When the node uses the
+ * extracted-tree store as well, the archive is also extracted into it.
+ * 
+ * Prefetches are scheduled like checkouts by the {@link DownloadScheduler} of
+ * the master, and at most one prefetch of a URL runs per node.
+ */
+final class Prefetcher {
+
+	/** The Constant LOGGER. */
+	private static final Logger LOGGER = Logger.getLogger(Prefetcher.class
+			.getName());
+
+	/** The number of prefetches that run at the same time. */
+	private static final int THREADS = 4;
+
+	/** The threads running the prefetches. */
+	private static final ExecutorService EXECUTOR = Executors
+			.newFixedThreadPool(THREADS, new DaemonThreadFactory());
+
+	/** The prefetches queued or running, by node and url. */
+	private static final Set<String> PENDING = Collections
+			.synchronizedSet(new HashSet<String>());
+
+	/**
+	 * Instantiates a new prefetcher.
+	 */
+	private Prefetcher() {
+	}
+
+	/**
+	 * Queues the prefetch of a URL.
+	 * 
+	 * @param root
+	 *            the root of the node to prefetch on
+	 * @param nodeName
+	 *            the name of the node, empty for the master
+	 * @param fetcher
+	 *            the fetcher, with the options of a checkout on that node
+	 * @param owner
+	 *            the job, as shown in the download queues
+	 * @param maxPerServer
+	 *            the maximum number of downloads from one server, 0 for no
+	 *            limit
+	 * @param maxBytesPerSecond
+	 *            the maximum aggregate bandwidth, 0 for no limit
+	 * @return true, if the prefetch was queued, false if the URL is already
+	 *         being prefetched on the node
+	 */
+	static boolean start(final FilePath root, String nodeName,
+			final UrlFetcher fetcher, final String owner,
+			final int maxPerServer, final long maxBytesPerSecond) {
+		final String key = nodeName + "\n" + fetcher.getUrlString();
+		if (!PENDING.add(key)) {
+			return false;
+		}
+		try {
+			EXECUTOR.execute(new Runnable() {
+				public void run() {
+					try {
+						prefetch(root, fetcher, owner, maxPerServer,
+								maxBytesPerSecond);
+					} catch (InterruptedException e) {
+						LOGGER.log(FINE, "Prefetch of "
+								+ fetcher.getUrlString() + " interrupted", e);
+					} catch (Exception e) {
+						// the checkout downloads the url itself
+						LOGGER.log(INFO, "Prefetch of "
+								+ fetcher.getUrlString() + " failed", e);
+					} finally {
+						PENDING.remove(key);
+					}
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			PENDING.remove(key);
+			return false;
+		}
+	}
+
+	/**
+	 * Prefetches a URL on a node, which waits for a download slot if it has
+	 * to download the URL.
+	 * 
+	 * @param root
+	 *            the root of the node
+	 * @param fetcher
+	 *            the fetcher
+	 * @param owner
+	 *            the job
+	 * @param maxPerServer
+	 *            the maximum number of downloads from one server
+	 * @param maxBytesPerSecond
+	 *            the maximum aggregate bandwidth
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	private static void prefetch(FilePath root, UrlFetcher fetcher,
+			String owner, int maxPerServer, long maxBytesPerSecond)
+			throws IOException, InterruptedException {
+		URL url = new URL(fetcher.getUrlString());
+		DownloadScheduler.Slot slot = null;
+		if (url.getHost() != null && url.getHost().length() > 0) {
+			slot = DownloadScheduler.get().slot(
+					ArchiveFilesMetrics.server(fetcher.getUrlString()),
+					"prefetch of " + owner + " "
+							+ ArchiveFilesSCM.fileName(fetcher.getUrlString()),
+					maxPerServer, maxBytesPerSecond);
+			fetcher.schedule(slot.export(root.getChannel()), slot
+					.getThrottle().export(root.getChannel()));
+		}
+		long start = System.currentTimeMillis();
+		try {
+			if (root.act(new Task(fetcher))) {
+				LOGGER.log(INFO, "Prefetched " + fetcher.getUrlString()
+						+ " for " + owner + " in "
+						+ (System.currentTimeMillis() - start) + " millis");
+			}
+		} finally {
+			if (slot != null) {
+				slot.release();
+			}
+		}
+	}
+
+	/**
+	 * Runs a prefetch on the node.
+	 */
+	private static final class Task implements FileCallable<Boolean> {
+
+		/** The Constant serialVersionUID. */
+		private static final long serialVersionUID = 1L;
+
+		/** The fetcher. */
+		private final UrlFetcher fetcher;
+
+		/**
+		 * Instantiates a new task.
+		 * 
+		 * @param fetcher
+		 *            the fetcher
+		 */
+		Task(UrlFetcher fetcher) {
+			this.fetcher = fetcher;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see hudson.FilePath.FileCallable#invoke(java.io.File,
+		 * hudson.remoting.VirtualChannel)
+		 */
+		public Boolean invoke(File root, VirtualChannel channel)
+				throws IOException, InterruptedException {
+			return fetcher.prefetch();
+		}
+	}
+}
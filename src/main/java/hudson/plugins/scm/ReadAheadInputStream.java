@@ -0,0 +1,180 @@
+package hudson.plugins.scm;
+
+import static java.util.logging.Level.FINE;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * An input stream that reads its source on a separate thread into a bounded
+ * queue of buffers. The consumer, e.g. a decompressor, then never waits for
+ * the network or the disk as long as the queue holds data, and a slow
+ * consumer stalls the reader only once the queue is full.
+ */
+final class ReadAheadInputStream extends InputStream {
+
+	/** The Constant LOGGER. */
+	private static final Logger LOGGER = Logger
+			.getLogger(ReadAheadInputStream.class.getName());
+
+	/** Marks the end of the source. */
+	private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+
+	/** The source. */
+	private final InputStream source;
+
+	/** The buffers read ahead. */
+	private final BlockingQueue<ByteBuffer> queue;
+
+	/** The reader thread. */
+	private final Thread reader;
+
+	/** The error the reader ran into, thrown once the queue is drained. */
+	private volatile IOException failure;
+
+	/** Set once the consumer closed the stream, which stops the reader. */
+	private volatile boolean closed;
+
+	/** The buffer being consumed. */
+	private ByteBuffer current;
+
+	/**
+	 * Instantiates a new read ahead input stream and starts reading.
+	 * 
+	 * @param source
+	 *            the source, closed by this stream
+	 * @param bufferSize
+	 *            the size of each buffer
+	 * @param buffers
+	 *            the number of buffers read ahead
+	 */
+	ReadAheadInputStream(InputStream source, final int bufferSize, int buffers) {
+		this.source = source;
+		this.queue = new ArrayBlockingQueue<ByteBuffer>(buffers);
+		this.reader = new DaemonThreadFactory().newThread(new Runnable() {
+			public void run() {
+				fill(bufferSize);
+			}
+		});
+		reader.setName("ArchiveFilesSCM read-ahead");
+		reader.start();
+	}
+
+	/**
+	 * Reads the source into the queue until its end.
+	 * 
+	 * @param bufferSize
+	 *            the size of each buffer
+	 */
+	private void fill(int bufferSize) {
+		try {
+			try {
+				while (!closed) {
+					byte[] b = new byte[bufferSize];
+					int n = source.read(b);
+					if (n < 0) {
+						break;
+					}
+					queue.put(ByteBuffer.wrap(b, 0, n));
+				}
+			} catch (IOException e) {
+				failure = e;
+			}
+			if (!closed) {
+				queue.put(EOF);
+			}
+		} catch (InterruptedException e) {
+			failure = new InterruptedIOException();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.io.InputStream#read()
+	 */
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.io.InputStream#read(byte[], int, int)
+	 */
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (current == null || !current.hasRemaining()) {
+			if (current == EOF) {
+				if (failure != null) {
+					throw failure;
+				}
+				return -1;
+			}
+			try {
+				current = queue.take();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}
+		int n = Math.min(len, current.remaining());
+		current.get(b, off, n);
+		return n;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.io.InputStream#available()
+	 */
+	@Override
+	public int available() {
+		return current == null ? 0 : current.remaining();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.io.InputStream#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		// the reader is not interrupted, which would close the channel of a
+		// file it reads, but stops after its current read
+		closed = true;
+		try {
+			// the source must not be read by the reader and the caller of
+			// close() at the same time, e.g. by a DigestingInputStream
+			while (reader.isAlive()) {
+				queue.poll(10, TimeUnit.MILLISECONDS);
+			}
+			reader.join();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		queue.clear();
+		IOException e = failure;
+		if (e != null && current != EOF) {
+			// not seen by the consumer yet, the source is incomplete
+			try {
+				source.close();
+			} catch (IOException ignored) {
+				LOGGER.log(FINE, "Unable to close the source", ignored);
+			}
+			throw e;
+		}
+		source.close();
+	}
+}
@@ -0,0 +1,570 @@
+package hudson.plugins.scm;
+
+import static java.util.logging.Level.FINE;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Downloads an HTTP or HTTPS URL into a part-file.
+ * 
+ * A transfer that breaks off is resumed with a Range request from the last
+ * byte written, guarded by If-Range so a file that changed on the server in
+ * the meantime is downloaded again from the start. A part-file left behind by
+ * an earlier, failed build is resumed the same way. When the server
+ * advertises Accept-Ranges and the file is large enough, the file can be
+ * split into several byte ranges that are downloaded over concurrent
+ * connections.
+ */
+final class ResumableDownloader {
+
+	/** The Constant LOGGER. */
+	private static final Logger LOGGER = Logger
+			.getLogger(ResumableDownloader.class.getName());
+
+	/** The number of attempts without progress before a transfer fails. */
+	private static final int MAX_ATTEMPTS = 5;
+
+	/** The smallest range worth a connection of its own. */
+	static final long MIN_SEGMENT_SIZE = 8L * 1024 * 1024;
+
+	/** The size of the copy buffer. */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/** The Content-Range of a 206 response. */
+	private static final Pattern CONTENT_RANGE = Pattern
+			.compile("\\s*bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)\\s*");
+
+	/** The Content-Range of a 416 response. */
+	private static final Pattern UNSATISFIED_RANGE = Pattern
+			.compile("\\s*bytes\\s+\\*/(\\d+)\\s*");
+
+	/** The url. */
+	private final URL url;
+
+	/** The connection settings. */
+	private final ConnectionSettings settings;
+
+	/** The revision metadata of the url. */
+	private final UrlProbe.Result remote;
+
+	/** The maximum number of concurrent range requests. */
+	private final int segments;
+
+	/** The throttle of the download, shared by all segments. */
+	private final Throttle throttle;
+
+	/** The time the download started. */
+	private volatile long started;
+
+	/** The time to the first response in millis, -1 until it arrived. */
+	private volatile long firstByteMillis = -1;
+
+	/** The connections currently open, disconnected on abort. */
+	private final List<HttpURLConnection> open = new ArrayList<HttpURLConnection>();
+
+	/** Set once the download has been aborted. */
+	private volatile boolean aborted;
+
+	/**
+	 * Instantiates a new resumable downloader.
+	 * 
+	 * @param url
+	 *            the url
+	 * @param settings
+	 *            the connection settings
+	 * @param remote
+	 *            the revision metadata of the url, as returned by
+	 *            {@link UrlProbe}
+	 * @param segments
+	 *            the maximum number of concurrent range requests
+	 * @param throttle
+	 *            the throttle of the download
+	 */
+	ResumableDownloader(URL url, ConnectionSettings settings,
+			UrlProbe.Result remote, int segments, Throttle throttle) {
+		this.url = url;
+		this.settings = settings;
+		this.remote = remote;
+		this.segments = Math.max(segments, 1);
+		this.throttle = throttle;
+	}
+
+	/**
+	 * Checks if the downloader handles the given url.
+	 * 
+	 * @param url
+	 *            the url
+	 * @return true, for http and https urls
+	 */
+	static boolean supports(URL url) {
+		return url.getProtocol().equals("http")
+				|| url.getProtocol().equals("https");
+	}
+
+	/**
+	 * Aborts the download.
+	 */
+	void abort() {
+		aborted = true;
+		disconnect();
+	}
+
+	/**
+	 * Disconnects the connections currently open.
+	 */
+	private void disconnect() {
+		synchronized (open) {
+			for (HttpURLConnection c : open) {
+				c.disconnect();
+			}
+		}
+	}
+
+	/**
+	 * Gets the time from the start of the download to the first response.
+	 * 
+	 * @return the millis, -1 if no response arrived
+	 */
+	long getFirstByteMillis() {
+		return firstByteMillis;
+	}
+
+	/**
+	 * Downloads the url into the part-file. Existing content of the part-file
+	 * is kept and resumed if the server still serves the same version.
+	 * 
+	 * @param part
+	 *            the part-file
+	 * @return the number of bytes transferred
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	long download(File part) throws IOException, InterruptedException {
+		started = System.currentTimeMillis();
+		long length = remote.getContentLength();
+		int n = segments;
+		if (length > 0) {
+			n = (int) Math.min(n, length / MIN_SEGMENT_SIZE);
+		}
+		if (n > 1 && remote.isAcceptRanges() && part.length() == 0
+				&& length >= 2L * MIN_SEGMENT_SIZE) {
+			return downloadSegments(part, length, n);
+		}
+		return downloadRange(part, 0, length < 0 ? -1 : length - 1, true);
+	}
+
+	/**
+	 * Splits the file into byte ranges that are downloaded concurrently, each
+	 * of them written at its offset of the part-file.
+	 * 
+	 * @param part
+	 *            the part-file
+	 * @param length
+	 *            the content length
+	 * @param n
+	 *            the number of ranges
+	 * @return the number of bytes transferred
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	private long downloadSegments(final File part, long length, int n)
+			throws IOException, InterruptedException {
+		RandomAccessFile raf = new RandomAccessFile(part, "rw");
+		try {
+			raf.setLength(length);
+		} finally {
+			raf.close();
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(n,
+				new DaemonThreadFactory());
+		List<Future<Long>> futures = new ArrayList<Future<Long>>();
+		try {
+			long size = length / n;
+			for (int i = 0; i < n; i++) {
+				final long first = i * size;
+				final long last = i == n - 1 ? length - 1 : first + size - 1;
+				futures.add(executor.submit(new Callable<Long>() {
+					public Long call() throws Exception {
+						return downloadRange(part, first, last, false);
+					}
+				}));
+			}
+			long bytes = 0;
+			for (Future<Long> f : futures) {
+				bytes += f.get();
+			}
+			return bytes;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RangeNotHonouredException && !aborted) {
+				// retrying the ranges is pointless, download the file whole
+				LOGGER.log(FINE, cause.getMessage()
+						+ ", downloading the whole file");
+				stop(executor, futures);
+				if (part.exists() && !part.delete()) {
+					LOGGER.log(FINE, "Unable to delete " + part);
+				}
+				return downloadRange(part, 0, length - 1, true);
+			}
+			// a partly written part-file can not be resumed later
+			abort();
+			if (!part.delete()) {
+				LOGGER.log(FINE, "Unable to delete " + part);
+			}
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof InterruptedException) {
+				throw (InterruptedException) cause;
+			}
+			throw new IOException("Unable to download " + url + " : " + cause);
+		} finally {
+			for (Future<Long> f : futures) {
+				f.cancel(true);
+			}
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Stops the downloads of the ranges and waits until none of them writes
+	 * to the part-file any more.
+	 * 
+	 * @param executor
+	 *            the executor running the ranges
+	 * @param futures
+	 *            the ranges
+	 * @throws IOException
+	 *             if a range does not stop
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	private void stop(ExecutorService executor, List<Future<Long>> futures)
+			throws IOException, InterruptedException {
+		for (Future<Long> f : futures) {
+			f.cancel(true);
+		}
+		executor.shutdownNow();
+		disconnect();
+		if (!executor.awaitTermination(60, TimeUnit.SECONDS)) {
+			throw new IOException("The ranges of " + url + " did not stop");
+		}
+	}
+
+	/**
+	 * Downloads a byte range into the part-file, resuming after failures.
+	 * 
+	 * @param part
+	 *            the part-file
+	 * @param first
+	 *            the offset of the first byte
+	 * @param last
+	 *            the offset of the last byte, -1 if the length is unknown
+	 * @param whole
+	 *            whether this is the only range; the part-file then holds the
+	 *            bytes before the current position and may be restarted
+	 * @return the number of bytes transferred
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	private long downloadRange(File part, long first, long last, boolean whole)
+			throws IOException, InterruptedException {
+		long position = whole ? part.length() : first;
+		if (whole && position > 0
+				&& (validator(remote) == null || last >= 0
+						&& position > last + 1)) {
+			// without a validator, or longer than the file, an old part-file
+			// can not be trusted
+			position = 0;
+		}
+		long transferred = 0;
+		int attempts = 0;
+		while (true) {
+			if (aborted || Thread.interrupted()) {
+				throw new InterruptedException("Download of " + url
+						+ " was cancelled");
+			}
+			if (last >= 0 && position > last) {
+				return transferred;
+			}
+			HttpURLConnection connection = (HttpURLConnection) settings
+					.open(url);
+			if (position > 0 || !whole) {
+				connection.setRequestProperty("Range", "bytes=" + position
+						+ "-" + (last >= 0 ? String.valueOf(last) : ""));
+				String validator = validator(remote);
+				if (validator != null) {
+					connection.setRequestProperty("If-Range", validator);
+				}
+			}
+			synchronized (open) {
+				open.add(connection);
+			}
+			long before = position;
+			try {
+				int status = connection.getResponseCode();
+				if (firstByteMillis < 0) {
+					firstByteMillis = System.currentTimeMillis() - started;
+				}
+				if (status == HttpURLConnection.HTTP_OK
+						&& (position > 0 || !whole)) {
+					if (!whole) {
+						ConnectionSettings.release(connection);
+						throw new RangeNotHonouredException(url
+								+ " did not honour the range " + first + "-"
+								+ last);
+					}
+					// the server ignored the range or the file changed
+					position = 0;
+					before = 0;
+				} else if (status == HttpURLConnection.HTTP_PARTIAL
+						&& !isRange(connection, position, last)) {
+					ConnectionSettings.release(connection);
+					String message = url + " answered the range " + position
+							+ "-" + (last >= 0 ? String.valueOf(last) : "")
+							+ " with "
+							+ connection.getHeaderField("Content-Range");
+					if (!whole) {
+						throw new RangeNotHonouredException(message);
+					}
+					// the bytes can not be placed, start over without a range
+					LOGGER.log(FINE, message);
+					position = 0;
+					continue;
+				} else if (status == 416 && whole && last < 0) {
+					ConnectionSettings.release(connection);
+					if (total(connection) == position) {
+						// everything was downloaded by an earlier attempt
+						return transferred;
+					}
+					// the part-file does not match the file, start over
+					position = 0;
+					continue;
+				} else if (status != HttpURLConnection.HTTP_OK
+						&& status != HttpURLConnection.HTTP_PARTIAL) {
+					ConnectionSettings.release(connection);
+					throw new IOException("Server returned HTTP response code: "
+							+ status + " for URL: " + url);
+				}
+				position = copy(throttle.wrap(connection.getInputStream()),
+						part, position, whole);
+				if (last < 0 || position > last) {
+					return transferred + position - before;
+				}
+				// the bytes copied are counted with the failed attempt
+				throw new IOException("Premature end of " + url + " at byte "
+						+ position);
+			} catch (IOException e) {
+				if (e instanceof RangeNotHonouredException) {
+					throw e;
+				}
+				if (e instanceof PartialTransferException) {
+					position = ((PartialTransferException) e).position;
+				}
+				if (aborted) {
+					throw new InterruptedException("Download of " + url
+							+ " was cancelled");
+				}
+				if (e instanceof InterruptedIOException
+						&& Thread.currentThread().isInterrupted()) {
+					throw e;
+				}
+				if (position > before) {
+					transferred += position - before;
+					attempts = 0;
+				}
+				if (++attempts >= MAX_ATTEMPTS) {
+					throw e;
+				}
+				LOGGER.log(FINE, "Resuming " + url + " at byte " + position,
+						e);
+				Thread.sleep(1000L * attempts);
+			} finally {
+				synchronized (open) {
+					open.remove(connection);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copies a response body into the part-file. When the copy fails, the
+	 * position reached so far is still visible through the length of the
+	 * part-file for whole downloads.
+	 * 
+	 * @param in
+	 *            the response body
+	 * @param part
+	 *            the part-file
+	 * @param position
+	 *            the offset to write at
+	 * @param whole
+	 *            whether the part-file is truncated at the position
+	 * @return the position after the copied bytes
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private long copy(InputStream in, File part, long position, boolean whole)
+			throws IOException {
+		RandomAccessFile out = new RandomAccessFile(part, "rw");
+		try {
+			if (whole) {
+				out.setLength(position);
+			}
+			out.seek(position);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+				position += n;
+			}
+			return position;
+		} catch (IOException e) {
+			throw new PartialTransferException(e, position);
+		} finally {
+			in.close();
+			out.close();
+		}
+	}
+
+	/**
+	 * Checks if a 206 response holds the bytes that were asked for: it starts
+	 * at the requested position, does not end behind the requested range,
+	 * and belongs to a file of the probed length.
+	 * 
+	 * @param connection
+	 *            the connection
+	 * @param position
+	 *            the offset of the first byte asked for
+	 * @param last
+	 *            the offset of the last byte asked for, -1 if the length is
+	 *            unknown
+	 * @return true, if the bytes can be written at the position
+	 */
+	private boolean isRange(HttpURLConnection connection, long position,
+			long last) {
+		Matcher m = CONTENT_RANGE.matcher(String.valueOf(connection
+				.getHeaderField("Content-Range")));
+		if (!m.matches()) {
+			return false;
+		}
+		long start = Long.parseLong(m.group(1));
+		long end = Long.parseLong(m.group(2));
+		if (start != position || end < start || last >= 0 && end > last) {
+			return false;
+		}
+		long length = remote.getContentLength();
+		return length < 0 || m.group(3).equals("*")
+				|| Long.parseLong(m.group(3)) == length;
+	}
+
+	/**
+	 * Gets the length of the file a 416 response reports in its
+	 * Content-Range.
+	 * 
+	 * @param connection
+	 *            the connection
+	 * @return the length, -1 if the response does not report it
+	 */
+	private static long total(HttpURLConnection connection) {
+		Matcher m = UNSATISFIED_RANGE.matcher(String.valueOf(connection
+				.getHeaderField("Content-Range")));
+		return m.matches() ? Long.parseLong(m.group(1)) : -1;
+	}
+
+	/**
+	 * Gets the If-Range validator: the ETag if it is a strong one, the
+	 * Last-Modified date otherwise.
+	 * 
+	 * @param remote
+	 *            the revision metadata of the url
+	 * @return the validator, null if the server sent neither
+	 */
+	static String validator(UrlProbe.Result remote) {
+		String etag = remote.getEtag();
+		if (etag != null && !etag.startsWith("W/")) {
+			return etag;
+		}
+		if (remote.getLastModified() > 0) {
+			SimpleDateFormat format = new SimpleDateFormat(
+					"EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+			format.setTimeZone(TimeZone.getTimeZone("GMT"));
+			return format.format(new Date(remote.getLastModified()));
+		}
+		return null;
+	}
+
+	/**
+	 * A failed copy that still transferred some bytes.
+	 */
+	private static final class PartialTransferException extends IOException {
+
+		/** The Constant serialVersionUID. */
+		private static final long serialVersionUID = 1L;
+
+		/** The position reached. */
+		private final long position;
+
+		/**
+		 * Instantiates a new partial transfer exception.
+		 * 
+		 * @param cause
+		 *            the cause
+		 * @param position
+		 *            the position reached
+		 */
+		PartialTransferException(IOException cause, long position) {
+			super(cause.getMessage() + " at byte " + position);
+			initCause(cause);
+			this.position = position;
+		}
+	}
+
+	/**
+	 * A range request the server answered with the whole file or with other
+	 * bytes than the ones asked for, which is not retried.
+	 */
+	private static final class RangeNotHonouredException extends IOException {
+
+		/** The Constant serialVersionUID. */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Instantiates a new range not honoured exception.
+		 * 
+		 * @param message
+		 *            the message
+		 */
+		RangeNotHonouredException(String message) {
+			super(message);
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package hudson.plugins.scm;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A master-wide cache of the revision metadata of URLs, shared by the polling
+ * of all jobs. Many jobs often point to the same few URLs; with this cache
+ * each URL is probed at most once per time-to-live, and polls that ask for the
+ * same URL at the same time wait for a single probe instead of sending their
+ * own.
+ * 
+ * Entries are keyed by the URL and the {@link ConnectionSettings#identity()},
+ * so jobs using different credentials never share a result. An expired entry
+ * is revalidated with a conditional request carrying its own Last-Modified
+ * and ETag, so an unchanged URL still costs a single 304 response.
+ */
+final class RevisionCache {
+
+	/** The instance. */
+	private static final RevisionCache INSTANCE = new RevisionCache();
+
+	/** The cached results by key. */
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	/** The probes in progress by key. */
+	private final ConcurrentMap<String, FutureTask<Entry>> inflight = new ConcurrentHashMap<String, FutureTask<Entry>>();
+
+	/**
+	 * Instantiates a new revision cache.
+	 */
+	private RevisionCache() {
+	}
+
+	/**
+	 * Gets the revision cache of this master.
+	 * 
+	 * @return the revision cache
+	 */
+	static RevisionCache get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Gets the revision metadata of a URL, probing it only if no result
+	 * younger than the time-to-live is cached.
+	 * 
+	 * @param url
+	 *            the url
+	 * @param settings
+	 *            the connection settings
+	 * @param lastModified
+	 *            the last modified time stamp seen by the caller, only used
+	 *            when the cache is disabled
+	 * @param etag
+	 *            the ETag seen by the caller, only used when the cache is
+	 *            disabled
+	 * @param ttl
+	 *            the time-to-live in millis, 0 disables the cache
+	 * @return the result
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	UrlProbe.Result probe(final URL url, final ConnectionSettings settings,
+			long lastModified, String etag, final long ttl)
+			throws IOException, InterruptedException {
+		if (ttl <= 0) {
+			return UrlProbe.probe(url, settings, lastModified, etag);
+		}
+		final String key = url.toExternalForm() + "\n" + settings.identity();
+		Entry cached = entries.get(key);
+		if (cached != null && !cached.isExpired(ttl)) {
+			return cached.result;
+		}
+		final Entry previous = cached;
+		FutureTask<Entry> task = new FutureTask<Entry>(new Callable<Entry>() {
+			public Entry call() throws Exception {
+				return refresh(key, url, settings, previous, ttl);
+			}
+		});
+		FutureTask<Entry> running = inflight.putIfAbsent(key, task);
+		if (running == null) {
+			running = task;
+			try {
+				task.run();
+			} finally {
+				inflight.remove(key, task);
+			}
+		}
+		try {
+			return running.get().result;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException("Unable to probe " + url + " : " + cause);
+		}
+	}
+
+	/**
+	 * Probes a URL and caches the result. Failures are not cached, so the
+	 * next poll tries again.
+	 * 
+	 * @param key
+	 *            the key
+	 * @param url
+	 *            the url
+	 * @param settings
+	 *            the connection settings
+	 * @param previous
+	 *            the expired entry, null if there is none
+	 * @param ttl
+	 *            the time-to-live in millis
+	 * @return the new entry
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private Entry refresh(String key, URL url, ConnectionSettings settings,
+			Entry previous, long ttl) throws IOException {
+		UrlProbe.Result result;
+		if (previous == null) {
+			result = UrlProbe.probe(url, settings, 0, null);
+		} else {
+			result = UrlProbe.probe(url, settings,
+					previous.result.getLastModified(),
+					previous.result.getEtag());
+			if (!result.isChanged(previous.result.getLastModified(),
+					previous.result.getEtag())) {
+				// a 304 only means something to the request that carried
+				// the conditions, so the full previous result is kept
+				result = previous.result;
+			}
+		}
+		Entry entry = new Entry(result);
+		entries.put(key, entry);
+		purge(ttl);
+		return entry;
+	}
+
+	/**
+	 * Removes the expired entries of URLs that are no longer polled.
+	 * 
+	 * @param ttl
+	 *            the time-to-live in millis
+	 */
+	private void purge(long ttl) {
+		for (Iterator<Entry> i = entries.values().iterator(); i.hasNext();) {
+			// an entry is kept for a while after it expired, so it can be
+			// revalidated by a conditional request
+			if (i.next().isExpired(ttl * 10)) {
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * A cached result.
+	 */
+	private static final class Entry {
+
+		/** The result of an unconditional probe. */
+		private final UrlProbe.Result result;
+
+		/** The time the result was received. */
+		private final long time;
+
+		/**
+		 * Instantiates a new entry.
+		 * 
+		 * @param result
+		 *            the result
+		 */
+		Entry(UrlProbe.Result result) {
+			this.result = result;
+			this.time = System.currentTimeMillis();
+		}
+
+		/**
+		 * Checks if the entry is older than the given time-to-live.
+		 * 
+		 * @param ttl
+		 *            the time-to-live in millis
+		 * @return true, if expired
+		 */
+		boolean isExpired(long ttl) {
+			return System.currentTimeMillis() - time >= ttl;
+		}
+	}
+}
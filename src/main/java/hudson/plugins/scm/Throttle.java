@@ -0,0 +1,218 @@
+package hudson.plugins.scm;
+
+import hudson.remoting.VirtualChannel;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+
+/**
+ * Limits the rate at which a transfer reads bytes. The throttles of all
+ * running transfers draw from one shared {@link Bandwidth}, so the limit
+ * applies to the transfers together however many of them run. All streams of
+ * a transfer, such as the segments of a download split into range requests,
+ * share one throttle. A throttle travels with the {@link UrlFetcher} when the
+ * download happens on a node, and then draws from the bandwidth of the master
+ * through the remoting channel.
+ */
+final class Throttle implements Serializable {
+
+	/** The Constant serialVersionUID. */
+	private static final long serialVersionUID = 1L;
+
+	/** The throttle that does not limit anything. */
+	static final Throttle NONE = new Throttle(null);
+
+	/**
+	 * The bytes a throttle reads before it reserves them, which keeps the
+	 * calls to a bandwidth on the master rare.
+	 */
+	private static final long CHUNK_SIZE = 64 * 1024;
+
+	/** The bandwidth, null for no limit. */
+	private final Bandwidth bandwidth;
+
+	/** The bytes read but not reserved yet. */
+	private transient long pending;
+
+	/**
+	 * Instantiates a new throttle.
+	 * 
+	 * @param bandwidth
+	 *            the bandwidth, null for no limit
+	 */
+	Throttle(Bandwidth bandwidth) {
+		this.bandwidth = bandwidth;
+	}
+
+	/**
+	 * Gets a copy of this throttle that can be sent to a node, and draws from
+	 * the same bandwidth.
+	 * 
+	 * @param channel
+	 *            the channel of the node
+	 * @return the throttle
+	 */
+	Throttle export(VirtualChannel channel) {
+		if (bandwidth == null) {
+			return this;
+		}
+		return new Throttle(channel.export(Bandwidth.class, bandwidth));
+	}
+
+	/**
+	 * Wraps a stream so that reading it is limited by this throttle.
+	 * 
+	 * @param in
+	 *            the stream
+	 * @return the limited stream, the stream itself if nothing is limited
+	 */
+	InputStream wrap(InputStream in) {
+		if (bandwidth == null) {
+			return in;
+		}
+		return new ThrottledInputStream(in);
+	}
+
+	/**
+	 * Accounts for bytes that were read and sleeps until the bandwidth allows
+	 * them.
+	 * 
+	 * @param n
+	 *            the number of bytes read
+	 * @throws InterruptedIOException
+	 *             if the thread is interrupted while sleeping
+	 */
+	private void consumed(int n) throws InterruptedIOException {
+		long bytes;
+		synchronized (this) {
+			pending += n;
+			if (pending < CHUNK_SIZE) {
+				return;
+			}
+			bytes = pending;
+			pending = 0;
+		}
+		long wait = bandwidth.reserve(bytes);
+		if (wait > 0) {
+			try {
+				Thread.sleep(wait);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Transfer was interrupted");
+			}
+		}
+	}
+
+	/**
+	 * The bandwidth the throttles of all transfers share.
+	 */
+	interface Bandwidth {
+
+		/**
+		 * Reserves the bandwidth for bytes that were read.
+		 * 
+		 * @param bytes
+		 *            the number of bytes
+		 * @return the millis to wait before reading on
+		 */
+		long reserve(long bytes);
+	}
+
+	/**
+	 * A bandwidth that hands out its rate to the reservations in the order
+	 * they arrive. Bandwidth that is not used is not saved up, so transfers
+	 * that were idle for a while do not get to burst.
+	 */
+	static final class Bucket implements Bandwidth {
+
+		/** The rate in bytes per second, 0 for no limit. */
+		private long bytesPerSecond;
+
+		/** The time the bytes reserved so far are read at, in millis. */
+		private double next;
+
+		/**
+		 * Sets the rate.
+		 * 
+		 * @param bytesPerSecond
+		 *            the rate in bytes per second, 0 for no limit
+		 */
+		synchronized void setBytesPerSecond(long bytesPerSecond) {
+			this.bytesPerSecond = Math.max(bytesPerSecond, 0);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see hudson.plugins.scm.Throttle.Bandwidth#reserve(long)
+		 */
+		public synchronized long reserve(long bytes) {
+			if (bytesPerSecond <= 0) {
+				return 0;
+			}
+			long now = System.currentTimeMillis();
+			next = Math.max(next, now) + bytes * 1000d / bytesPerSecond;
+			return (long) next - now;
+		}
+	}
+
+	/**
+	 * A stream limited by the throttle.
+	 */
+	private final class ThrottledInputStream extends FilterInputStream {
+
+		/**
+		 * Instantiates a new throttled input stream.
+		 * 
+		 * @param in
+		 *            the stream
+		 */
+		ThrottledInputStream(InputStream in) {
+			super(in);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.io.FilterInputStream#read()
+		 */
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				consumed(1);
+			}
+			return b;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.io.FilterInputStream#read(byte[], int, int)
+		 */
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				consumed(n);
+			}
+			return n;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.io.FilterInputStream#skip(long)
+		 */
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			if (skipped > 0) {
+				consumed((int) Math.min(skipped, Integer.MAX_VALUE));
+			}
+			return skipped;
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package hudson.plugins.scm;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+import com.github.luben.zstd.ZstdInputStream;
+
+/**
+ * Negotiates the compression of http transfers of archives that are not
+ * compressed themselves, plain tar archives and files of unknown type. The
+ * request advertises the encodings that can be decoded here in
+ * Accept-Encoding, and the response is decoded according to its
+ * Content-Encoding before it is written, so the downloaded file, its size
+ * and its digest are those of the original content. Only whole-file requests
+ * are negotiated: a byte range of an encoded response is a range of the
+ * encoded bytes, which can neither be resumed nor split.
+ */
+final class TransferEncoding {
+
+	/** The size of the decoder buffer. */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/** The encodings advertised in Accept-Encoding. */
+	private static final String ACCEPT = zstdAvailable() ? "zstd, gzip"
+			: "gzip";
+
+	/**
+	 * Instantiates a new transfer encoding.
+	 */
+	private TransferEncoding() {
+	}
+
+	/**
+	 * Checks if transfers of an archive type are worth compressing.
+	 * 
+	 * @param type
+	 *            the archive type
+	 * @return true, for plain tar archives and files of unknown type
+	 */
+	static boolean isCompressible(ArchiveType type) {
+		return type == ArchiveType.TAR || type == ArchiveType.UNKNOWN;
+	}
+
+	/**
+	 * Advertises the encodings that can be decoded.
+	 * 
+	 * @param connection
+	 *            the connection, not connected yet
+	 */
+	static void accept(HttpURLConnection connection) {
+		connection.setRequestProperty("Accept-Encoding", ACCEPT);
+	}
+
+	/**
+	 * Gets the encoding of a response.
+	 * 
+	 * @param connection
+	 *            the connection
+	 * @return the lower case encoding, null if the content is not encoded
+	 */
+	static String getEncoding(HttpURLConnection connection) {
+		String encoding = connection.getContentEncoding();
+		if (encoding == null) {
+			return null;
+		}
+		encoding = encoding.trim().toLowerCase(Locale.ENGLISH);
+		return encoding.length() == 0 || encoding.equals("identity") ? null
+				: encoding;
+	}
+
+	/**
+	 * Wraps a response in the decoder of its encoding.
+	 * 
+	 * @param encoding
+	 *            the encoding, null if the content is not encoded
+	 * @param in
+	 *            the response
+	 * @return the original content
+	 * @throws IOException
+	 *             if the encoding is not supported
+	 */
+	static InputStream decode(String encoding, InputStream in)
+			throws IOException {
+		if (encoding == null) {
+			return in;
+		}
+		if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+			return new GZIPInputStream(in, BUFFER_SIZE);
+		}
+		if (encoding.equals("zstd") && ACCEPT.startsWith("zstd")) {
+			return new ZstdInputStream(in);
+		}
+		throw new IOException("Unsupported Content-Encoding " + encoding);
+	}
+
+	/**
+	 * Checks if the native zstd decoder loads on this platform.
+	 * 
+	 * @return true, if zstd responses can be decoded
+	 */
+	private static boolean zstdAvailable() {
+		try {
+			new ZstdInputStream(new ByteArrayInputStream(new byte[0])).close();
+			return true;
+		} catch (IOException e) {
+			return true;
+		} catch (LinkageError e) {
+			return false;
+		}
+	}
+}
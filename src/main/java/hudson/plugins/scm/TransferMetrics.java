@@ -0,0 +1,222 @@
+package hudson.plugins.scm;
+
+import java.io.Serializable;
+
+/**
+ * What the checkout of one URL cost: the bytes transferred and the time spent
+ * waiting for the server, downloading and extracting. The metrics are
+ * measured where the work happens, possibly on a node, and are recorded on
+ * the build by {@link LastModifiedDateAction} and aggregated by
+ * {@link ArchiveFilesMetrics}.
+ */
+public final class TransferMetrics implements Serializable {
+
+	/** The Constant serialVersionUID. */
+	private static final long serialVersionUID = 1L;
+
+	/** Whether the workspace already held the current version. */
+	private boolean upToDate;
+
+	/** Whether the archive came from the node archive cache. */
+	private boolean cacheHit;
+
+	/** The number of bytes downloaded. */
+	private long bytes;
+
+	/** The time to the first byte of the response in millis, -1 if unknown. */
+	private long firstByteMillis = -1;
+
+	/** The time spent downloading in millis. */
+	private long downloadMillis;
+
+	/** The time spent decompressing and writing the entries in millis. */
+	private long extractMillis;
+
+	/** The number of entries of the archive that were extracted or skipped. */
+	private int entries;
+
+	/** The total time in millis. */
+	private long millis;
+
+	/**
+	 * Checks if the workspace already held the current version.
+	 * 
+	 * @return true, if up to date
+	 */
+	public boolean isUpToDate() {
+		return upToDate;
+	}
+
+	/**
+	 * Sets the up to date flag.
+	 * 
+	 * @param upToDate
+	 *            the up to date flag
+	 */
+	void setUpToDate(boolean upToDate) {
+		this.upToDate = upToDate;
+	}
+
+	/**
+	 * Checks if the archive came from the node archive cache.
+	 * 
+	 * @return true, if cache hit
+	 */
+	public boolean isCacheHit() {
+		return cacheHit;
+	}
+
+	/**
+	 * Sets the cache hit flag.
+	 * 
+	 * @param cacheHit
+	 *            the cache hit flag
+	 */
+	void setCacheHit(boolean cacheHit) {
+		this.cacheHit = cacheHit;
+	}
+
+	/**
+	 * Gets the number of bytes downloaded.
+	 * 
+	 * @return the bytes
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Sets the number of bytes downloaded.
+	 * 
+	 * @param bytes
+	 *            the bytes
+	 */
+	void setBytes(long bytes) {
+		this.bytes = bytes;
+	}
+
+	/**
+	 * Gets the time to the first byte of the response.
+	 * 
+	 * @return the millis, -1 if unknown
+	 */
+	public long getFirstByteMillis() {
+		return firstByteMillis;
+	}
+
+	/**
+	 * Sets the time to the first byte of the response.
+	 * 
+	 * @param firstByteMillis
+	 *            the millis
+	 */
+	void setFirstByteMillis(long firstByteMillis) {
+		this.firstByteMillis = firstByteMillis;
+	}
+
+	/**
+	 * Gets the time spent downloading. When the archive is extracted while it
+	 * is downloaded, this includes the extraction.
+	 * 
+	 * @return the millis
+	 */
+	public long getDownloadMillis() {
+		return downloadMillis;
+	}
+
+	/**
+	 * Sets the time spent downloading.
+	 * 
+	 * @param downloadMillis
+	 *            the millis
+	 */
+	void setDownloadMillis(long downloadMillis) {
+		this.downloadMillis = downloadMillis;
+	}
+
+	/**
+	 * Gets the time spent decompressing and writing the entries.
+	 * 
+	 * @return the millis
+	 */
+	public long getExtractMillis() {
+		return extractMillis;
+	}
+
+	/**
+	 * Sets the time spent decompressing and writing the entries.
+	 * 
+	 * @param extractMillis
+	 *            the millis
+	 */
+	void setExtractMillis(long extractMillis) {
+		this.extractMillis = extractMillis;
+	}
+
+	/**
+	 * Gets the number of entries that were extracted or skipped as unchanged.
+	 * 
+	 * @return the entries
+	 */
+	public int getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Sets the number of entries that were extracted or skipped as unchanged.
+	 * 
+	 * @param entries
+	 *            the entries
+	 */
+	void setEntries(int entries) {
+		this.entries = entries;
+	}
+
+	/**
+	 * Gets the total time.
+	 * 
+	 * @return the millis
+	 */
+	public long getMillis() {
+		return millis;
+	}
+
+	/**
+	 * Sets the total time.
+	 * 
+	 * @param millis
+	 *            the millis
+	 */
+	void setMillis(long millis) {
+		this.millis = millis;
+	}
+
+	/**
+	 * Gets the download throughput.
+	 * 
+	 * @return the bytes per second, 0 if nothing was downloaded
+	 */
+	public long getBytesPerSecond() {
+		if (bytes <= 0) {
+			return 0;
+		}
+		return bytes * 1000 / Math.max(downloadMillis, 1);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		if (upToDate) {
+			return "up to date";
+		}
+		return bytes + " bytes" + (cacheHit ? " from the cache" : "")
+				+ ", first byte after " + firstByteMillis + " ms, download "
+				+ downloadMillis + " ms (" + getBytesPerSecond()
+				+ " bytes/s), extraction " + extractMillis + " ms, "
+				+ entries + " entries, total " + millis + " ms";
+	}
+}
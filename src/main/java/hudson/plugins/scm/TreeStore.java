@@ -0,0 +1,714 @@
+package hudson.plugins.scm;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.INFO;
+import hudson.Util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Logger;
+
+/**
+ * A node-level store of extracted archives, shared by all jobs and executors
+ * of the node. Every version of an archive is extracted once into a tree of
+ * the store, keyed by URL, revision and include/exclude patterns, and
+ * workspaces are populated from that tree with reflinks where the file system
+ * supports them, hardlinks otherwise, and plain copies as a last resort.
+ * 
+ * The files of a tree are read-only. Reflinked and copied workspace files
+ * are made writable, as they share no data with the store. Hardlinks are
+ * only used when the jobs treat their checkouts as read-only: a hardlinked
+ * workspace file is the file of the store, so a build that changes it in
+ * place fails, or corrupts the store when it runs as root. The extractor
+ * always replaces files rather than writing through them.
+ * 
+ * A tree handed out by {@link #get} is pinned until it is released, so the
+ * eviction of another build never deletes a tree a workspace is being
+ * populated from.
+ */
+final class TreeStore {
+
+	/** The Constant LOGGER. */
+	private static final Logger LOGGER = Logger.getLogger(TreeStore.class
+			.getName());
+
+	/** The stores by directory. */
+	private static final Map<File, TreeStore> STORES = new HashMap<File, TreeStore>();
+
+	/** The suffix of the file describing a tree. */
+	private static final String INFO_SUFFIX = ".properties";
+
+	/** The suffix of a tree that is being extracted. */
+	private static final String STAGING_SUFFIX = ".staging";
+
+	/**
+	 * How a workspace is populated from a tree.
+	 */
+	enum Mode {
+
+		/** Copy-on-write clones, e.g. on btrfs or XFS. */
+		REFLINK("reflinks"),
+
+		/** Hardlinks to the read-only files of the tree, if allowed. */
+		HARDLINK("hardlinks"),
+
+		/** Plain copies. */
+		COPY("copies");
+
+		/** The description. */
+		private final String description;
+
+		/**
+		 * Instantiates a new mode.
+		 * 
+		 * @param description
+		 *            the description
+		 */
+		private Mode(String description) {
+			this.description = description;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Enum#toString()
+		 */
+		@Override
+		public String toString() {
+			return description;
+		}
+	}
+
+	/**
+	 * Extracts a version of an archive into a directory.
+	 */
+	interface Extractor {
+
+		/**
+		 * Extracts the archive.
+		 * 
+		 * @param target
+		 *            the empty directory to extract to
+		 * @return the SHA-256 of the archive
+		 * @throws IOException
+		 *             Signals that an I/O exception has occurred.
+		 * @throws InterruptedException
+		 *             the interrupted exception
+		 */
+		String extract(File target) throws IOException, InterruptedException;
+	}
+
+	/** The directory. */
+	private final File dir;
+
+	/** The trees being extracted by key. */
+	private final ConcurrentMap<String, FutureTask<Tree>> inflight = new ConcurrentHashMap<String, FutureTask<Tree>>();
+
+	/** The number of users of the trees in use by key, never evicted. */
+	private final Map<String, Integer> pins = new HashMap<String, Integer>();
+
+	/**
+	 * The best mode known to work. Reflinks are given up for good once they
+	 * fail, since that is a property of the file system of the store.
+	 */
+	private volatile Mode mode = File.separatorChar == '/' ? Mode.REFLINK
+			: Mode.COPY;
+
+	/**
+	 * Instantiates a new tree store.
+	 * 
+	 * @param dir
+	 *            the directory
+	 */
+	private TreeStore(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Gets the store kept in the given directory.
+	 * 
+	 * @param dir
+	 *            the directory
+	 * @return the store
+	 */
+	static TreeStore get(File dir) {
+		synchronized (STORES) {
+			TreeStore store = STORES.get(dir);
+			if (store == null) {
+				store = new TreeStore(dir);
+				STORES.put(dir, store);
+			}
+			return store;
+		}
+	}
+
+	/**
+	 * Computes the key of the tree of a version of an archive.
+	 * 
+	 * @param version
+	 *            the SHA-256 of the archive or its {@link ArchiveCache} key
+	 * @param filter
+	 *            the entries extracted
+	 * @return the key
+	 */
+	static String key(String version, EntryFilter filter) {
+		return ArchiveCache.sha256(version + "\n" + filter.identity());
+	}
+
+	/**
+	 * Gets a tree, extracting it first if it is not in the store. When
+	 * several threads ask for the same missing tree, only one of them
+	 * extracts it and the others wait for it, or extract it themselves if
+	 * that extraction is interrupted. The tree is pinned and has to
+	 * be {@link #release released} once it is no longer used.
+	 * 
+	 * @param key
+	 *            the key
+	 * @param extractor
+	 *            the extractor used when the tree is missing
+	 * @param maxSize
+	 *            the maximum size of the store in bytes
+	 * @return the tree
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	Tree get(final String key, final Extractor extractor, final long maxSize)
+			throws IOException, InterruptedException {
+		while (true) {
+			Tree tree = pin(find(key));
+			if (tree != null) {
+				return tree;
+			}
+			FutureTask<Tree> task = new FutureTask<Tree>(new Callable<Tree>() {
+				public Tree call() throws Exception {
+					return load(key, extractor, maxSize);
+				}
+			});
+			FutureTask<Tree> running = inflight.putIfAbsent(key, task);
+			if (running == null) {
+				running = task;
+				try {
+					task.run();
+				} finally {
+					inflight.remove(key, task);
+				}
+			}
+			tree = pin(await(key, running, running == task));
+			if (tree != null) {
+				return tree;
+			}
+			// evicted by another build before it could be pinned, or the
+			// build extracting it was aborted
+		}
+	}
+
+	/**
+	 * Waits for the extraction of a tree. An extraction of another thread
+	 * that was interrupted is no reason to fail this one, which extracts the
+	 * tree itself instead.
+	 * 
+	 * @param key
+	 *            the key
+	 * @param running
+	 *            the extraction
+	 * @param own
+	 *            whether the extraction ran in this thread
+	 * @return the tree, null if it has to be extracted again
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	private Tree await(String key, FutureTask<Tree> running, boolean own)
+			throws IOException, InterruptedException {
+		try {
+			return running.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof InterruptedException && !own
+					&& !Thread.currentThread().isInterrupted()) {
+				inflight.remove(key, running);
+				LOGGER.log(FINE, "Extracting " + key
+						+ " again, the extraction it waited for was interrupted");
+				return null;
+			}
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof InterruptedException) {
+				throw (InterruptedException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException("Unable to extract " + key + " : " + cause);
+		}
+	}
+
+	/**
+	 * Pins a tree, unless it has been evicted.
+	 * 
+	 * @param tree
+	 *            the tree, may be null
+	 * @return the tree, null if it is null or was evicted
+	 */
+	private Tree pin(Tree tree) {
+		if (tree == null) {
+			return null;
+		}
+		String key = tree.getRoot().getName();
+		synchronized (pins) {
+			if (!new File(dir, key + INFO_SUFFIX).isFile()) {
+				return null;
+			}
+			Integer n = pins.get(key);
+			pins.put(key, n == null ? 1 : n + 1);
+		}
+		return tree;
+	}
+
+	/**
+	 * Releases a tree returned by {@link #get}, which may be evicted again
+	 * once no build uses it.
+	 * 
+	 * @param tree
+	 *            the tree
+	 */
+	void release(Tree tree) {
+		String key = tree.getRoot().getName();
+		synchronized (pins) {
+			Integer n = pins.get(key);
+			if (n == null || n <= 1) {
+				pins.remove(key);
+			} else {
+				pins.put(key, n - 1);
+			}
+		}
+	}
+
+	/**
+	 * Finds a tree of the store and marks it as recently used.
+	 * 
+	 * @param key
+	 *            the key
+	 * @return the tree, null if it is not in the store
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private Tree find(String key) throws IOException {
+		File info = new File(dir, key + INFO_SUFFIX);
+		File root = new File(dir, key);
+		if (!info.isFile() || !root.isDirectory()) {
+			return null;
+		}
+		Properties p = new Properties();
+		InputStream in = new FileInputStream(info);
+		try {
+			p.load(in);
+		} finally {
+			in.close();
+		}
+		if (!info.setLastModified(System.currentTimeMillis())) {
+			LOGGER.log(FINE, "Unable to touch " + info);
+		}
+		return new Tree(root, p.getProperty("sha256"), Integer.parseInt(p
+				.getProperty("entries", "0")));
+	}
+
+	/**
+	 * Extracts a tree into the store and evicts old trees. The tree is
+	 * extracted next to its final location and renamed once it is complete,
+	 * so an interrupted extraction never leaves a partial tree behind.
+	 * 
+	 * @param key
+	 *            the key
+	 * @param extractor
+	 *            the extractor
+	 * @param maxSize
+	 *            the maximum size of the store in bytes
+	 * @return the tree
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	private Tree load(String key, Extractor extractor, long maxSize)
+			throws IOException, InterruptedException {
+		Tree tree = find(key);
+		if (tree != null) {
+			return tree;
+		}
+		File staging = new File(dir, key + STAGING_SUFFIX);
+		if (staging.exists()) {
+			// left behind by a node that went down during an extraction
+			Util.deleteRecursive(staging);
+		}
+		if (!staging.mkdirs()) {
+			throw new IOException("Unable to create " + staging);
+		}
+		File root = new File(dir, key);
+		try {
+			String sha256 = extractor.extract(staging);
+			long[] size = new long[2];
+			seal(staging, size);
+			Properties p = new Properties();
+			if (sha256 != null) {
+				p.setProperty("sha256", sha256);
+			}
+			p.setProperty("entries", Long.toString(size[0]));
+			p.setProperty("size", Long.toString(size[1]));
+			if (root.exists()) {
+				Util.deleteRecursive(root);
+			}
+			if (!staging.renameTo(root)) {
+				throw new IOException("Unable to rename " + staging + " to "
+						+ root);
+			}
+			// written last, a tree without it is not used
+			OutputStream out = new FileOutputStream(new File(dir, key
+					+ INFO_SUFFIX));
+			try {
+				p.store(out, null);
+			} finally {
+				out.close();
+			}
+			tree = new Tree(root, sha256, (int) size[0]);
+		} finally {
+			if (staging.exists()) {
+				Util.deleteRecursive(staging);
+			}
+		}
+		evict(maxSize, key);
+		return tree;
+	}
+
+	/**
+	 * Makes the files of a tree read-only and measures it.
+	 * 
+	 * @param f
+	 *            the file or directory
+	 * @param size
+	 *            the number of files and their total size, updated
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void seal(File f, long[] size) throws IOException {
+		File[] children = f.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File child : children) {
+			if (Util.isSymlink(child)) {
+				size[0]++;
+			} else if (child.isDirectory()) {
+				seal(child, size);
+			} else {
+				size[0]++;
+				size[1] += child.length();
+				child.setWritable(false, false);
+			}
+		}
+	}
+
+	/**
+	 * Deletes the least recently used trees until the store fits into the
+	 * given size. The tree that was just added, trees that are being
+	 * extracted and trees in use are kept. Workspaces populated with
+	 * hardlinks keep their files when a tree is deleted.
+	 * 
+	 * @param maxSize
+	 *            the maximum size in bytes
+	 * @param keep
+	 *            the key of the tree that must be kept
+	 */
+	private void evict(long maxSize, String keep) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		List<File> infos = new ArrayList<File>();
+		Map<File, Long> sizes = new HashMap<File, Long>();
+		long size = 0;
+		for (File f : files) {
+			if (!f.getName().endsWith(INFO_SUFFIX)) {
+				continue;
+			}
+			long treeSize = 0;
+			try {
+				Properties p = new Properties();
+				InputStream in = new FileInputStream(f);
+				try {
+					p.load(in);
+				} finally {
+					in.close();
+				}
+				treeSize = Long.parseLong(p.getProperty("size", "0"));
+			} catch (IOException e) {
+				LOGGER.log(FINE, "Unable to read " + f, e);
+			} catch (NumberFormatException e) {
+				LOGGER.log(FINE, "Unable to read " + f, e);
+			}
+			infos.add(f);
+			sizes.put(f, treeSize);
+			size += treeSize;
+		}
+		if (size <= maxSize) {
+			return;
+		}
+		Collections.sort(infos, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long d = a.lastModified() - b.lastModified();
+				return d < 0 ? -1 : d > 0 ? 1 : 0;
+			}
+		});
+		for (File info : infos) {
+			if (size <= maxSize) {
+				break;
+			}
+			String name = info.getName();
+			String key = name.substring(0, name.length()
+					- INFO_SUFFIX.length());
+			if (key.equals(keep) || inflight.containsKey(key)) {
+				continue;
+			}
+			synchronized (pins) {
+				// the tree is unusable as soon as its description is gone
+				if (pins.containsKey(key) || !info.delete()) {
+					continue;
+				}
+			}
+			size -= sizes.get(info);
+			try {
+				Util.deleteRecursive(new File(dir, key));
+				LOGGER.log(INFO, "Evicted " + key
+						+ " from the extracted-tree store");
+			} catch (IOException e) {
+				LOGGER.log(FINE, "Unable to delete " + key, e);
+			}
+		}
+	}
+
+	/**
+	 * Populates a workspace from a tree, replacing the files the workspace
+	 * already has. Reflinks are tried first, then hardlinks if allowed, then
+	 * copies.
+	 * 
+	 * @param tree
+	 *            the tree
+	 * @param workspace
+	 *            the workspace
+	 * @param hardlinks
+	 *            whether the workspace may share the read-only files of the
+	 *            store
+	 * @return the mode the workspace was populated with
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	Mode populate(Tree tree, File workspace, boolean hardlinks)
+			throws IOException, InterruptedException {
+		if (!workspace.isDirectory() && !workspace.mkdirs()) {
+			throw new IOException("Unable to create " + workspace);
+		}
+		if (mode == Mode.REFLINK) {
+			if (LocalFiles.cp(new File(tree.getRoot(), "."), workspace,
+					"--reflink=always")) {
+				// cp -p kept the read-only mode of the store
+				unseal(tree.getRoot(), workspace);
+				return Mode.REFLINK;
+			}
+			mode = Mode.HARDLINK;
+		}
+		if (mode == Mode.HARDLINK && hardlinks) {
+			// a workspace on another file system than the node root can not
+			// be hardlinked, which does not affect other workspaces
+			if (LocalFiles.cp(new File(tree.getRoot(), "."), workspace, "-l")) {
+				return Mode.HARDLINK;
+			}
+		}
+		copy(tree.getRoot(), workspace);
+		return Mode.COPY;
+	}
+
+	/**
+	 * Makes the workspace files of a tree writable again.
+	 * 
+	 * @param from
+	 *            the tree
+	 * @param to
+	 *            the workspace
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void unseal(File from, File to) throws IOException {
+		File[] children = from.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File child : children) {
+			File target = new File(to, child.getName());
+			if (Util.isSymlink(child)) {
+				continue;
+			}
+			if (child.isDirectory()) {
+				unseal(child, target);
+			} else if (!target.setWritable(true)) {
+				LOGGER.log(FINE, "Unable to make " + target + " writable");
+			}
+		}
+	}
+
+	/**
+	 * Deletes the files of the entries of the previous extraction into a
+	 * workspace that the tree it was populated from no longer has.
+	 * 
+	 * @param previous
+	 *            the entries of the previous extraction
+	 * @param workspace
+	 *            the workspace, whose manifest is that of the tree
+	 * @param fileName
+	 *            the file name of the archive
+	 * @return the number of files deleted
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	static int removeStale(Set<String> previous, File workspace,
+			String fileName) throws IOException {
+		Set<String> current = ExtractionManifest.load(workspace, fileName)
+				.getPrevious();
+		int deleted = 0;
+		for (String name : previous) {
+			if (!current.contains(name)) {
+				File f = ArchiveExtractor.target(workspace, name);
+				if (f.isFile() && f.delete()) {
+					deleted++;
+				}
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * Copies a tree into a workspace. The copies are writable, as they are
+	 * not shared with the store.
+	 * 
+	 * @param from
+	 *            the tree
+	 * @param to
+	 *            the workspace
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	private static void copy(File from, File to) throws IOException,
+			InterruptedException {
+		File[] children = from.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File child : children) {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			File target = new File(to, child.getName());
+			if (child.isDirectory()) {
+				if (!target.isDirectory() && !target.mkdirs()) {
+					throw new IOException("Unable to create " + target);
+				}
+				copy(child, target);
+				continue;
+			}
+			InputStream in = new FileInputStream(child);
+			try {
+				ArchiveExtractor.copy(in, target);
+			} finally {
+				in.close();
+			}
+			if (!target.setLastModified(child.lastModified())) {
+				LOGGER.log(FINE, "Unable to touch " + target);
+			}
+			if (child.canExecute()) {
+				target.setExecutable(true, false);
+			}
+		}
+	}
+
+	/**
+	 * A tree of the store.
+	 */
+	static final class Tree {
+
+		/** The root directory. */
+		private final File root;
+
+		/** The SHA-256 of the archive, null if unknown. */
+		private final String sha256;
+
+		/** The number of files. */
+		private final int entries;
+
+		/**
+		 * Instantiates a new tree.
+		 * 
+		 * @param root
+		 *            the root
+		 * @param sha256
+		 *            the SHA-256 of the archive
+		 * @param entries
+		 *            the number of files
+		 */
+		Tree(File root, String sha256, int entries) {
+			this.root = root;
+			this.sha256 = sha256;
+			this.entries = entries;
+		}
+
+		/**
+		 * Gets the root directory.
+		 * 
+		 * @return the root
+		 */
+		File getRoot() {
+			return root;
+		}
+
+		/**
+		 * Gets the SHA-256 of the archive.
+		 * 
+		 * @return the hex encoded digest, null if unknown
+		 */
+		String getSha256() {
+			return sha256;
+		}
+
+		/**
+		 * Gets the number of files.
+		 * 
+		 * @return the entries
+		 */
+		int getEntries() {
+			return entries;
+		}
+	}
+}
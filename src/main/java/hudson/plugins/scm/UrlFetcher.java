@@ -0,0 +1,1242 @@
+package hudson.plugins.scm;
+
+import static java.util.logging.Level.FINE;
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+
+/**
+ * Downloads one URL and extracts it into the workspace.
+ * 
+ * The fetcher either runs on the master through {@link #fetch(FilePath)}, in
+ * which case the downloaded bytes are piped to the workspace through the
+ * remoting channel, or it is sent to the node that owns the workspace with
+ * {@link FilePath#act(FileCallable)}. In the latter case the connection, proxy
+ * setup, authentication and extraction all happen on the node and only the
+ * {@link Result} travels back to the master.
+ */
+final class UrlFetcher implements FileCallable<UrlFetcher.Result> {
+
+	/** The Constant serialVersionUID. */
+	private static final long serialVersionUID = 1L;
+
+	/** The Constant LOGGER. */
+	private static final Logger LOGGER = Logger.getLogger(UrlFetcher.class
+			.getName());
+
+	/** A hex encoded SHA-256. */
+	private static final Pattern SHA256 = Pattern.compile("[0-9a-fA-F]{64}");
+
+	/** A hex encoded SHA-256 within the text of a sidecar file. */
+	private static final Pattern SHA256_TOKEN = Pattern
+			.compile("(?<![0-9a-fA-F])([0-9a-fA-F]{64})(?![0-9a-fA-F])");
+
+	/** The number of bytes of a sidecar file that are read. */
+	private static final int SIDECAR_LIMIT = 4096;
+
+	/** The url string. */
+	private final String urlString;
+
+	/** The connection settings. */
+	private final ConnectionSettings settings;
+
+	/** The entries to extract. */
+	private final EntryFilter filter;
+
+	/**
+	 * The expected SHA-256 of the archive, or the URL of a sidecar file
+	 * holding it. Empty if the archive is not verified.
+	 */
+	private final String checksum;
+
+	/** The version of the url extracted into the workspace. */
+	private final WorkspaceState.Entry extracted;
+
+	/** The listener. */
+	private final TaskListener listener;
+
+	/** The prefix of every console line. */
+	private final String prefix;
+
+	/** The fetch options. */
+	private final FetchOptions options;
+
+	/** The gate the download waits at for its turn, null if not scheduled. */
+	private DownloadScheduler.Gate gate;
+
+	/** The throttle of the download. */
+	private Throttle throttle = Throttle.NONE;
+
+	/** Set once the download passed its gate. */
+	private transient volatile boolean admitted;
+
+	/** The master side of a fetcher sent to a node, null on the node. */
+	private transient volatile RemoteAbort remoteAbort;
+
+	/** Where a fetcher on a node registers itself to be aborted. */
+	private Registration registration;
+
+	/** The thread running the fetcher on a node. */
+	private transient volatile Thread worker;
+
+	/** The http download in progress, aborted with the fetcher. */
+	private transient volatile ResumableDownloader downloader;
+
+	/** The stream being read, closed to abort the download. */
+	private transient volatile InputStream is;
+
+	/** Set once the download has been aborted. */
+	private transient volatile boolean aborted;
+
+	/**
+	 * Instantiates a new url fetcher.
+	 * 
+	 * @param urlString
+	 *            the url string
+	 * @param settings
+	 *            the connection settings
+	 * @param filter
+	 *            the entries to extract
+	 * @param checksum
+	 *            the expected SHA-256 or the URL of a sidecar file holding
+	 *            it, empty if the archive is not verified
+	 * @param extracted
+	 *            the version of the url extracted into the workspace
+	 * @param listener
+	 *            the listener
+	 * @param prefix
+	 *            the prefix of every console line
+	 * @param options
+	 *            the fetch options
+	 */
+	UrlFetcher(String urlString, ConnectionSettings settings,
+			EntryFilter filter, String checksum,
+			WorkspaceState.Entry extracted, TaskListener listener,
+			String prefix, FetchOptions options) {
+		this.urlString = urlString;
+		this.settings = settings;
+		this.filter = filter;
+		this.checksum = checksum;
+		this.extracted = extracted;
+		this.listener = listener;
+		this.prefix = prefix;
+		this.options = options;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see hudson.FilePath.FileCallable#invoke(java.io.File,
+	 * hudson.remoting.VirtualChannel)
+	 */
+	public Result invoke(File workspace, VirtualChannel channel)
+			throws IOException, InterruptedException {
+		worker = Thread.currentThread();
+		try {
+			if (registration != null) {
+				registration.started(channel.export(Abortable.class,
+						new Abortable() {
+							public void abort() {
+								UrlFetcher.this.abort();
+							}
+						}));
+			}
+			return fetch(new FilePath(workspace));
+		} finally {
+			worker = null;
+		}
+	}
+
+	/**
+	 * Prints a line to the build console. Each line is written with a single
+	 * println so lines of parallel downloads do not interleave.
+	 * 
+	 * @param message
+	 *            the message
+	 */
+	private void log(String message) {
+		listener.getLogger().println(prefix + message);
+	}
+
+	/**
+	 * Gets the url string.
+	 * 
+	 * @return the url string
+	 */
+	String getUrlString() {
+		return urlString;
+	}
+
+	/**
+	 * Schedules the download. The fetcher waits at the gate right before it
+	 * transfers the first byte of the archive, and not at all if it does not
+	 * transfer the archive. Must be called before the fetcher is sent to the
+	 * node, with a gate and a throttle exported to that node.
+	 * 
+	 * @param gate
+	 *            the gate
+	 * @param throttle
+	 *            the throttle
+	 */
+	void schedule(DownloadScheduler.Gate gate, Throttle throttle) {
+		this.gate = gate;
+		this.throttle = throttle;
+	}
+
+	/**
+	 * Prepares the fetcher to be sent to a node, so that aborting it on the
+	 * master aborts the fetcher on the node as well.
+	 * 
+	 * @param channel
+	 *            the channel of the node
+	 */
+	void export(VirtualChannel channel) {
+		RemoteAbort r = new RemoteAbort();
+		remoteAbort = r;
+		registration = channel.export(Registration.class, r);
+	}
+
+	/**
+	 * Aborts the download by closing the connections and streams it is
+	 * reading from. On a node the extraction is interrupted as well, and a
+	 * fetcher that was {@link #export(VirtualChannel) exported} is aborted on
+	 * its node once the master aborts it.
+	 */
+	void abort() {
+		aborted = true;
+		RemoteAbort r = remoteAbort;
+		if (r != null) {
+			r.abort();
+		}
+		Thread t = worker;
+		if (t != null) {
+			t.interrupt();
+		}
+		ResumableDownloader d = downloader;
+		if (d != null) {
+			d.abort();
+		}
+		InputStream in = is;
+		if (in != null) {
+			try {
+				in.close();
+			} catch (IOException e) {
+				LOGGER.log(FINE, "Unable to close " + urlString, e);
+			}
+		}
+	}
+
+	/**
+	 * Downloads the URL and extracts it into the workspace unless the
+	 * workspace already holds the current version. The caller records the
+	 * version in the {@link WorkspaceState}.
+	 * 
+	 * @param workspace
+	 *            the workspace
+	 * @return the result
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws InterruptedException
+	 *             if the download is aborted
+	 */
+	Result fetch(FilePath workspace) throws IOException, InterruptedException {
+		long start = System.currentTimeMillis();
+		log("File URL : " + urlString);
+		URL url = new URL(urlString);
+
+		if (settings.isProxyConfigured()) {
+			log("Proxy is configured : " + settings.describeProxy());
+			if (settings.isProxySecured()) {
+				log("User Name and Password is configured to connect through proxy");
+			}
+		} else {
+			log("Proxy is not configured");
+		}
+		// only the headers are requested here, the archive is downloaded
+		// once it is known that the workspace is not up to date
+		UrlProbe.Result remote = UrlProbe.probe(url, settings, 0, null);
+
+		// Saving last modified time stamp for later use while polling
+		// for source code change
+		long sourceLastUpdatedTimestamp = remote.getLastModified();
+		String etag = remote.getEtag();
+		String fileName = ArchiveFilesSCM.fileName(urlString);
+		String expected = expectedDigest();
+		TransferMetrics metrics = new TransferMetrics();
+
+		if (expected != null) {
+			// the digest identifies the version even if the server sends
+			// neither Last-Modified nor an ETag
+			if (expected.equals(extracted.getSha256())) {
+				log("File is up to date, SHA-256 : " + expected);
+				metrics.setUpToDate(true);
+				metrics.setMillis(System.currentTimeMillis() - start);
+				return new Result(sourceLastUpdatedTimestamp, etag, expected,
+						metrics);
+			}
+		} else if (extracted.hasTimestamp(sourceLastUpdatedTimestamp)) {
+			log("File is up to date");
+			metrics.setUpToDate(true);
+			metrics.setMillis(System.currentTimeMillis() - start);
+			return new Result(sourceLastUpdatedTimestamp, etag, extracted
+					.getSha256(), metrics);
+		}
+		String sha256;
+		String version = expected != null ? expected : ArchiveCache.key(
+				urlString, sourceLastUpdatedTimestamp, etag);
+		if (options.getTreeStoreDir() != null && version != null
+				&& !workspace.isRemote()) {
+			sha256 = populate(url, remote, expected, TreeStore.key(version,
+					filter), workspace, fileName, metrics);
+		} else {
+			sha256 = extractArchive(url, remote, expected, workspace,
+					workspace, fileName, options.isIncremental(), metrics);
+		}
+		log("Downloaded " + urlString + " to " + workspace.getRemote());
+		metrics.setMillis(System.currentTimeMillis() - start);
+		log(metrics.toString());
+		return new Result(sourceLastUpdatedTimestamp, etag, sha256, metrics);
+	}
+
+	/**
+	 * Downloads the current version of the URL into the node archive cache,
+	 * and extracts it into the extracted-tree store if that is used, without
+	 * touching any workspace. A checkout of the same version that starts
+	 * meanwhile waits for this download instead of starting its own.
+	 * 
+	 * @return true, if the URL was prefetched, false if the node archive
+	 *         cache is not used or the version of the URL is unknown
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	boolean prefetch() throws IOException, InterruptedException {
+		String cacheDir = options.getCacheDir();
+		if (cacheDir == null) {
+			return false;
+		}
+		URL url = new URL(urlString);
+		UrlProbe.Result remote = UrlProbe.probe(url, settings, 0, null);
+		String expected = expectedDigest();
+		String version = expected != null ? expected : ArchiveCache.key(
+				urlString, remote.getLastModified(), remote.getEtag());
+		if (version == null) {
+			return false;
+		}
+		TransferMetrics metrics = new TransferMetrics();
+		if (options.getTreeStoreDir() != null) {
+			// the part-file is never used, the archive goes to the cache
+			TreeStore.get(new File(options.getTreeStoreDir())).release(
+					tree(url, remote, expected, TreeStore.key(version, filter),
+							new FilePath(new File(cacheDir)), ArchiveFilesSCM
+									.fileName(urlString), metrics));
+		} else {
+			ArchiveCache.get(new File(cacheDir)).get(version,
+					new CacheLoader(url, remote, metrics),
+					options.getCacheSize());
+		}
+		return true;
+	}
+
+	/**
+	 * Populates the workspace from the tree of the archive in the node
+	 * extracted-tree store, extracting the archive into the store first if no
+	 * other build did so yet.
+	 * 
+	 * @param url
+	 *            the url
+	 * @param remote
+	 *            the revision metadata of the url
+	 * @param expected
+	 *            the expected digest, null if the archive is not verified
+	 * @param key
+	 *            the key of the tree
+	 * @param workspace
+	 *            the workspace
+	 * @param fileName
+	 *            the file name
+	 * @param metrics
+	 *            the metrics to record the time taken to
+	 * @return the digest of the archive
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	private String populate(final URL url, final UrlProbe.Result remote,
+			final String expected, String key, final FilePath workspace,
+			final String fileName, final TransferMetrics metrics)
+			throws IOException, InterruptedException {
+		TreeStore store = TreeStore.get(new File(options.getTreeStoreDir()));
+		TreeStore.Tree tree = tree(url, remote, expected, key, workspace,
+				fileName, metrics);
+		try {
+			long started = System.currentTimeMillis();
+			File dir = new File(workspace.getRemote());
+			// read before the manifest of the tree replaces it
+			Set<String> previous = options.isIncremental() ? ExtractionManifest
+					.load(dir, fileName).getPrevious()
+					: Collections.<String> emptySet();
+			TreeStore.Mode mode = store.populate(tree, dir, options
+					.isTreeStoreHardlinks());
+			int deleted = TreeStore.removeStale(previous, dir, fileName);
+			metrics.setExtractMillis(metrics.getExtractMillis()
+					+ System.currentTimeMillis() - started);
+			metrics.setEntries(tree.getEntries());
+			log("Populated the workspace with " + tree.getEntries() + " "
+					+ mode + " of " + tree.getRoot());
+			if (deleted > 0) {
+				log("Deleted " + deleted + " files removed from the archive");
+			}
+			return tree.getSha256();
+		} finally {
+			store.release(tree);
+		}
+	}
+
+	/**
+	 * Gets the tree of the archive from the node extracted-tree store,
+	 * extracting the archive into the store first if no other build did so
+	 * yet. The tree is pinned until it is released.
+	 * 
+	 * @param url
+	 *            the url
+	 * @param remote
+	 *            the revision metadata of the url
+	 * @param expected
+	 *            the expected digest, null if the archive is not verified
+	 * @param key
+	 *            the key of the tree
+	 * @param workspace
+	 *            the workspace, which keeps the part-file of a download
+	 * @param fileName
+	 *            the file name
+	 * @param metrics
+	 *            the metrics to record the time taken to
+	 * @return the tree
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	private TreeStore.Tree tree(final URL url, final UrlProbe.Result remote,
+			final String expected, String key, final FilePath workspace,
+			final String fileName, final TransferMetrics metrics)
+			throws IOException, InterruptedException {
+		TreeStore store = TreeStore.get(new File(options.getTreeStoreDir()));
+		final boolean[] extracted = new boolean[1];
+		TreeStore.Tree tree = store.get(key, new TreeStore.Extractor() {
+			public String extract(File target) throws IOException,
+					InterruptedException {
+				extracted[0] = true;
+				log("Extracting into the extracted-tree store");
+				// the whole archive is extracted, the tree starts out empty
+				return extractArchive(url, remote, expected, new FilePath(
+						target), workspace, fileName, false, metrics);
+			}
+		}, options.getTreeStoreSize());
+		if (!extracted[0]) {
+			metrics.setCacheHit(true);
+		}
+		return tree;
+	}
+
+	/**
+	 * Downloads the archive and extracts it, through the node archive cache
+	 * if it is used, and verifies its digest.
+	 * 
+	 * @param url
+	 *            the url
+	 * @param remote
+	 *            the revision metadata of the url
+	 * @param expected
+	 *            the expected digest, null if the archive is not verified
+	 * @param target
+	 *            the directory to extract to
+	 * @param workspace
+	 *            the workspace, which keeps the part-file of a download
+	 * @param fileName
+	 *            the file name
+	 * @param incremental
+	 *            whether unchanged entries are skipped
+	 * @param metrics
+	 *            the metrics to record the time taken to
+	 * @return the digest of the archive
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	private String extractArchive(URL url, UrlProbe.Result remote,
+			String expected, FilePath target, FilePath workspace,
+			String fileName, boolean incremental, TransferMetrics metrics)
+			throws IOException, InterruptedException {
+		String cacheDir = options.getCacheDir();
+		String key = null;
+		if (cacheDir != null) {
+			// an archive with a known digest is cached under its digest
+			key = expected != null ? expected : ArchiveCache.key(urlString,
+					remote.getLastModified(), remote.getEtag());
+		}
+		InputStream raw = null;
+		DigestingInputStream in;
+		String sha256;
+		try {
+			if (key != null) {
+				CacheLoader loader = new CacheLoader(url, remote, metrics);
+				File archive = ArchiveCache.get(new File(cacheDir)).get(key,
+						loader, options.getCacheSize());
+				if (loader.bytes < 0) {
+					// another build downloaded this version already
+					metrics.setCacheHit(true);
+					log("Using cached copy " + archive);
+				}
+				metrics.setBytes(Math.max(loader.bytes, 0));
+				raw = LocalFiles.open(archive);
+				is = raw;
+				in = new DigestingInputStream(raw);
+				extract(url, in, archive, target, fileName, incremental,
+						metrics);
+				close(url, in, target, expected);
+				if (expected != null && !expected.equals(in.getHexDigest())) {
+					ArchiveCache.get(new File(cacheDir)).remove(key);
+				} else if (options.getDeltaDir() != null) {
+					keepPreviousVersion(url, archive);
+				}
+				sha256 = verify(expected, in.getHexDigest());
+			} else if (ResumableDownloader.supports(url)) {
+				File part = partFile(workspace, fileName, remote);
+				metrics.setBytes(download(url, remote, part, metrics));
+				raw = LocalFiles.open(part);
+				is = raw;
+				in = new DigestingInputStream(raw);
+				extract(url, in, part, target, fileName, incremental, metrics);
+				close(url, in, target, expected);
+				// moved or deleted before the verification, a corrupt
+				// part-file must not be resumed by the next build
+				if (options.getDeltaDir() == null
+						|| (expected != null && !expected.equals(in
+								.getHexDigest()))
+						|| !part.renameTo(previousVersion(url))) {
+					if (!part.delete()) {
+						LOGGER.log(FINE, "Unable to delete " + part);
+					}
+				}
+				sha256 = verify(expected, in.getHexDigest());
+			} else if (LocalFiles.toFile(url) != null) {
+				// a local or mounted file is read in place, never spooled
+				File source = LocalFiles.toFile(url);
+				metrics.setBytes(source.length());
+				raw = LocalFiles.open(source);
+				is = raw;
+				in = new DigestingInputStream(raw);
+				extract(url, in, source, target, fileName, incremental,
+						metrics);
+				close(url, in, target, expected);
+				sha256 = verify(expected, in.getHexDigest());
+			} else {
+				admit();
+				long requested = System.currentTimeMillis();
+				CountingInputStream counter = new CountingInputStream(throttle
+						.wrap(settings.open(url).getInputStream()));
+				metrics.setFirstByteMillis(System.currentTimeMillis()
+						- requested);
+				raw = counter;
+				is = raw;
+				in = new DigestingInputStream(counter);
+				checkAborted();
+				// the archive is extracted while it is downloaded
+				extract(url, in, null, target, fileName, incremental,
+						metrics);
+				in.close();
+				metrics.setBytes(counter.getByteCount());
+				metrics.setDownloadMillis(System.currentTimeMillis()
+						- requested);
+				sha256 = verify(expected, in.getHexDigest());
+			}
+		} finally {
+			if (raw != null)
+				raw.close();
+		}
+		return sha256;
+	}
+
+	/**
+	 * Closes the digesting stream of an archive that was extracted from its
+	 * file. Zip archives and files copied as they are into a local workspace
+	 * are not read through the stream, so it is only read to the end to
+	 * compute the digest when a digest is expected.
+	 * 
+	 * @param url
+	 *            the url
+	 * @param in
+	 *            the stream
+	 * @param target
+	 *            the directory the archive was extracted to
+	 * @param expected
+	 *            the expected digest, null if the archive is not verified
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void close(URL url, DigestingInputStream in,
+			FilePath target, String expected) throws IOException {
+		ArchiveType type = ArchiveType.of(url.toExternalForm());
+		if (expected == null && !target.isRemote()
+				&& (type == ArchiveType.ZIP || type == ArchiveType.UNKNOWN)) {
+			in.discard();
+		} else {
+			in.close();
+		}
+	}
+
+	/**
+	 * Gets the SHA-256 the archive is expected to have, either configured
+	 * directly or read from a sidecar file such as the <tt>.sha256</tt> files
+	 * published next to many downloads.
+	 * 
+	 * @return the lower case hex encoded digest, null if the archive is not
+	 *         verified
+	 * @throws IOException
+	 *             if the sidecar file can not be read or holds no digest
+	 */
+	private String expectedDigest() throws IOException {
+		if (checksum == null || checksum.length() == 0) {
+			return null;
+		}
+		if (SHA256.matcher(checksum).matches()) {
+			return checksum.toLowerCase(Locale.ENGLISH);
+		}
+		URL sidecar = new URL(new URL(urlString), checksum);
+		InputStream in = settings.open(sidecar).getInputStream();
+		try {
+			// both "<digest>  <file>" and "SHA256 (<file>) = <digest>"
+			// are in use, so the first token that looks like a digest wins
+			byte[] b = new byte[SIDECAR_LIMIT];
+			int n = 0;
+			int r;
+			while (n < b.length && (r = in.read(b, n, b.length - n)) != -1) {
+				n += r;
+			}
+			Matcher m = SHA256_TOKEN.matcher(new String(b, 0, n, "US-ASCII"));
+			if (!m.find()) {
+				throw new IOException("No SHA-256 found in " + sidecar);
+			}
+			String digest = m.group(1).toLowerCase(Locale.ENGLISH);
+			log("Expected SHA-256 from " + sidecar + " : " + digest);
+			return digest;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Verifies the digest of the archive that was extracted into the
+	 * workspace against the expected digest. When they do not match the
+	 * caller forgets the extracted version, so the next build does not
+	 * consider the workspace up to date.
+	 * 
+	 * @param expected
+	 *            the expected digest, null if the archive is not verified
+	 * @param actual
+	 *            the digest of the archive
+	 * @return the digest of the archive
+	 * @throws IOException
+	 *             if the digests do not match
+	 */
+	private String verify(String expected, String actual) throws IOException {
+		if (expected != null && !expected.equals(actual)) {
+			throw new IOException("SHA-256 mismatch for " + urlString
+					+ " : expected " + expected + " but was " + actual);
+		}
+		if (actual != null) {
+			log("SHA-256 : " + actual
+					+ (expected != null ? " (verified)" : ""));
+		}
+		return actual;
+	}
+
+	/**
+	 * Gets the part-file an http download is spooled to. In a local workspace
+	 * the part-file is kept next to the timestamp file, so a download that
+	 * fails is resumed by the next build. The version of the URL is part of
+	 * the name, so a part-file is only ever resumed by a download of the
+	 * version it holds; the part-files of other versions are deleted.
+	 * 
+	 * @param workspace
+	 *            the workspace
+	 * @param fileName
+	 *            the file name
+	 * @param remote
+	 *            the revision metadata of the url
+	 * @return the part-file
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private File partFile(FilePath workspace, String fileName,
+			UrlProbe.Result remote) throws IOException {
+		if (workspace.isRemote()) {
+			return File.createTempFile("archive-files-scm", ".part");
+		}
+		String key = ArchiveCache.key(urlString, remote.getLastModified(),
+				remote.getEtag());
+		String name = "." + fileName;
+		if (key != null) {
+			name += "-"
+					+ ArchiveCache.sha256(
+							key + "\n" + remote.getContentLength())
+							.substring(0, 16);
+		}
+		name += "-download.part";
+		File dir = new File(workspace.getRemote());
+		Pattern stale = Pattern.compile(Pattern.quote("." + fileName)
+				+ "(-[0-9a-f]{16})?-download\\.part");
+		String[] names = dir.list();
+		if (names != null) {
+			for (String n : names) {
+				if (!n.equals(name) && stale.matcher(n).matches()
+						&& !new File(dir, n).delete()) {
+					LOGGER.log(FINE, "Unable to delete " + n);
+				}
+			}
+		}
+		return new File(dir, name);
+	}
+
+	/**
+	 * Downloads the URL into a local file. Http and https downloads are
+	 * resumed after failures and may be split into concurrent ranges, or may
+	 * be transferred compressed when the archive is not compressed itself.
+	 * 
+	 * @param url
+	 *            the url
+	 * @param remote
+	 *            the revision metadata of the url
+	 * @param target
+	 *            the file to write to
+	 * @param metrics
+	 *            the metrics to record the time taken to
+	 * @return the number of bytes transferred
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	private long download(URL url, UrlProbe.Result remote, File target,
+			TransferMetrics metrics) throws IOException, InterruptedException {
+		checkAborted();
+		admit();
+		long started = System.currentTimeMillis();
+		if (ResumableDownloader.supports(url)) {
+			if (options.getDeltaDir() != null && target.length() == 0
+					&& remote.isAcceptRanges()) {
+				long bytes = deltaDownload(url, remote, target, metrics);
+				if (bytes >= 0) {
+					return bytes;
+				}
+			}
+			if (options.isCompression() && target.length() == 0
+					&& (options.getSegments() <= 1 || !remote.isAcceptRanges())
+					&& TransferEncoding.isCompressible(ArchiveType.of(url
+							.toExternalForm()))) {
+				long bytes = compressedDownload(url, remote, target, metrics);
+				if (bytes >= 0) {
+					return bytes;
+				}
+			}
+			ResumableDownloader d = new ResumableDownloader(url, settings,
+					remote, options.getSegments(), throttle);
+			downloader = d;
+			if (target.length() > 0) {
+				log("Resuming download at byte " + target.length());
+			}
+			try {
+				return d.download(target);
+			} finally {
+				metrics.setFirstByteMillis(d.getFirstByteMillis());
+				metrics.setDownloadMillis(System.currentTimeMillis() - started);
+			}
+		}
+		File source = LocalFiles.toFile(url);
+		if (source != null) {
+			log("Copied " + source + " into the archive cache with "
+					+ LocalFiles.copy(source, target));
+			metrics.setFirstByteMillis(0);
+			metrics.setDownloadMillis(System.currentTimeMillis() - started);
+			return source.length();
+		}
+		CountingInputStream in = new CountingInputStream(throttle
+				.wrap(settings.open(url).getInputStream()));
+		metrics.setFirstByteMillis(System.currentTimeMillis() - started);
+		is = in;
+		OutputStream out = null;
+		try {
+			checkAborted();
+			out = new FileOutputStream(target);
+			IOUtils.copy(in, out);
+		} finally {
+			in.close();
+			if (out != null)
+				out.close();
+			metrics.setDownloadMillis(System.currentTimeMillis() - started);
+		}
+		return in.getByteCount();
+	}
+
+	/**
+	 * Downloads only the blocks of the URL that changed since the previous
+	 * version kept on the node, as listed by the block index published next
+	 * to it.
+	 * 
+	 * @param url
+	 *            the url
+	 * @param remote
+	 *            the revision metadata of the url
+	 * @param target
+	 *            the file to write to
+	 * @param metrics
+	 *            the metrics to record the time taken to
+	 * @return the number of bytes transferred, -1 if the whole file has to be
+	 *         downloaded
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	private long deltaDownload(URL url, UrlProbe.Result remote, File target,
+			TransferMetrics metrics) throws InterruptedException {
+		File previous = previousVersion(url);
+		if (!previous.isFile()) {
+			return -1;
+		}
+		long started = System.currentTimeMillis();
+		DeltaDownloader d = new DeltaDownloader(url, settings, remote,
+				throttle);
+		try {
+			BlockIndex index = d.fetchIndex();
+			long bytes = d.download(index, previous, target);
+			metrics.setDownloadMillis(System.currentTimeMillis() - started);
+			log("Delta download : fetched " + bytes + " bytes with "
+					+ d.getRequests() + " range requests, reused "
+					+ d.getReused() + " bytes of the previous version");
+			return bytes;
+		} catch (IOException e) {
+			LOGGER.log(FINE, "Delta download of " + urlString + " failed", e);
+			log("Downloading the whole file, delta download failed : "
+					+ e.getMessage());
+			if (target.exists() && !target.delete()) {
+				LOGGER.log(FINE, "Unable to delete " + target);
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * Downloads the URL in a single request that lets the server compress
+	 * the transfer, and decodes the response into the target as it arrives.
+	 * 
+	 * @param url
+	 *            the url
+	 * @param remote
+	 *            the revision metadata of the url
+	 * @param target
+	 *            the file to write the original content to
+	 * @param metrics
+	 *            the metrics to record the time taken to
+	 * @return the number of bytes transferred, -1 if the file has to be
+	 *         downloaded again with a resumable download
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	private long compressedDownload(URL url, UrlProbe.Result remote,
+			File target, TransferMetrics metrics) throws InterruptedException {
+		long started = System.currentTimeMillis();
+		try {
+			HttpURLConnection connection = (HttpURLConnection) settings
+					.open(url);
+			TransferEncoding.accept(connection);
+			int status = connection.getResponseCode();
+			metrics.setFirstByteMillis(System.currentTimeMillis() - started);
+			if (status != HttpURLConnection.HTTP_OK
+					|| (remote.getLastModified() > 0
+							&& connection.getLastModified() > 0 && connection
+							.getLastModified() != remote.getLastModified())) {
+				ConnectionSettings.release(connection);
+				throw new IOException("Server returned HTTP " + status
+						+ " or a version other than the one polled for "
+						+ url);
+			}
+			String encoding = TransferEncoding.getEncoding(connection);
+			CountingInputStream wire = new CountingInputStream(throttle
+					.wrap(connection.getInputStream()));
+			is = wire;
+			InputStream in = TransferEncoding.decode(encoding, wire);
+			OutputStream out = null;
+			try {
+				checkAborted();
+				out = new FileOutputStream(target);
+				IOUtils.copy(in, out);
+			} finally {
+				in.close();
+				if (out != null)
+					out.close();
+				metrics.setDownloadMillis(System.currentTimeMillis() - started);
+			}
+			// the probe was not encoded, so its length is the original one
+			if (remote.getContentLength() >= 0
+					&& target.length() != remote.getContentLength()) {
+				throw new IOException("Expected " + remote.getContentLength()
+						+ " bytes of " + url + " but got " + target.length());
+			}
+			if (encoding != null) {
+				log("Transferred " + wire.getByteCount() + " " + encoding
+						+ " encoded bytes for " + target.length() + " bytes");
+			}
+			return wire.getByteCount();
+		} catch (IOException e) {
+			if (target.exists() && !target.delete()) {
+				LOGGER.log(FINE, "Unable to delete " + target);
+			}
+			checkAborted();
+			LOGGER.log(FINE, "Compressed download of " + urlString
+					+ " failed", e);
+			log("Downloading again without compression : " + e.getMessage());
+			return -1;
+		}
+	}
+
+	/**
+	 * Gets the file the previous version of the URL is kept in for delta
+	 * downloads.
+	 * 
+	 * @param url
+	 *            the url
+	 * @return the file, which may not exist
+	 */
+	private File previousVersion(URL url) {
+		File dir = new File(options.getDeltaDir());
+		dir.mkdirs();
+		String hash = new String(Hex.encodeHex(BlockIndex.digest("SHA-256")
+				.digest(url.toExternalForm().getBytes())));
+		return new File(dir, hash.substring(0, 16) + "-"
+				+ ArchiveFilesSCM.fileName(urlString));
+	}
+
+	/**
+	 * Keeps a hardlink to an archive of the node archive cache as the
+	 * previous version of the URL, so that the cache may evict it.
+	 * 
+	 * @param url
+	 *            the url
+	 * @param archive
+	 *            the cached archive
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	private void keepPreviousVersion(URL url, File archive)
+			throws InterruptedException {
+		File previous = previousVersion(url);
+		if (!LocalFiles.cp(archive, previous, "-l")) {
+			LOGGER.log(FINE, "Unable to keep " + archive
+					+ " for delta downloads");
+		}
+	}
+
+	/**
+	 * Throws if the download has been aborted.
+	 * 
+	 * @throws InterruptedException
+	 *             if the download has been aborted
+	 */
+	private void checkAborted() throws InterruptedException {
+		if (aborted) {
+			throw new InterruptedException("Download of " + urlString
+					+ " was cancelled");
+		}
+	}
+
+	/**
+	 * Waits at the gate of the download for its turn, once.
+	 * 
+	 * @throws InterruptedException
+	 *             if the download is aborted while waiting
+	 */
+	private void admit() throws InterruptedException {
+		if (gate == null || admitted) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		gate.enter();
+		admitted = true;
+		long waited = System.currentTimeMillis() - start;
+		if (waited >= 1000) {
+			log("Waited " + waited + " millis for a download slot of "
+					+ ArchiveFilesMetrics.server(urlString));
+		}
+		checkAborted();
+	}
+
+	/**
+	 * Downloads the URL into the node archive cache.
+	 */
+	private final class CacheLoader implements ArchiveCache.Loader {
+
+		/** The url. */
+		private final URL url;
+
+		/** The revision metadata of the url. */
+		private final UrlProbe.Result remote;
+
+		/** The metrics to record the time taken to. */
+		private final TransferMetrics metrics;
+
+		/** The number of bytes downloaded, -1 if the loader was not used. */
+		private long bytes = -1;
+
+		/**
+		 * Instantiates a new cache loader.
+		 * 
+		 * @param url
+		 *            the url
+		 * @param remote
+		 *            the revision metadata of the url
+		 * @param metrics
+		 *            the metrics to record the time taken to
+		 */
+		CacheLoader(URL url, UrlProbe.Result remote, TransferMetrics metrics) {
+			this.url = url;
+			this.remote = remote;
+			this.metrics = metrics;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see hudson.plugins.scm.ArchiveCache.Loader#load(java.io.File)
+		 */
+		public void load(File target) throws IOException,
+				InterruptedException {
+			log("Downloading into the archive cache");
+			bytes = download(url, remote, target, metrics);
+		}
+	}
+
+	/**
+	 * Extracts the archive into the workspace based on the file name of the
+	 * URL. Files of unknown type are copied as they are.
+	 * 
+	 * @param url
+	 *            the url
+	 * @param in
+	 *            the stream
+	 * @param archive
+	 *            the archive as a local file, null if only the stream is
+	 *            available
+	 * @param workspace
+	 *            the workspace
+	 * @param fileName
+	 *            the file name
+	 * @param incremental
+	 *            whether unchanged entries are skipped
+	 * @param metrics
+	 *            the metrics to record the time taken to
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	private void extract(URL url, InputStream in, File archive,
+			FilePath workspace, String fileName, boolean incremental,
+			TransferMetrics metrics)
+			throws IOException, InterruptedException {
+		ArchiveType type = ArchiveType.of(url.toExternalForm());
+		log(type.getDescription());
+		if (!filter.isEmpty()) {
+			log("Extracting only the entries matching the include/exclude patterns");
+		}
+		long started = System.currentTimeMillis();
+		ArchiveExtractor.Stats stats = ArchiveExtractor.extract(type,
+				fileName, incremental, filter, in, archive, workspace);
+		metrics.setExtractMillis(System.currentTimeMillis() - started);
+		metrics.setEntries(stats.getWritten() + stats.getSkipped());
+		log(stats.toString());
+	}
+
+	/**
+	 * A fetcher that can be aborted from the master.
+	 */
+	interface Abortable {
+
+		/**
+		 * Aborts the fetcher.
+		 */
+		void abort();
+	}
+
+	/**
+	 * Lets a fetcher that runs on a node tell the master how to abort it.
+	 */
+	interface Registration {
+
+		/**
+		 * Called on the master once the fetcher started on the node.
+		 * 
+		 * @param fetcher
+		 *            the fetcher on the node
+		 */
+		void started(Abortable fetcher);
+	}
+
+	/**
+	 * The master side of a fetcher that runs on a node. An abort that comes
+	 * before the fetcher started is passed on as soon as it starts.
+	 */
+	private static final class RemoteAbort implements Registration {
+
+		/** The fetcher on the node, null until it started. */
+		private Abortable fetcher;
+
+		/** Whether the fetcher was aborted. */
+		private boolean aborted;
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * hudson.plugins.scm.UrlFetcher.Registration#started(hudson.plugins
+		 * .scm.UrlFetcher.Abortable)
+		 */
+		public void started(Abortable fetcher) {
+			synchronized (this) {
+				this.fetcher = fetcher;
+				if (!aborted) {
+					return;
+				}
+			}
+			abort(fetcher);
+		}
+
+		/**
+		 * Aborts the fetcher on the node, or once it starts.
+		 */
+		void abort() {
+			Abortable f;
+			synchronized (this) {
+				aborted = true;
+				f = fetcher;
+			}
+			if (f != null) {
+				abort(f);
+			}
+		}
+
+		/**
+		 * Aborts a fetcher on a node, which may have gone away already.
+		 * 
+		 * @param f
+		 *            the fetcher
+		 */
+		private static void abort(Abortable f) {
+			try {
+				f.abort();
+			} catch (RuntimeException e) {
+				LOGGER.log(FINE, "Unable to abort the fetcher on the node", e);
+			}
+		}
+	}
+
+	/**
+	 * What a fetch reports back to the master.
+	 */
+	static final class Result implements Serializable {
+
+		/** The Constant serialVersionUID. */
+		private static final long serialVersionUID = 1L;
+
+		/** The last modified time stamp of the URL. */
+		private final long lastModified;
+
+		/** The ETag of the URL, null if the server did not send one. */
+		private final String etag;
+
+		/** The SHA-256 of the extracted archive, null if unknown. */
+		private final String sha256;
+
+		/** The metrics. */
+		private final TransferMetrics metrics;
+
+		/**
+		 * Instantiates a new result.
+		 * 
+		 * @param lastModified
+		 *            the last modified
+		 * @param etag
+		 *            the etag
+		 * @param sha256
+		 *            the SHA-256 of the extracted archive
+		 * @param metrics
+		 *            the metrics
+		 */
+		Result(long lastModified, String etag, String sha256,
+				TransferMetrics metrics) {
+			this.lastModified = lastModified;
+			this.etag = etag;
+			this.sha256 = sha256;
+			this.metrics = metrics;
+		}
+
+		/**
+		 * Gets the last modified.
+		 * 
+		 * @return the last modified
+		 */
+		long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * Gets the etag.
+		 * 
+		 * @return the etag
+		 */
+		String getEtag() {
+			return etag;
+		}
+
+		/**
+		 * Gets the SHA-256 of the extracted archive.
+		 * 
+		 * @return the hex encoded digest, null if unknown
+		 */
+		String getSha256() {
+			return sha256;
+		}
+
+		/**
+		 * Gets the metrics.
+		 * 
+		 * @return the metrics
+		 */
+		TransferMetrics getMetrics() {
+			return metrics;
+		}
+	}
+}
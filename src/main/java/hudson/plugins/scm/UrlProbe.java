@@ -0,0 +1,295 @@
+package hudson.plugins.scm;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * Reads the revision metadata of a URL without downloading its content.
+ * 
+ * HTTP URLs are probed with a HEAD request carrying If-Modified-Since and
+ * If-None-Match, so an unchanged archive costs a single 304 response. Servers
+ * that do not implement HEAD get a conditional GET whose body is never read.
+ * Other protocols fall back to {@link URLConnection#getLastModified()}.
+ */
+final class UrlProbe {
+
+	/** The status of a response to a client that sends too many requests. */
+	private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+	/**
+	 * Instantiates a new url probe.
+	 */
+	private UrlProbe() {
+	}
+
+	/**
+	 * Probes the URL.
+	 * 
+	 * @param url
+	 *            the url
+	 * @param settings
+	 *            the connection settings
+	 * @param lastModified
+	 *            the last modified time stamp seen by the last build, 0 if
+	 *            unknown
+	 * @param etag
+	 *            the ETag seen by the last build, null if unknown
+	 * @return the result
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	static Result probe(URL url, ConnectionSettings settings,
+			long lastModified, String etag) throws IOException {
+		URLConnection connection = settings.open(url);
+		if (!(connection instanceof HttpURLConnection)) {
+			Result result = new Result(false, connection.getLastModified(),
+					null, connection.getContentLength(), false);
+			try {
+				// file connections open the file to read the headers
+				connection.getInputStream().close();
+			} catch (IOException e) {
+				// nothing to close
+			}
+			return result;
+		}
+		HttpURLConnection http = (HttpURLConnection) connection;
+		try {
+			http.setRequestMethod("HEAD");
+			setConditions(http, lastModified, etag);
+			int status = http.getResponseCode();
+			if (status == HttpURLConnection.HTTP_BAD_METHOD
+					|| status == HttpURLConnection.HTTP_NOT_IMPLEMENTED
+					|| status == HttpURLConnection.HTTP_FORBIDDEN) {
+				// some servers, e.g. those handing out pre-signed URLs, only
+				// accept GET
+				ConnectionSettings.release(http);
+				http = (HttpURLConnection) settings.open(url);
+				setConditions(http, lastModified, etag);
+				status = http.getResponseCode();
+			}
+			if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				return new Result(true, lastModified, etag, -1, false);
+			}
+			if (status == HTTP_TOO_MANY_REQUESTS
+					|| status == HttpURLConnection.HTTP_UNAVAILABLE) {
+				throw new RateLimited(url, status, retryAfter(http));
+			}
+			if (status >= 400) {
+				throw new IOException("Server returned HTTP response code: "
+						+ status + " for URL: " + url);
+			}
+			return new Result(false, http.getLastModified(),
+					http.getHeaderField("ETag"), contentLength(http),
+					"bytes".equalsIgnoreCase(http
+							.getHeaderField("Accept-Ranges")));
+		} finally {
+			// the body of a conditional GET is never read, so only an empty
+			// response leaves the connection open for the next request
+			ConnectionSettings.release(http);
+		}
+	}
+
+	/**
+	 * Sets the conditional request headers.
+	 * 
+	 * @param http
+	 *            the connection
+	 * @param lastModified
+	 *            the last modified
+	 * @param etag
+	 *            the etag
+	 */
+	private static void setConditions(HttpURLConnection http,
+			long lastModified, String etag) {
+		if (lastModified > 0) {
+			http.setIfModifiedSince(lastModified);
+		}
+		if (etag != null) {
+			http.setRequestProperty("If-None-Match", etag);
+		}
+	}
+
+	/**
+	 * Gets the delay a server asks for in its Retry-After header, given
+	 * either in seconds or as an http date.
+	 * 
+	 * @param http
+	 *            the connection
+	 * @return the delay in millis, 0 if the server did not ask for one
+	 */
+	private static long retryAfter(HttpURLConnection http) {
+		String value = http.getHeaderField("Retry-After");
+		if (value == null) {
+			return 0;
+		}
+		try {
+			return Math.max(Long.parseLong(value.trim()), 0) * 1000;
+		} catch (NumberFormatException e) {
+			long date = http.getHeaderFieldDate("Retry-After", 0);
+			return Math.max(date - System.currentTimeMillis(), 0);
+		}
+	}
+
+	/**
+	 * Gets the content length. {@link URLConnection#getContentLength()} is
+	 * limited to 2 GB.
+	 * 
+	 * @param connection
+	 *            the connection
+	 * @return the content length, -1 if unknown
+	 */
+	private static long contentLength(URLConnection connection) {
+		String value = connection.getHeaderField("Content-Length");
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * The revision metadata of a URL.
+	 */
+	static final class Result {
+
+		/** Whether the server answered 304 Not Modified. */
+		private final boolean notModified;
+
+		/** The last modified time stamp. */
+		private final long lastModified;
+
+		/** The ETag, null if the server did not send one. */
+		private final String etag;
+
+		/** The content length, -1 if unknown. */
+		private final long contentLength;
+
+		/** Whether the server accepts byte range requests. */
+		private final boolean acceptRanges;
+
+		/**
+		 * Instantiates a new result.
+		 * 
+		 * @param notModified
+		 *            the not modified flag
+		 * @param lastModified
+		 *            the last modified
+		 * @param etag
+		 *            the etag
+		 * @param contentLength
+		 *            the content length
+		 * @param acceptRanges
+		 *            the accept ranges flag
+		 */
+		Result(boolean notModified, long lastModified, String etag,
+				long contentLength, boolean acceptRanges) {
+			this.notModified = notModified;
+			this.lastModified = lastModified;
+			this.etag = etag;
+			this.contentLength = contentLength;
+			this.acceptRanges = acceptRanges;
+		}
+
+		/**
+		 * Gets the last modified.
+		 * 
+		 * @return the last modified
+		 */
+		long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * Gets the etag.
+		 * 
+		 * @return the etag
+		 */
+		String getEtag() {
+			return etag;
+		}
+
+		/**
+		 * Gets the content length.
+		 * 
+		 * @return the content length, -1 if unknown
+		 */
+		long getContentLength() {
+			return contentLength;
+		}
+
+		/**
+		 * Checks if the server accepts byte range requests.
+		 * 
+		 * @return true, if byte ranges are accepted
+		 */
+		boolean isAcceptRanges() {
+			return acceptRanges;
+		}
+
+		/**
+		 * Checks whether the URL changed compared to the given revision. A
+		 * 304 response means no change; otherwise ETags are compared when both
+		 * sides have one, and last modified time stamps when they do not.
+		 * 
+		 * @param previousLastModified
+		 *            the previous last modified
+		 * @param previousEtag
+		 *            the previous etag
+		 * @return true, if the URL changed
+		 */
+		boolean isChanged(long previousLastModified, String previousEtag) {
+			if (notModified) {
+				return false;
+			}
+			if (etag != null && previousEtag != null) {
+				return !etag.equals(previousEtag);
+			}
+			return lastModified != previousLastModified;
+		}
+	}
+
+	/**
+	 * Thrown when a server refuses a probe because it is overloaded or
+	 * receives too many requests.
+	 */
+	static final class RateLimited extends IOException {
+
+		/** The Constant serialVersionUID. */
+		private static final long serialVersionUID = 1L;
+
+		/** The delay the server asked for in millis, 0 if none. */
+		private final long retryAfter;
+
+		/**
+		 * Instantiates a new rate limited.
+		 * 
+		 * @param url
+		 *            the url
+		 * @param status
+		 *            the status of the response
+		 * @param retryAfter
+		 *            the delay the server asked for in millis
+		 */
+		RateLimited(URL url, int status, long retryAfter) {
+			super("Server returned HTTP response code: " + status
+					+ " for URL: " + url
+					+ (retryAfter > 0 ? ", retry after " + retryAfter / 1000
+							+ " seconds" : ""));
+			this.retryAfter = retryAfter;
+		}
+
+		/**
+		 * Gets the delay the server asked for.
+		 * 
+		 * @return the delay in millis, 0 if none
+		 */
+		long getRetryAfter() {
+			return retryAfter;
+		}
+	}
+}
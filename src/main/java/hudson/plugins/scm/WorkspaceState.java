@@ -0,0 +1,273 @@
+package hudson.plugins.scm;
+
+import static java.util.logging.Level.FINE;
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * What the workspace knows about the archives extracted into it: for every
+ * url the timestamp file, whose modification time is the Last-Modified of the
+ * extracted version, and the file holding the SHA-256 of that version.
+ * 
+ * The state of all urls of a checkout is read with a single call to the node
+ * of the workspace before the downloads start, and updated with a single call
+ * once they are done, so the number of remoting round trips does not grow
+ * with the number of urls.
+ */
+final class WorkspaceState implements Serializable {
+
+	/** The Constant serialVersionUID. */
+	private static final long serialVersionUID = 1L;
+
+	/** The Constant LOGGER. */
+	private static final Logger LOGGER = Logger.getLogger(WorkspaceState.class
+			.getName());
+
+	/** The entries by file name. */
+	private final HashMap<String, Entry> entries;
+
+	/**
+	 * Instantiates a new workspace state.
+	 * 
+	 * @param entries
+	 *            the entries by file name
+	 */
+	private WorkspaceState(HashMap<String, Entry> entries) {
+		this.entries = entries;
+	}
+
+	/**
+	 * Prepares the workspace for a checkout and reads its state.
+	 * 
+	 * @param workspace
+	 *            the workspace
+	 * @param clear
+	 *            whether the contents of the workspace are deleted first
+	 * @param trash
+	 *            the trash directory of the node the contents are moved to
+	 *            instead of being deleted right away, null to delete them
+	 *            before returning
+	 * @param fileNames
+	 *            the file names of the urls
+	 * @return the state
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	static WorkspaceState read(FilePath workspace, final boolean clear,
+			final String trash, final List<String> fileNames) throws IOException,
+			InterruptedException {
+		return workspace.act(new FileCallable<WorkspaceState>() {
+			private static final long serialVersionUID = 1L;
+
+			public WorkspaceState invoke(File dir, VirtualChannel channel)
+					throws IOException, InterruptedException {
+				if (clear && trash != null) {
+					WorkspaceTrash.moveContents(dir, new File(trash));
+				} else if (clear) {
+					new FilePath(dir).deleteContents();
+				}
+				// created once up front so that parallel downloads do not
+				// race on it
+				if (!dir.isDirectory() && !dir.mkdirs()) {
+					throw new IOException("Unable to create " + dir);
+				}
+				HashMap<String, Entry> entries = new HashMap<String, Entry>();
+				for (String fileName : fileNames) {
+					File timestamp = timestampFile(dir, fileName);
+					File digest = digestFile(dir, fileName);
+					entries.put(fileName, new Entry(
+							timestamp.exists() ? timestamp.lastModified() : -1,
+							digest.isFile() ? readDigest(digest) : null));
+				}
+				return new WorkspaceState(entries);
+			}
+		});
+	}
+
+	/**
+	 * Records the versions extracted by a checkout and forgets the versions of
+	 * urls whose extraction failed half way.
+	 * 
+	 * @param workspace
+	 *            the workspace
+	 * @param updates
+	 *            the new entries by file name; a null entry forgets the
+	 *            extracted version
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	static void write(FilePath workspace, final Map<String, Entry> updates)
+			throws IOException, InterruptedException {
+		if (updates.isEmpty()) {
+			return;
+		}
+		workspace.act(new FileCallable<Void>() {
+			private static final long serialVersionUID = 1L;
+
+			public Void invoke(File dir, VirtualChannel channel)
+					throws IOException, InterruptedException {
+				for (Map.Entry<String, Entry> e : updates.entrySet()) {
+					File timestamp = timestampFile(dir, e.getKey());
+					File digest = digestFile(dir, e.getKey());
+					Entry entry = e.getValue();
+					if (entry == null) {
+						delete(timestamp);
+						delete(digest);
+						continue;
+					}
+					// update the last modified timestamp of timestamp file
+					new FileOutputStream(timestamp, true).close();
+					if (!timestamp.setLastModified(entry.timestamp)) {
+						LOGGER.log(FINE, "Unable to touch " + timestamp);
+					}
+					if (entry.sha256 == null) {
+						delete(digest);
+					} else {
+						OutputStream out = new FileOutputStream(digest);
+						try {
+							out.write(entry.sha256.getBytes("US-ASCII"));
+						} finally {
+							out.close();
+						}
+					}
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Gets the entry of a url.
+	 * 
+	 * @param fileName
+	 *            the file name of the url
+	 * @return the entry, never null
+	 */
+	Entry get(String fileName) {
+		Entry e = entries.get(fileName);
+		return e != null ? e : new Entry(-1, null);
+	}
+
+	/**
+	 * Gets the timestamp file of a url.
+	 * 
+	 * @param dir
+	 *            the workspace
+	 * @param fileName
+	 *            the file name of the url
+	 * @return the timestamp file
+	 */
+	private static File timestampFile(File dir, String fileName) {
+		return new File(dir, "." + fileName + "-timestamp");
+	}
+
+	/**
+	 * Gets the digest file of a url.
+	 * 
+	 * @param dir
+	 *            the workspace
+	 * @param fileName
+	 *            the file name of the url
+	 * @return the digest file
+	 */
+	private static File digestFile(File dir, String fileName) {
+		return new File(dir, "." + fileName + "-sha256");
+	}
+
+	/**
+	 * Reads a digest file.
+	 * 
+	 * @param f
+	 *            the file
+	 * @return the digest
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static String readDigest(File f) throws IOException {
+		InputStream in = new FileInputStream(f);
+		try {
+			return IOUtils.toString(in, "US-ASCII").trim();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Deletes a file if it exists.
+	 * 
+	 * @param f
+	 *            the file
+	 */
+	private static void delete(File f) {
+		if (f.exists() && !f.delete()) {
+			LOGGER.log(FINE, "Unable to delete " + f);
+		}
+	}
+
+	/**
+	 * The version of one url extracted into the workspace.
+	 */
+	static final class Entry implements Serializable {
+
+		/** The Constant serialVersionUID. */
+		private static final long serialVersionUID = 1L;
+
+		/** The Last-Modified of the version, -1 if nothing was extracted. */
+		private final long timestamp;
+
+		/** The SHA-256 of the version, null if unknown. */
+		private final String sha256;
+
+		/**
+		 * Instantiates a new entry.
+		 * 
+		 * @param timestamp
+		 *            the timestamp
+		 * @param sha256
+		 *            the SHA-256
+		 */
+		Entry(long timestamp, String sha256) {
+			this.timestamp = timestamp;
+			this.sha256 = sha256;
+		}
+
+		/**
+		 * Checks if the given version is the one extracted.
+		 * 
+		 * @param lastModified
+		 *            the Last-Modified of the version
+		 * @return true, if it is the one extracted
+		 */
+		boolean hasTimestamp(long lastModified) {
+			return timestamp != -1 && timestamp == lastModified;
+		}
+
+		/**
+		 * Gets the SHA-256 of the extracted version.
+		 * 
+		 * @return the hex encoded digest, null if unknown
+		 */
+		String getSha256() {
+			return sha256;
+		}
+	}
+}
@@ -0,0 +1,293 @@
+package hudson.plugins.scm;
+
+import static java.util.logging.Level.ALL;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.ComputerListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Clears workspaces without making the build wait for the deletion. The
+ * contents of the workspace are renamed into a trash directory in the node
+ * root, which is a constant time operation as long as both are on the same
+ * file system, and a low priority reaper thread of the node deletes the trash
+ * afterwards, pausing regularly so that it does not starve the builds of
+ * disk I/O.
+ * 
+ * Trash left behind when a node goes down before the reaper is done is
+ * deleted once the node is back online.
+ */
+@Extension
+public class WorkspaceTrash extends ComputerListener {
+
+	/** The directory of the trash, relative to the node root. */
+	static final String TRASH_DIR = "archive-files-scm-trash";
+
+	/** The number of files deleted by the reaper between two pauses. */
+	static final int BATCH_SIZE = 500;
+
+	/** The length of a pause of the reaper in millis. */
+	static final long PAUSE_MILLIS = 50;
+
+	/** The Constant LOGGER. */
+	private static final Logger LOGGER = Logger.getLogger(WorkspaceTrash.class
+			.getName());
+
+	/** The running reapers by trash directory. */
+	private static final Map<File, Thread> REAPERS = new HashMap<File, Thread>();
+
+	/** The trash entries which are still being filled. */
+	private static final Set<File> MOVING = new HashSet<File>();
+
+	/** The sequence number of the trash entries of this JVM. */
+	private static int sequence;
+
+	/**
+	 * Starts the reaper of a node which comes online, in case trash was left
+	 * behind the last time the node went down.
+	 * 
+	 * @see hudson.slaves.ComputerListener#onOnline(hudson.model.Computer,
+	 *      hudson.model.TaskListener)
+	 */
+	@Override
+	public void onOnline(Computer c, TaskListener listener)
+			throws IOException, InterruptedException {
+		Node node = c.getNode();
+		FilePath root = node != null ? node.getRootPath() : null;
+		if (root == null) {
+			return;
+		}
+		FilePath trash = root.child(TRASH_DIR);
+		if (trash.exists()) {
+			LOGGER.log(ALL, "Deleting pending trash " + trash.getRemote());
+			trash.act(new Reap());
+		}
+	}
+
+	/**
+	 * Moves the contents of a directory into the trash and starts the reaper.
+	 * Files which cannot be renamed, typically because the trash lives on a
+	 * different file system, are deleted right away.
+	 * 
+	 * @param dir
+	 *            the directory to clear
+	 * @param trash
+	 *            the trash directory
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	static void moveContents(File dir, File trash) throws IOException {
+		File[] children = dir.listFiles();
+		if (children == null || children.length == 0) {
+			return;
+		}
+		File entry = newEntry(trash, dir.getName());
+		try {
+			if (!entry.mkdirs()) {
+				throw new IOException("Unable to create " + entry);
+			}
+			for (File child : children) {
+				if (!child.renameTo(new File(entry, child.getName()))) {
+					LOGGER.log(FINE, "Unable to move " + child
+							+ " to the trash, deleting it");
+					Util.deleteRecursive(child);
+				}
+			}
+		} finally {
+			synchronized (WorkspaceTrash.class) {
+				MOVING.remove(entry);
+			}
+		}
+		reap(trash);
+	}
+
+	/**
+	 * Reserves a new trash entry which the reaper leaves alone until it is
+	 * filled.
+	 * 
+	 * @param trash
+	 *            the trash directory
+	 * @param name
+	 *            the name of the directory being cleared
+	 * @return the entry
+	 */
+	private static synchronized File newEntry(File trash, String name) {
+		File entry;
+		do {
+			entry = new File(trash, name + "-" + System.currentTimeMillis()
+					+ "-" + (++sequence));
+		} while (entry.exists());
+		MOVING.add(entry);
+		return entry;
+	}
+
+	/**
+	 * Starts the reaper of a trash directory unless it is already running.
+	 * 
+	 * @param trash
+	 *            the trash directory
+	 */
+	static synchronized void reap(final File trash) {
+		Thread reaper = REAPERS.get(trash);
+		if (reaper != null && reaper.isAlive()) {
+			return;
+		}
+		reaper = new Thread("Archive files trash reaper for " + trash) {
+			@Override
+			public void run() {
+				try {
+					while (!done(trash)) {
+						int[] deleted = new int[2];
+						File[] entries = trash.listFiles();
+						for (File entry : entries != null ? entries
+								: new File[0]) {
+							if (!isMoving(entry)) {
+								delete(entry, deleted);
+							}
+						}
+						if (deleted[1] == 0 && !hasMoving(trash)) {
+							throw new IOException("No progress deleting "
+									+ trash);
+						}
+						Thread.sleep(PAUSE_MILLIS);
+					}
+				} catch (InterruptedException e) {
+					forget(trash);
+				} catch (IOException e) {
+					LOGGER.log(WARNING, "Unable to empty " + trash, e);
+					forget(trash);
+				}
+			}
+		};
+		reaper.setDaemon(true);
+		reaper.setPriority(Thread.MIN_PRIORITY);
+		REAPERS.put(trash, reaper);
+		reaper.start();
+	}
+
+	/**
+	 * Checks if the trash is empty and unregisters the reaper if it is.
+	 * Checking and unregistering happen under the same lock as
+	 * {@link #reap(File)}, so trash added in between is never missed.
+	 * 
+	 * @param trash
+	 *            the trash directory
+	 * @return true, if the reaper is done
+	 */
+	private static synchronized boolean done(File trash) {
+		String[] entries = trash.list();
+		if (entries != null && entries.length > 0) {
+			return false;
+		}
+		REAPERS.remove(trash);
+		return true;
+	}
+
+	/**
+	 * Unregisters the reaper of a trash directory which gave up.
+	 * 
+	 * @param trash
+	 *            the trash directory
+	 */
+	private static synchronized void forget(File trash) {
+		REAPERS.remove(trash);
+	}
+
+	/**
+	 * Checks if a trash directory has entries which are still being filled.
+	 * 
+	 * @param trash
+	 *            the trash directory
+	 * @return true, if it has
+	 */
+	private static synchronized boolean hasMoving(File trash) {
+		for (File entry : MOVING) {
+			if (trash.equals(entry.getParentFile())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks if a trash entry is still being filled.
+	 * 
+	 * @param entry
+	 *            the entry
+	 * @return true, if it is being filled
+	 */
+	private static synchronized boolean isMoving(File entry) {
+		return MOVING.contains(entry);
+	}
+
+	/**
+	 * Deletes a file or directory tree, pausing after every
+	 * {@link #BATCH_SIZE} files. Symbolic links are deleted, not followed.
+	 * 
+	 * @param f
+	 *            the file
+	 * @param count
+	 *            the number of files deleted since the last pause, followed
+	 *            by the number of files deleted in this round
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	private static void delete(File f, int[] count) throws IOException,
+			InterruptedException {
+		if (f.isDirectory() && !Util.isSymlink(f)) {
+			File[] children = f.listFiles();
+			if (children != null) {
+				for (File child : children) {
+					delete(child, count);
+				}
+			}
+		}
+		if (!f.delete()) {
+			// retried in the next round
+			LOGGER.log(FINE, "Unable to delete " + f);
+			return;
+		}
+		count[1]++;
+		if (++count[0] >= BATCH_SIZE) {
+			count[0] = 0;
+			Thread.sleep(PAUSE_MILLIS);
+		}
+	}
+
+	/**
+	 * Starts the reaper on the node of the trash directory.
+	 */
+	private static final class Reap implements FileCallable<Void> {
+
+		/** The Constant serialVersionUID. */
+		private static final long serialVersionUID = 1L;
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see hudson.FilePath.FileCallable#invoke(java.io.File,
+		 * hudson.remoting.VirtualChannel)
+		 */
+		public Void invoke(File trash, VirtualChannel channel) {
+			reap(trash);
+			return null;
+		}
+	}
+}
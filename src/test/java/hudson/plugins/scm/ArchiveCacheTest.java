@@ -0,0 +1,101 @@
+package hudson.plugins.scm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests how concurrent requests for the same archive share one download.
+ */
+public class ArchiveCacheTest {
+
+	/** The key of the tests. */
+	private static final String KEY = ArchiveCache.key(
+			"http://example.org/a.zip", 1000L, "\"1\"");
+
+	/** The directory of the cache. */
+	private File dir;
+
+	/** The cache. */
+	private ArchiveCache cache;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("cache", "");
+		dir.delete();
+		dir.mkdir();
+		cache = ArchiveCache.get(dir);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Test
+	public void waiterLoadsWhenTheLoadItWaitedForIsInterrupted()
+			throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch abort = new CountDownLatch(1);
+		final AtomicReference<Throwable> aborted = new AtomicReference<Throwable>();
+		Thread first = new Thread() {
+			public void run() {
+				try {
+					cache.get(KEY, new ArchiveCache.Loader() {
+						public void load(File target)
+								throws InterruptedException {
+							started.countDown();
+							abort.await();
+							throw new InterruptedException();
+						}
+					}, Long.MAX_VALUE);
+				} catch (Throwable e) {
+					aborted.set(e);
+				}
+			}
+		};
+		first.start();
+		started.await();
+		final AtomicInteger loads = new AtomicInteger();
+		final AtomicReference<Object> result = new AtomicReference<Object>();
+		Thread second = new Thread() {
+			public void run() {
+				try {
+					result.set(cache.get(KEY, new ArchiveCache.Loader() {
+						public void load(File target) throws IOException {
+							loads.incrementAndGet();
+							FileUtils.writeStringToFile(target, "archive",
+									"UTF-8");
+						}
+					}, Long.MAX_VALUE));
+				} catch (Throwable e) {
+					result.set(e);
+				}
+			}
+		};
+		second.start();
+		// let the second thread find the running load and wait for it
+		Thread.sleep(200);
+		abort.countDown();
+		first.join(10000);
+		second.join(10000);
+		assertTrue(aborted.get() instanceof InterruptedException);
+		if (!(result.get() instanceof File)) {
+			fail("the waiting thread failed with " + result.get());
+		}
+		assertEquals(1, loads.get());
+		assertEquals("archive", FileUtils.readFileToString((File) result
+				.get(), "UTF-8"));
+	}
+}
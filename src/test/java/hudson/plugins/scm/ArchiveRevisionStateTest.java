@@ -0,0 +1,106 @@
+package hudson.plugins.scm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import hudson.plugins.scm.ArchiveFilesSCM.URLTuple;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests the revisions polling compares against, and how a probe is judged
+ * against them.
+ */
+public class ArchiveRevisionStateTest {
+
+	/** The first url. */
+	private static final String A = "http://example.org/a.zip";
+
+	/** The second url. */
+	private static final String B = "http://example.org/b.tar.gz";
+
+	@Test
+	public void stateHoldsWhatTheBuildRecorded() {
+		LastModifiedDateAction action = new LastModifiedDateAction(null);
+		action.setLastModified(A, 1000L);
+		action.setEtag(A, "\"a\"");
+		action.setSha256(A, "abc");
+		ArchiveRevisionState state = ArchiveRevisionState.of(Arrays.asList(
+				new URLTuple(A, null, null), new URLTuple(B, null, null)),
+				action);
+		assertEquals(1000L, state.get(A).getLastModified());
+		assertEquals("\"a\"", state.get(A).getEtag());
+		assertEquals("abc", state.get(A).getSha256());
+		// recorded by the build, but without a revision
+		assertEquals(0, state.get(B).getLastModified());
+		assertNull(state.get(B).getEtag());
+		// not part of the build, which polling treats as a change
+		assertNull(state.get("http://example.org/c.zip"));
+	}
+
+	@Test
+	public void withReplacesOneRevisionOfACopy() {
+		LastModifiedDateAction action = new LastModifiedDateAction(null);
+		action.setLastModified(A, 1000L);
+		action.setLastModified(B, 2000L);
+		ArchiveRevisionState state = ArchiveRevisionState.of(Arrays.asList(
+				new URLTuple(A, null, null), new URLTuple(B, null, null)),
+				action);
+		ArchiveRevisionState remote = state.with(A,
+				new ArchiveRevisionState.Revision(3000L, null, null));
+		assertEquals(3000L, remote.get(A).getLastModified());
+		assertEquals(2000L, remote.get(B).getLastModified());
+		assertEquals(1000L, state.get(A).getLastModified());
+	}
+
+	@Test
+	public void notModifiedIsNoChange() {
+		ArchiveRevisionState.Revision previous = new ArchiveRevisionState.Revision(
+				1000L, "\"a\"", null);
+		assertFalse(changed(new UrlProbe.Result(true, 0, null, -1, false),
+				previous));
+	}
+
+	@Test
+	public void etagsAreComparedWhenBothSidesHaveOne() {
+		ArchiveRevisionState.Revision previous = new ArchiveRevisionState.Revision(
+				1000L, "\"a\"", null);
+		assertFalse(changed(new UrlProbe.Result(false, 2000L, "\"a\"", -1,
+				false), previous));
+		assertTrue(changed(new UrlProbe.Result(false, 1000L, "\"b\"", -1,
+				false), previous));
+	}
+
+	@Test
+	public void lastModifiedIsComparedWithoutEtags() {
+		ArchiveRevisionState.Revision recorded = new ArchiveRevisionState.Revision(
+				1000L, null, null);
+		assertFalse(changed(new UrlProbe.Result(false, 1000L, "\"a\"", -1,
+				false), recorded));
+		assertTrue(changed(new UrlProbe.Result(false, 2000L, "\"a\"", -1,
+				false), recorded));
+		// a server that stopped sending ETags
+		ArchiveRevisionState.Revision old = new ArchiveRevisionState.Revision(
+				1000L, "\"a\"", null);
+		assertTrue(changed(new UrlProbe.Result(false, 500L, null, -1, false),
+				old));
+	}
+
+	/**
+	 * Checks if a probe finds a change, the way polling does.
+	 * 
+	 * @param probe
+	 *            the probe
+	 * @param previous
+	 *            the revision of the last build
+	 * @return true, if changed
+	 */
+	private static boolean changed(UrlProbe.Result probe,
+			ArchiveRevisionState.Revision previous) {
+		return probe.isChanged(previous.getLastModified(), previous.getEtag());
+	}
+}
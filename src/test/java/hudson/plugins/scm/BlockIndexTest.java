@@ -0,0 +1,150 @@
+package hudson.plugins.scm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Random;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the block index of an archive.
+ */
+public class BlockIndexTest {
+
+	/** The block size of the tests. */
+	private static final int BLOCK_SIZE = 1024;
+
+	/** The archive. */
+	private File archive;
+
+	@Before
+	public void createArchive() throws IOException {
+		archive = File.createTempFile("archive", ".zip");
+	}
+
+	@After
+	public void deleteArchive() {
+		archive.delete();
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		byte[] content = write(archive, 10 * BLOCK_SIZE + 300);
+		BlockIndex index = BlockIndex.create(archive, BLOCK_SIZE);
+		String text = text(index);
+		BlockIndex read = BlockIndex.read(new ByteArrayInputStream(text
+				.getBytes("US-ASCII")));
+		assertEquals(content.length, read.getSize());
+		assertEquals(BLOCK_SIZE, read.getBlockSize());
+		assertEquals(11, read.getBlockCount());
+		assertEquals(new String(Hex.encodeHex(BlockIndex.digest("SHA-256")
+				.digest(content))), read.getSha256());
+		for (int i = 0; i < index.getBlockCount(); i++) {
+			assertEquals(index.getWeak(i), read.getWeak(i));
+			assertArrayEquals(index.getStrong(i), read.getStrong(i));
+		}
+		assertEquals(text, text(read));
+	}
+
+	@Test
+	public void lastBlockIsShort() throws IOException {
+		byte[] content = write(archive, 3 * BLOCK_SIZE + 7);
+		BlockIndex index = BlockIndex.create(archive, BLOCK_SIZE);
+		assertEquals(4, index.getBlockCount());
+		assertEquals(BLOCK_SIZE, index.getLength(2));
+		assertEquals(7, index.getLength(3));
+		assertEquals(BlockIndex.weak(content, 3 * BLOCK_SIZE, 7), index
+				.getWeak(3));
+	}
+
+	@Test
+	public void exactMultipleOfTheBlockSize() throws IOException {
+		write(archive, 4 * BLOCK_SIZE);
+		BlockIndex index = BlockIndex.create(archive, BLOCK_SIZE);
+		assertEquals(4, index.getBlockCount());
+		assertEquals(BLOCK_SIZE, index.getLength(3));
+	}
+
+	@Test
+	public void emptyArchive() throws IOException {
+		BlockIndex index = BlockIndex.create(archive, BLOCK_SIZE);
+		BlockIndex read = BlockIndex.read(new ByteArrayInputStream(text(index)
+				.getBytes("US-ASCII")));
+		assertEquals(0, read.getSize());
+		assertEquals(0, read.getBlockCount());
+	}
+
+	@Test
+	public void rollingChecksumMatchesEveryWindow() {
+		byte[] b = new byte[3 * BLOCK_SIZE];
+		new Random(7).nextBytes(b);
+		int weak = BlockIndex.weak(b, 0, BLOCK_SIZE);
+		for (int i = 1; i + BLOCK_SIZE <= b.length; i++) {
+			weak = BlockIndex.roll(weak, b[i - 1], b[i + BLOCK_SIZE - 1],
+					BLOCK_SIZE);
+			assertEquals("window at " + i, BlockIndex.weak(b, i, BLOCK_SIZE),
+					weak);
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void truncatedIndexIsRejected() throws IOException {
+		write(archive, 5 * BLOCK_SIZE);
+		String text = text(BlockIndex.create(archive, BLOCK_SIZE));
+		text = text.substring(0, text.lastIndexOf('\n', text.length() - 2) + 1);
+		BlockIndex.read(new ByteArrayInputStream(text.getBytes("US-ASCII")));
+	}
+
+	@Test(expected = IOException.class)
+	public void otherFileIsRejected() throws IOException {
+		BlockIndex.read(new ByteArrayInputStream("<html>\n"
+				.getBytes("US-ASCII")));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidBlockSizeIsRejected() throws IOException {
+		BlockIndex.create(archive, 0);
+	}
+
+	/**
+	 * Writes random bytes to a file.
+	 * 
+	 * @param file
+	 *            the file
+	 * @param length
+	 *            the number of bytes
+	 * @return the bytes
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static byte[] write(File file, int length) throws IOException {
+		byte[] content = new byte[length];
+		new Random(length).nextBytes(content);
+		FileUtils.writeByteArrayToFile(file, content);
+		return content;
+	}
+
+	/**
+	 * Writes an index to a string.
+	 * 
+	 * @param index
+	 *            the index
+	 * @return the text of the index
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static String text(BlockIndex index) throws IOException {
+		StringWriter w = new StringWriter();
+		index.write(w);
+		return w.toString();
+	}
+}
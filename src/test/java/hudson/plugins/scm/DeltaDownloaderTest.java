@@ -0,0 +1,214 @@
+package hudson.plugins.scm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.URL;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the rebuild of a new archive version from the previous version and
+ * the blocks that changed, against a local http server.
+ */
+public class DeltaDownloaderTest {
+
+	/** The block size of the tests. */
+	private static final int BLOCK_SIZE = 1024;
+
+	/** The directory of the served archive. */
+	private File dir;
+
+	/** The served archive. */
+	private File archive;
+
+	/** The server. */
+	private LocalHttpServer server;
+
+	/** The previous version. */
+	private File previous;
+
+	/** The new version, as it is published. */
+	private File published;
+
+	/** The rebuilt new version. */
+	private File target;
+
+	/** The content of the previous version, 20 blocks and a short one. */
+	private byte[] old;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("delta", "");
+		dir.delete();
+		dir.mkdir();
+		archive = new File(dir, "archive.zip");
+		server = LocalHttpServer.start(archive);
+		server.setEtag("\"1\"");
+		previous = File.createTempFile("previous", ".zip");
+		published = File.createTempFile("published", ".zip");
+		target = File.createTempFile("target", ".zip");
+		old = new byte[20 * BLOCK_SIZE + 300];
+		new Random(1).nextBytes(old);
+		FileUtils.writeByteArrayToFile(previous, old);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		server.stop();
+		FileUtils.deleteDirectory(dir);
+		previous.delete();
+		published.delete();
+		target.delete();
+	}
+
+	@Test
+	public void identicalVersionIsNotDownloaded() throws Exception {
+		DeltaDownloader delta = downloader(old);
+		assertEquals(0, delta.download(index(old), previous, target));
+		assertArrayEquals(old, FileUtils.readFileToByteArray(target));
+		assertEquals(0, delta.getRequests());
+		assertEquals(old.length, delta.getReused());
+	}
+
+	@Test
+	public void movedBlocksAreFoundAndChangedBlocksDownloaded()
+			throws Exception {
+		// 17 bytes inserted into block 4 shift the blocks behind it, and one
+		// byte of block 11 changed
+		byte[] inserted = new byte[17];
+		new Random(2).nextBytes(inserted);
+		byte[] content = new byte[old.length + inserted.length];
+		System.arraycopy(old, 0, content, 0, 5000);
+		System.arraycopy(inserted, 0, content, 5000, inserted.length);
+		System.arraycopy(old, 5000, content, 5000 + inserted.length,
+				old.length - 5000);
+		content[11 * BLOCK_SIZE + 100] ^= 1;
+		DeltaDownloader delta = downloader(content);
+		assertEquals(2 * BLOCK_SIZE, delta.download(index(content), previous,
+				target));
+		assertArrayEquals(content, FileUtils.readFileToByteArray(target));
+		assertEquals(2, delta.getRequests());
+		assertEquals(content.length - 2 * BLOCK_SIZE, delta.getReused());
+	}
+
+	@Test
+	public void lastShortBlockIsMatchedWithTheEndOfThePreviousVersion()
+			throws Exception {
+		byte[] content = old.clone();
+		content[0] ^= 1;
+		DeltaDownloader delta = downloader(content);
+		assertEquals(BLOCK_SIZE, delta.download(index(content), previous,
+				target));
+		assertArrayEquals(content, FileUtils.readFileToByteArray(target));
+		assertEquals(1, delta.getRequests());
+		assertEquals("/archive.zip bytes=0-" + (BLOCK_SIZE - 1) + " "
+				+ server.getEtag(), server.getRequests().get(0));
+	}
+
+	@Test
+	public void changedLastShortBlockIsDownloaded() throws Exception {
+		byte[] content = old.clone();
+		content[content.length - 1] ^= 1;
+		DeltaDownloader delta = downloader(content);
+		assertEquals(300, delta.download(index(content), previous, target));
+		assertArrayEquals(content, FileUtils.readFileToByteArray(target));
+		assertEquals(1, delta.getRequests());
+		assertEquals("/archive.zip bytes=" + 20 * BLOCK_SIZE + "-"
+				+ (content.length - 1) + " " + server.getEtag(), server
+				.getRequests().get(0));
+	}
+
+	@Test
+	public void longerVersionIsRebuilt() throws Exception {
+		byte[] content = new byte[old.length + 3 * BLOCK_SIZE];
+		new Random(3).nextBytes(content);
+		System.arraycopy(old, 0, content, 0, old.length);
+		DeltaDownloader delta = downloader(content);
+		delta.download(index(content), previous, target);
+		assertArrayEquals(content, FileUtils.readFileToByteArray(target));
+		assertEquals(20 * BLOCK_SIZE, delta.getReused());
+	}
+
+	@Test
+	public void mismatchOfTheRebuiltVersionFails() throws Exception {
+		byte[] content = old.clone();
+		content[0] ^= 1;
+		BlockIndex index = index(content);
+		// the server has yet another version
+		content[1] ^= 1;
+		DeltaDownloader delta = downloader(content);
+		try {
+			delta.download(index, previous, target);
+			fail("the rebuilt version does not match the index");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().startsWith("SHA-256 mismatch"));
+		}
+	}
+
+	@Test
+	public void indexIsFetchedNextToTheArchive() throws Exception {
+		byte[] content = old.clone();
+		BlockIndex index = index(content);
+		StringWriter w = new StringWriter();
+		index.write(w);
+		FileUtils.writeStringToFile(new File(dir, archive.getName()
+				+ BlockIndex.SUFFIX), w.toString(), "US-ASCII");
+		BlockIndex fetched = downloader(content).fetchIndex();
+		assertEquals(index.getSha256(), fetched.getSha256());
+		assertEquals(index.getBlockCount(), fetched.getBlockCount());
+	}
+
+	@Test(expected = IOException.class)
+	public void indexOfAnotherSizeIsRejected() throws Exception {
+		byte[] content = old.clone();
+		StringWriter w = new StringWriter();
+		index(content).write(w);
+		FileUtils.writeStringToFile(new File(dir, archive.getName()
+				+ BlockIndex.SUFFIX), w.toString(), "US-ASCII");
+		FileUtils.writeByteArrayToFile(archive, content);
+		new DeltaDownloader(new URL(server.getUrl()), server.settings(),
+				new UrlProbe.Result(false, 0, server.getEtag(),
+						content.length + 1, true), Throttle.NONE)
+				.fetchIndex();
+	}
+
+	/**
+	 * Publishes a new version and creates a downloader for it.
+	 * 
+	 * @param content
+	 *            the new version
+	 * @return the downloader
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private DeltaDownloader downloader(byte[] content) throws IOException {
+		FileUtils.writeByteArrayToFile(archive, content);
+		return new DeltaDownloader(new URL(server.getUrl()), server
+				.settings(), new UrlProbe.Result(false, 0, server.getEtag(),
+				content.length, true), Throttle.NONE);
+	}
+
+	/**
+	 * Computes the block index of a version.
+	 * 
+	 * @param content
+	 *            the version
+	 * @return the index
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private BlockIndex index(byte[] content) throws IOException {
+		FileUtils.writeByteArrayToFile(published, content);
+		return BlockIndex.create(published, BLOCK_SIZE);
+	}
+}
@@ -0,0 +1,108 @@
+package hudson.plugins.scm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Tests when a download from a server may start.
+ */
+public class DownloadSchedulerTest {
+
+	/** The scheduler. */
+	private final DownloadScheduler scheduler = DownloadScheduler.get();
+
+	@Test
+	public void slotIsOnlyTakenWhenEntered() throws Exception {
+		String server = "http://slot.example.org";
+		DownloadScheduler.Slot slot = scheduler.slot(server, "a", 1, 0);
+		assertNull(queue(server));
+		slot.enter();
+		slot.enter();
+		assertEquals(Arrays.asList("a"), queue(server).getRunning());
+		slot.release();
+		assertNull(queue(server));
+	}
+
+	@Test
+	public void releaseEndsTheWaitOfTheNextSlot() throws Exception {
+		String server = "http://queue.example.org";
+		DownloadScheduler.Slot first = scheduler.slot(server, "a", 1, 0);
+		first.enter();
+		final DownloadScheduler.Slot second = scheduler.slot(server, "b", 1,
+				0);
+		final AtomicReference<Object> entered = new AtomicReference<Object>();
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					second.enter();
+					entered.set("entered");
+				} catch (InterruptedException e) {
+					entered.set(e);
+				}
+			}
+		};
+		t.start();
+		while (queue(server).getWaiting().isEmpty()) {
+			Thread.sleep(10);
+		}
+		assertEquals(Arrays.asList("b"), queue(server).getWaiting());
+		first.release();
+		t.join(10000);
+		assertEquals("entered", entered.get());
+		second.release();
+	}
+
+	@Test
+	public void releasedSlotStopsWaiting() throws Exception {
+		String server = "http://cancel.example.org";
+		DownloadScheduler.Slot first = scheduler.slot(server, "a", 1, 0);
+		first.enter();
+		final DownloadScheduler.Slot second = scheduler.slot(server, "b", 1,
+				0);
+		final AtomicReference<Object> entered = new AtomicReference<Object>();
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					second.enter();
+					entered.set("entered");
+				} catch (InterruptedException e) {
+					entered.set(e);
+				}
+			}
+		};
+		t.start();
+		while (queue(server).getWaiting().isEmpty()) {
+			Thread.sleep(10);
+		}
+		// the build of the second download was aborted
+		second.release();
+		t.join(10000);
+		assertTrue(entered.get() instanceof InterruptedException);
+		assertEquals(Collections.<String> emptyList(), queue(server)
+				.getWaiting());
+		first.release();
+	}
+
+	/**
+	 * Gets the queue of a server.
+	 * 
+	 * @param server
+	 *            the server
+	 * @return the snapshot of the queue, null if nothing uses the server
+	 */
+	private DownloadScheduler.Queue queue(String server) {
+		for (DownloadScheduler.Queue q : scheduler.getQueues()) {
+			if (q.getServer().equals(server)) {
+				return q;
+			}
+		}
+		return null;
+	}
+}
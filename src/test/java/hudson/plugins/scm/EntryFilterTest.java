@@ -0,0 +1,89 @@
+package hudson.plugins.scm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.junit.Test;
+
+/**
+ * Tests the selection of the extracted archive entries.
+ */
+public class EntryFilterTest {
+
+	@Test
+	public void noPatternsAcceptEverything() {
+		EntryFilter filter = EntryFilter.create(" ", null);
+		assertSame(EntryFilter.ALL, filter);
+		assertTrue(filter.isEmpty());
+		assertTrue(filter.accept("any/file.txt"));
+		assertTrue(filter.accept("any/"));
+	}
+
+	@Test
+	public void directoryPatternIncludesEverythingBelow() {
+		EntryFilter filter = EntryFilter.create("docs/", "");
+		assertTrue(filter.accept("docs/"));
+		assertTrue(filter.accept("docs/index.html"));
+		assertTrue(filter.accept("docs/api/overview.html"));
+		assertFalse(filter.accept("src/Main.java"));
+		assertFalse(filter.accept("documentation/index.html"));
+	}
+
+	@Test
+	public void excludesWinOverIncludes() {
+		EntryFilter filter = EntryFilter.create("**/*.java, lib/",
+				"**/test/**");
+		assertTrue(filter.accept("src/Main.java"));
+		assertTrue(filter.accept("lib/ant.jar"));
+		assertFalse(filter.accept("src/test/MainTest.java"));
+		assertFalse(filter.accept("README"));
+	}
+
+	@Test
+	public void excludesAloneKeepTheOtherEntries() {
+		EntryFilter filter = EntryFilter.create(null, "**/*.so");
+		assertTrue(filter.accept("bin/tool"));
+		assertFalse(filter.accept("lib/native.so"));
+		assertFalse(filter.accept("native.so"));
+	}
+
+	@Test
+	public void backslashesAreSeparators() {
+		EntryFilter filter = EntryFilter.create("docs\\", "docs\\private\\**");
+		assertEquals(EntryFilter.create("docs/", "docs/private/**")
+				.identity(), filter.identity());
+		assertTrue(filter.accept("docs/index.html"));
+		assertTrue(filter.accept("docs\\index.html"));
+		assertFalse(filter.accept("docs/private/keys"));
+	}
+
+	@Test
+	public void commasAndWhitespaceSeparatePatterns() {
+		assertEquals(EntryFilter.create("a/**,b/**,c/**", null).identity(),
+				EntryFilter.create(" a/**, b/**\n c/** ", null).identity());
+	}
+
+	@Test
+	public void deserializedFilterMatches() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		EntryFilter filter = EntryFilter.create("docs/", "**/*.tmp");
+		// the local patterns of the first use are not serialized
+		filter.accept("docs/index.html");
+		out.writeObject(filter);
+		out.close();
+		EntryFilter read = (EntryFilter) new ObjectInputStream(
+				new ByteArrayInputStream(bytes.toByteArray())).readObject();
+		assertEquals(filter.identity(), read.identity());
+		assertTrue(read.accept("docs/index.html"));
+		assertFalse(read.accept("docs/index.tmp"));
+		assertFalse(read.accept("src/Main.java"));
+	}
+}
@@ -0,0 +1,325 @@
+package hudson.plugins.scm;
+
+import hudson.plugins.scm.ArchiveFilesSCM.URLTuple;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A stand-in for an artifact server, used by the tests and the benchmarks:
+ * serves a file on the loopback interface with Last-Modified, an optional
+ * ETag, conditional requests and byte ranges guarded by If-Range. The files
+ * next to it, such as a block index, are served by name as well.
+ * 
+ * For the tests, the server can ignore ranges like a server without range
+ * support, answer other ranges than requested, break off a response, and
+ * records the requests it received as
+ * <tt>&lt;path&gt; &lt;Range&gt; &lt;If-Range&gt;</tt>.
+ */
+final class LocalHttpServer implements HttpHandler {
+
+	/** A single byte range. */
+	private static final Pattern RANGE = Pattern
+			.compile("bytes=(\\d+)-(\\d*)");
+
+	/** The file. */
+	private final File file;
+
+	/** The last modified time stamp, truncated to seconds like http dates. */
+	private final long lastModified;
+
+	/** The requests received. */
+	private final List<String> requests = Collections
+			.synchronizedList(new ArrayList<String>());
+
+	/** The bytes after which the next response breaks off, -1 for none. */
+	private final AtomicLong breakAfter = new AtomicLong(-1);
+
+	/** The ETag of the file, null to send none. */
+	private volatile String etag;
+
+	/** Whether range requests are answered with the range. */
+	private volatile boolean honourRanges = true;
+
+	/** The bytes ranges are answered from before the requested start. */
+	private volatile long rangeShift;
+
+	/** The server. */
+	private HttpServer server;
+
+	/** The threads of the server. */
+	private ExecutorService executor;
+
+	/**
+	 * Instantiates a new local http server.
+	 * 
+	 * @param file
+	 *            the file
+	 */
+	private LocalHttpServer(File file) {
+		this.file = file;
+		this.lastModified = file.lastModified() / 1000 * 1000;
+	}
+
+	/**
+	 * Starts a server for a file on a free port.
+	 * 
+	 * @param file
+	 *            the file
+	 * @return the server
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	static LocalHttpServer start(File file) throws IOException {
+		LocalHttpServer s = new LocalHttpServer(file);
+		s.server = HttpServer.create(new InetSocketAddress(InetAddress
+				.getByName("127.0.0.1"), 0), 50);
+		s.server.createContext("/", s);
+		s.executor = Executors.newCachedThreadPool();
+		s.server.setExecutor(s.executor);
+		s.server.start();
+		return s;
+	}
+
+	/**
+	 * Stops the server.
+	 */
+	void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Gets the url of the file.
+	 * 
+	 * @return the url
+	 */
+	String getUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/"
+				+ file.getName();
+	}
+
+	/**
+	 * Creates the connection settings of the url, without proxy and
+	 * authentication.
+	 * 
+	 * @return the settings
+	 */
+	ConnectionSettings settings() {
+		return ConnectionSettings.create(new URLTuple(getUrl(), null, null),
+				null, 10000, 10000);
+	}
+
+	/**
+	 * Gets the last modified time stamp the file is served with.
+	 * 
+	 * @return the last modified
+	 */
+	long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * Sets the ETag the file is served with, which If-Range is then compared
+	 * with instead of the Last-Modified date.
+	 * 
+	 * @param etag
+	 *            the quoted etag, null to send none
+	 */
+	void setEtag(String etag) {
+		this.etag = etag;
+	}
+
+	/**
+	 * Gets the ETag the file is served with.
+	 * 
+	 * @return the quoted etag, null if none is sent
+	 */
+	String getEtag() {
+		return etag;
+	}
+
+	/**
+	 * Sets whether range requests are answered with the range, or with the
+	 * whole file like a server without range support.
+	 * 
+	 * @param honourRanges
+	 *            the honour ranges flag
+	 */
+	void setHonourRanges(boolean honourRanges) {
+		this.honourRanges = honourRanges;
+	}
+
+	/**
+	 * Makes the server answer ranges from before the requested start, like a
+	 * broken proxy, with a Content-Range that tells so.
+	 * 
+	 * @param bytes
+	 *            the bytes before the requested start
+	 */
+	void shiftRanges(long bytes) {
+		this.rangeShift = bytes;
+	}
+
+	/**
+	 * Makes the next response break off after some bytes, by closing the
+	 * connection before the announced length was sent.
+	 * 
+	 * @param bytes
+	 *            the bytes sent
+	 */
+	void breakAfter(long bytes) {
+		breakAfter.set(bytes);
+	}
+
+	/**
+	 * Gets the requests received.
+	 * 
+	 * @return the requests, in the order they arrived
+	 */
+	List<String> getRequests() {
+		synchronized (requests) {
+			return new ArrayList<String>(requests);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.sun.net.httpserver.HttpHandler#handle(com.sun.net.httpserver.HttpExchange
+	 * )
+	 */
+	public void handle(HttpExchange exchange) throws IOException {
+		try {
+			String path = exchange.getRequestURI().getPath();
+			String range = exchange.getRequestHeaders().getFirst("Range");
+			String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+			requests.add(path + " " + range + " " + ifRange);
+			String name = path.substring(1);
+			File f = new File(file.getParentFile(), name);
+			if (name.indexOf('/') >= 0 || !f.isFile()) {
+				exchange.sendResponseHeaders(404, -1);
+				return;
+			}
+			String date = httpDate(f.equals(file) ? lastModified : f
+					.lastModified());
+			String tag = f.equals(file) ? etag : null;
+			exchange.getResponseHeaders().set("Last-Modified", date);
+			exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+			if (tag != null) {
+				exchange.getResponseHeaders().set("ETag", tag);
+			}
+			if (date.equals(exchange.getRequestHeaders().getFirst(
+					"If-Modified-Since"))) {
+				exchange.sendResponseHeaders(304, -1);
+				return;
+			}
+			long length = f.length();
+			long first = 0;
+			long last = length - 1;
+			int status = 200;
+			Matcher m = range == null ? null : RANGE.matcher(range);
+			if (m != null && m.matches() && honourRanges
+					&& (ifRange == null || ifRange.equals(tag != null ? tag
+							: date))) {
+				first = Math.max(Long.parseLong(m.group(1)) - rangeShift, 0);
+				if (m.group(2).length() > 0) {
+					last = Math.min(Long.parseLong(m.group(2)), length - 1);
+				}
+				if (first >= length) {
+					exchange.getResponseHeaders().set("Content-Range",
+							"bytes */" + length);
+					exchange.sendResponseHeaders(416, -1);
+					return;
+				}
+				status = 206;
+				exchange.getResponseHeaders().set("Content-Range",
+						"bytes " + first + "-" + last + "/" + length);
+			}
+			long count = last - first + 1;
+			if ("HEAD".equals(exchange.getRequestMethod())) {
+				exchange.getResponseHeaders().set("Content-Length",
+						String.valueOf(count));
+				exchange.sendResponseHeaders(status, -1);
+				return;
+			}
+			exchange.sendResponseHeaders(status, count);
+			long cut = breakAfter.getAndSet(-1);
+			// closing the exchange short of the length drops the connection
+			send(f, exchange.getResponseBody(), first, cut >= 0 ? Math.min(
+					cut, count) : count);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Sends a part of a file.
+	 * 
+	 * @param f
+	 *            the file
+	 * @param out
+	 *            the response body
+	 * @param first
+	 *            the offset of the first byte
+	 * @param count
+	 *            the number of bytes
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void send(File f, OutputStream out, long first, long count)
+			throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			raf.seek(first);
+			byte[] buffer = new byte[64 * 1024];
+			while (count > 0) {
+				int n = raf.read(buffer, 0, (int) Math.min(buffer.length,
+						count));
+				if (n < 0) {
+					break;
+				}
+				out.write(buffer, 0, n);
+				count -= n;
+			}
+			out.flush();
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Formats an http date.
+	 * 
+	 * @param time
+	 *            the time
+	 * @return the date
+	 */
+	private static String httpDate(long time) {
+		SimpleDateFormat format = new SimpleDateFormat(
+				"EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format.format(new Date(time));
+	}
+}
@@ -0,0 +1,140 @@
+package hudson.plugins.scm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests when the poll schedule probes a url again.
+ */
+public class PollScheduleTest {
+
+	/** A minute in millis. */
+	private static final long MINUTE = 60 * 1000L;
+
+	/** An hour in millis. */
+	private static final long HOUR = 60 * MINUTE;
+
+	/** The longest time between two probes of the tests. */
+	private static final long MAX = 24 * HOUR;
+
+	/** The number of urls used so far, the schedule is shared. */
+	private static int urls;
+
+	/** The schedule. */
+	private final PollSchedule schedule = PollSchedule.get();
+
+	/** A url the schedule has not seen yet. */
+	private String url;
+
+	@Before
+	public void newUrl() {
+		url = "http://example.org/" + ++urls + ".zip";
+	}
+
+	@Test
+	public void unknownUrlIsDue() {
+		assertTrue(schedule.isDue(url, 0));
+		assertEquals(0, schedule.getNext(url));
+		assertNull(schedule.getRevision(url));
+	}
+
+	@Test
+	public void urlWaitsAQuarterOfTheAgeOfItsRevision() {
+		long now = 100 * HOUR;
+		schedule.probed(url, revision(now - 8 * HOUR, "\"1\""), MAX, now);
+		assertEquals(now + 2 * HOUR, schedule.getNext(url));
+		assertFalse(schedule.isDue(url, now + 2 * HOUR - 1));
+		assertTrue(schedule.isDue(url, now + 2 * HOUR));
+	}
+
+	@Test
+	public void waitIsLimitedByTheMaximum() {
+		long now = 1000 * HOUR;
+		schedule.probed(url, revision(HOUR, "\"1\""), 30 * MINUTE, now);
+		assertEquals(now + 30 * MINUTE, schedule.getNext(url));
+	}
+
+	@Test
+	public void frequentChangesShortenTheWait() {
+		long now = 100 * HOUR;
+		schedule.probed(url, revision(now - 40 * HOUR, "\"1\""), MAX, now);
+		// changed every hour from now on
+		for (int i = 1; i <= 20; i++) {
+			now += HOUR;
+			schedule.probed(url, revision(now, "\"" + (i + 1) + "\""), MAX,
+					now);
+		}
+		assertTrue(schedule.getNext(url) - now <= HOUR);
+	}
+
+	@Test
+	public void lastRevisionIsKeptWithoutNotModified() {
+		schedule.probed(url, revision(1000L, "\"1\""), MAX, 2000L);
+		// a 304 confirms the revision, it is not a revision of its own
+		schedule.probed(url, new UrlProbe.Result(true, 0, null, -1, false),
+				MAX, 3000L);
+		UrlProbe.Result revision = schedule.getRevision(url);
+		assertEquals("\"1\"", revision.getEtag());
+		assertEquals(1000L, revision.getLastModified());
+		assertTrue(revision.isChanged(500L, "\"0\""));
+		assertFalse(revision.isChanged(1000L, "\"1\""));
+	}
+
+	@Test
+	public void failuresBackOff() {
+		long now = 100 * HOUR;
+		schedule.failed(url, 0, MAX, now);
+		assertEquals(now + MINUTE, schedule.getNext(url));
+		schedule.failed(url, 0, MAX, now);
+		assertEquals(now + 2 * MINUTE, schedule.getNext(url));
+		schedule.failed(url, 0, MAX, now);
+		assertEquals(now + 4 * MINUTE, schedule.getNext(url));
+		for (int i = 0; i < 30; i++) {
+			schedule.failed(url, 0, MAX, now);
+		}
+		assertEquals(now + MAX, schedule.getNext(url));
+		// a successful probe resets the delay
+		schedule.probed(url, revision(now, "\"1\""), MAX, now);
+		schedule.failed(url, 0, MAX, now);
+		assertEquals(now + MINUTE, schedule.getNext(url));
+	}
+
+	@Test
+	public void retryAfterIsHonoured() {
+		long now = 100 * HOUR;
+		schedule.failed(url, 3 * HOUR, MAX, now);
+		assertEquals(now + 3 * HOUR, schedule.getNext(url));
+		// but not forever
+		schedule.failed(url, 1000 * HOUR, MAX, now);
+		assertEquals(now + 24 * HOUR, schedule.getNext(url));
+	}
+
+	@Test
+	public void forcedUrlIsDueUntilProbed() {
+		long now = 100 * HOUR;
+		schedule.probed(url, revision(now - 8 * HOUR, "\"1\""), MAX, now);
+		schedule.force(url);
+		assertTrue(schedule.isDue(url, now));
+		assertEquals(0, schedule.getNext(url));
+		schedule.probed(url, revision(now - 8 * HOUR, "\"1\""), MAX, now);
+		assertFalse(schedule.isDue(url, now));
+	}
+
+	/**
+	 * Creates the result of a probe that got an answer.
+	 * 
+	 * @param lastModified
+	 *            the last modified
+	 * @param etag
+	 *            the etag
+	 * @return the result
+	 */
+	private static UrlProbe.Result revision(long lastModified, String etag) {
+		return new UrlProbe.Result(false, lastModified, etag, -1, false);
+	}
+}
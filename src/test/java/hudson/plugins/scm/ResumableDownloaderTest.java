@@ -0,0 +1,277 @@
+package hudson.plugins.scm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests resuming and splitting downloads against a local http server.
+ */
+public class ResumableDownloaderTest {
+
+	/** The path of the archive. */
+	private static final String PATH = "/archive.zip";
+
+	/** The length of a file worth splitting into two segments. */
+	private static final int SEGMENTED = (int) (2 * ResumableDownloader.MIN_SEGMENT_SIZE);
+
+	/** The directory of the served archive and the part-file. */
+	private File dir;
+
+	/** The served archive. */
+	private File archive;
+
+	/** The server. */
+	private LocalHttpServer server;
+
+	/** The part-file. */
+	private File part;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("resumable", "");
+		dir.delete();
+		dir.mkdir();
+		archive = new File(dir, "archive.zip");
+		part = new File(dir, ".archive.zip-download.part");
+		server = LocalHttpServer.start(archive);
+		server.setEtag("\"1\"");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		server.stop();
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Test
+	public void wholeDownload() throws Exception {
+		byte[] content = content(100000);
+		assertEquals(content.length, downloader(content, server.getEtag(), 1)
+				.download(part));
+		assertArrayEquals(content, FileUtils.readFileToByteArray(part));
+		assertEquals(Arrays.asList(PATH + " null null"), server.getRequests());
+	}
+
+	@Test
+	public void partFileIsResumed() throws Exception {
+		byte[] content = content(100000);
+		FileUtils.writeByteArrayToFile(part, Arrays.copyOf(content, 1000));
+		assertEquals(content.length - 1000, downloader(content,
+				server.getEtag(), 1).download(part));
+		assertArrayEquals(content, FileUtils.readFileToByteArray(part));
+		assertEquals(Arrays.asList(PATH + " bytes=1000-"
+				+ (content.length - 1) + " " + server.getEtag()), server
+				.getRequests());
+	}
+
+	@Test
+	public void partFileOfAnotherVersionIsReplaced() throws Exception {
+		byte[] content = content(100000);
+		FileUtils.writeByteArrayToFile(part, content(1000));
+		// the server has a newer version than the one probed, so If-Range
+		// does not match and the whole file is sent
+		server.setEtag("\"2\"");
+		assertEquals(content.length, downloader(content, "\"1\"", 1).download(
+				part));
+		assertArrayEquals(content, FileUtils.readFileToByteArray(part));
+		assertEquals(Arrays.asList(PATH + " bytes=1000-"
+				+ (content.length - 1) + " \"1\""), server.getRequests());
+	}
+
+	@Test
+	public void partFileIsNotResumedWithoutValidator() throws Exception {
+		byte[] content = content(100000);
+		FileUtils.writeByteArrayToFile(part, content(1000));
+		assertEquals(content.length, downloader(content, null, 1).download(
+				part));
+		assertArrayEquals(content, FileUtils.readFileToByteArray(part));
+		assertEquals(Arrays.asList(PATH + " null null"), server.getRequests());
+	}
+
+	@Test
+	public void partFileLongerThanTheFileIsReplaced() throws Exception {
+		byte[] content = content(100000);
+		FileUtils.writeByteArrayToFile(part, content(content.length + 10));
+		assertEquals(content.length, downloader(content, server.getEtag(), 1)
+				.download(part));
+		assertArrayEquals(content, FileUtils.readFileToByteArray(part));
+		assertEquals(Arrays.asList(PATH + " null null"), server.getRequests());
+	}
+
+	@Test
+	public void brokenTransferIsResumed() throws Exception {
+		byte[] content = content(100000);
+		server.breakAfter(30000);
+		assertEquals(content.length, downloader(content, server.getEtag(), 1)
+				.download(part));
+		assertArrayEquals(content, FileUtils.readFileToByteArray(part));
+		assertEquals(Arrays.asList(PATH + " null null", PATH
+				+ " bytes=30000-" + (content.length - 1) + " "
+				+ server.getEtag()), server.getRequests());
+	}
+
+	@Test
+	public void misplacedRangeIsNotWritten() throws Exception {
+		byte[] content = content(100000);
+		FileUtils.writeByteArrayToFile(part, Arrays.copyOf(content, 1000));
+		server.shiftRanges(10);
+		assertEquals(content.length, downloader(content, server.getEtag(), 1)
+				.download(part));
+		assertArrayEquals(content, FileUtils.readFileToByteArray(part));
+		assertEquals(Arrays.asList(PATH + " bytes=1000-"
+				+ (content.length - 1) + " " + server.getEtag(), PATH
+				+ " null null"), server.getRequests());
+	}
+
+	@Test
+	public void completePartFileOfUnknownLengthIsKept() throws Exception {
+		byte[] content = content(100000);
+		FileUtils.writeByteArrayToFile(part, content);
+		assertEquals(0, downloader(content, server.getEtag(), -1, 1)
+				.download(part));
+		assertArrayEquals(content, FileUtils.readFileToByteArray(part));
+	}
+
+	@Test
+	public void longerPartFileOfUnknownLengthIsReplaced() throws Exception {
+		byte[] content = content(100000);
+		FileUtils.writeByteArrayToFile(part, content(content.length + 10));
+		assertEquals(content.length, downloader(content, server.getEtag(), -1,
+				1).download(part));
+		assertArrayEquals(content, FileUtils.readFileToByteArray(part));
+		assertEquals(Arrays.asList(PATH + " bytes=" + (content.length + 10)
+				+ "- " + server.getEtag(), PATH + " null null"), server
+				.getRequests());
+	}
+
+	@Test
+	public void largeFileIsSegmented() throws Exception {
+		byte[] content = content(SEGMENTED + 12345);
+		assertEquals(content.length, downloader(content, server.getEtag(), 4)
+				.download(part));
+		assertArrayEquals(content, FileUtils.readFileToByteArray(part));
+		// two segments of at least the minimum size
+		List<String> requests = server.getRequests();
+		assertEquals(2, requests.size());
+		long size = content.length / 2;
+		assertTrue(requests.contains(PATH + " bytes=0-" + (size - 1)
+				+ " " + server.getEtag()));
+		assertTrue(requests.contains(PATH + " bytes=" + size + "-"
+				+ (content.length - 1) + " " + server.getEtag()));
+	}
+
+	@Test
+	public void smallFileIsNotSegmented() throws Exception {
+		byte[] content = content(SEGMENTED - 1);
+		assertEquals(content.length, downloader(content, server.getEtag(), 4)
+				.download(part));
+		assertArrayEquals(content, FileUtils.readFileToByteArray(part));
+		assertEquals(Arrays.asList(PATH + " null null"), server.getRequests());
+	}
+
+	@Test
+	public void ignoredSegmentRangesFallBackToWholeDownload() throws Exception {
+		byte[] content = content(SEGMENTED + 12345);
+		server.setHonourRanges(false);
+		assertEquals(content.length, downloader(content, server.getEtag(), 4)
+				.download(part));
+		assertArrayEquals(content, FileUtils.readFileToByteArray(part));
+		List<String> requests = server.getRequests();
+		assertEquals(PATH + " null null", requests.get(requests.size() - 1));
+	}
+
+	@Test
+	public void misplacedSegmentRangesFallBackToWholeDownload()
+			throws Exception {
+		byte[] content = content(SEGMENTED + 12345);
+		server.shiftRanges(10);
+		assertEquals(content.length, downloader(content, server.getEtag(), 4)
+				.download(part));
+		assertArrayEquals(content, FileUtils.readFileToByteArray(part));
+		List<String> requests = server.getRequests();
+		assertEquals(PATH + " null null", requests.get(requests.size() - 1));
+	}
+
+	@Test
+	public void strongEtagIsTheValidator() {
+		assertEquals("\"1\"", ResumableDownloader
+				.validator(new UrlProbe.Result(false, 1000L, "\"1\"", -1, true)));
+	}
+
+	@Test
+	public void weakEtagFallsBackToLastModified() {
+		assertEquals("Thu, 01 Jan 1970 00:00:01 GMT", ResumableDownloader
+				.validator(new UrlProbe.Result(false, 1000L, "W/\"1\"", -1,
+						true)));
+		assertNull(ResumableDownloader.validator(new UrlProbe.Result(false, 0,
+				"W/\"1\"", -1, true)));
+	}
+
+	/**
+	 * Creates random content.
+	 * 
+	 * @param length
+	 *            the length
+	 * @return the content
+	 */
+	private static byte[] content(int length) {
+		byte[] content = new byte[length];
+		new Random(length).nextBytes(content);
+		return content;
+	}
+
+	/**
+	 * Publishes a content and creates a downloader for it.
+	 * 
+	 * @param content
+	 *            the content
+	 * @param etag
+	 *            the etag the probe saw, null if the server sent none
+	 * @param segments
+	 *            the maximum number of concurrent range requests
+	 * @return the downloader
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private ResumableDownloader downloader(byte[] content, String etag,
+			int segments) throws IOException {
+		return downloader(content, etag, content.length, segments);
+	}
+
+	/**
+	 * Publishes a content and creates a downloader for it.
+	 * 
+	 * @param content
+	 *            the content
+	 * @param etag
+	 *            the etag the probe saw, null if the server sent none
+	 * @param length
+	 *            the content length the probe saw, -1 if unknown
+	 * @param segments
+	 *            the maximum number of concurrent range requests
+	 * @return the downloader
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private ResumableDownloader downloader(byte[] content, String etag,
+			long length, int segments) throws IOException {
+		FileUtils.writeByteArrayToFile(archive, content);
+		return new ResumableDownloader(new URL(server.getUrl()), server
+				.settings(), new UrlProbe.Result(false, 0, etag, length, true),
+				segments, Throttle.NONE);
+	}
+}
@@ -0,0 +1,56 @@
+package hudson.plugins.scm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+/**
+ * Tests the bandwidth the throttles of all transfers share.
+ */
+public class ThrottleTest {
+
+	@Test
+	public void reservationsOfAllTransfersAddUp() {
+		Throttle.Bucket bucket = new Throttle.Bucket();
+		bucket.setBytesPerSecond(1000);
+		long first = bucket.reserve(500);
+		long second = bucket.reserve(500);
+		long third = bucket.reserve(1000);
+		// a second of bytes takes a second, whoever reserved them
+		assertTrue(first >= 400 && first <= 500);
+		assertTrue(second >= 900 && second <= 1000);
+		assertTrue(third >= 1900 && third <= 2000);
+	}
+
+	@Test
+	public void unlimitedBucketDoesNotWait() {
+		Throttle.Bucket bucket = new Throttle.Bucket();
+		assertEquals(0, bucket.reserve(1000000));
+	}
+
+	@Test
+	public void throttledStreamsDrawFromTheBucket() throws Exception {
+		Throttle.Bucket bucket = new Throttle.Bucket();
+		bucket.setBytesPerSecond(1024 * 1024);
+		InputStream a = new Throttle(bucket).wrap(new ByteArrayInputStream(
+				new byte[256 * 1024]));
+		InputStream b = new Throttle(bucket).wrap(new ByteArrayInputStream(
+				new byte[256 * 1024]));
+		long start = System.currentTimeMillis();
+		IOUtils.toByteArray(a);
+		IOUtils.toByteArray(b);
+		// half a second for both, not a quarter for each on its own
+		assertTrue(System.currentTimeMillis() - start >= 450);
+	}
+
+	@Test
+	public void noneDoesNotWrap() {
+		InputStream in = new ByteArrayInputStream(new byte[1]);
+		assertTrue(Throttle.NONE.wrap(in) == in);
+	}
+}
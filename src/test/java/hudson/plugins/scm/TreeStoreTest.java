@@ -0,0 +1,105 @@
+package hudson.plugins.scm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests how concurrent requests for the same tree share one extraction.
+ */
+public class TreeStoreTest {
+
+	/** The key of the tests. */
+	private static final String KEY = TreeStore.key("abc",
+			EntryFilter.ALL);
+
+	/** The directory of the store. */
+	private File dir;
+
+	/** The store. */
+	private TreeStore store;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("trees", "");
+		dir.delete();
+		dir.mkdir();
+		store = TreeStore.get(dir);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Test
+	public void waiterExtractsWhenTheExtractionItWaitedForIsInterrupted()
+			throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch abort = new CountDownLatch(1);
+		final AtomicReference<Throwable> aborted = new AtomicReference<Throwable>();
+		Thread first = new Thread() {
+			public void run() {
+				try {
+					store.get(KEY, new TreeStore.Extractor() {
+						public String extract(File target)
+								throws InterruptedException {
+							started.countDown();
+							abort.await();
+							throw new InterruptedException();
+						}
+					}, Long.MAX_VALUE);
+				} catch (Throwable e) {
+					aborted.set(e);
+				}
+			}
+		};
+		first.start();
+		started.await();
+		final AtomicInteger extractions = new AtomicInteger();
+		final AtomicReference<Object> result = new AtomicReference<Object>();
+		Thread second = new Thread() {
+			public void run() {
+				try {
+					result.set(store.get(KEY, new TreeStore.Extractor() {
+						public String extract(File target) throws IOException {
+							extractions.incrementAndGet();
+							FileUtils.writeStringToFile(new File(target,
+									"a.txt"), "a", "UTF-8");
+							return "abc";
+						}
+					}, Long.MAX_VALUE));
+				} catch (Throwable e) {
+					result.set(e);
+				}
+			}
+		};
+		second.start();
+		// let the second thread find the running extraction and wait for it
+		Thread.sleep(200);
+		abort.countDown();
+		first.join(10000);
+		second.join(10000);
+		assertTrue(aborted.get() instanceof InterruptedException);
+		if (!(result.get() instanceof TreeStore.Tree)) {
+			fail("the waiting thread failed with " + result.get());
+		}
+		TreeStore.Tree tree = (TreeStore.Tree) result.get();
+		assertEquals(1, extractions.get());
+		assertEquals("abc", tree.getSha256());
+		assertEquals("a", FileUtils.readFileToString(new File(tree.getRoot(),
+				"a.txt"), "UTF-8"));
+		store.release(tree);
+	}
+}